@@ -0,0 +1,171 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.benchmarks;
+
+import de.corelogics.tools.android.binarymanifest.AndroidManifest;
+import de.corelogics.tools.android.binarymanifest.ManifestDecompiler;
+import de.corelogics.tools.android.binarymanifest.ManifestStamper;
+import de.corelogics.tools.android.binarymanifest.chunks.ResSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse, query, write, validate, stamp and decompile throughput over the manifests in {@code src/main/resources/fixtures}.
+ * Run with {@code -prof gc} to get the allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AndroidManifestBenchmark {
+    @Param({"small", "medium", "large"})
+    public String fixture;
+
+    private Path dir;
+    private File source;
+    private File target;
+    private byte[] bytes;
+    private AndroidManifest manifest;
+    private ManifestStamper stamper;
+    private List<ManifestStamper.Variant> variants;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("manifest-benchmark");
+        source = dir.resolve("AndroidManifest.xml").toFile();
+        target = dir.resolve("AndroidManifest.out.xml").toFile();
+        try (InputStream in = AndroidManifestBenchmark.class.getResourceAsStream("/fixtures/" + fixture + ".xml")) {
+            if (null == in) {
+                throw new IllegalStateException("Unknown fixture " + fixture);
+            }
+            Files.copy(in, source.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        bytes = Files.readAllBytes(source.toPath());
+        manifest = new AndroidManifest(bytes);
+        variants = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            variants.add(new ManifestStamper.Variant(manifest.getVersionCode() + i, manifest.getVersionName() + "-" + i));
+            names.add(manifest.getVersionName() + "-" + i);
+        }
+        stamper = new ManifestStamper(manifest, names);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source.toPath());
+        Files.deleteIfExists(target.toPath());
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public AndroidManifest parse() {
+        return new AndroidManifest(bytes);
+    }
+
+    /**
+     * Parse from the file, including opening and mapping it.
+     */
+    @Benchmark
+    public AndroidManifest parseFile() throws IOException {
+        return new AndroidManifest(source);
+    }
+
+    @Benchmark
+    public void query(Blackhole blackhole) {
+        blackhole.consume(manifest.getVersionCode());
+        blackhole.consume(manifest.getVersionName());
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        manifest.write(target);
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return manifest.toByteArray();
+    }
+
+    @Benchmark
+    public void validate() throws IOException {
+        manifest.validate(source);
+    }
+
+    @Benchmark
+    public void rewrite() throws IOException {
+        AndroidManifest rewritten = new AndroidManifest(bytes);
+        rewritten.setVersionCode(rewritten.getVersionCode() + 1);
+        rewritten.setVersionName(rewritten.getVersionName() + "-rc1");
+        rewritten.write(target);
+    }
+
+    @Benchmark
+    public byte[] stampVariants() {
+        return stamper.stampAll(variants, false);
+    }
+
+    @Benchmark
+    public void writeVariants(Blackhole blackhole) {
+        for (ManifestStamper.Variant variant : variants) {
+            manifest.setVersionCode(variant.getVersionCode());
+            manifest.setVersionName(variant.getVersionName());
+            blackhole.consume(manifest.toByteArray());
+        }
+    }
+
+    @Benchmark
+    public void decompile() throws IOException {
+        ManifestDecompiler.decompile(new ResSource(bytes), Writer.nullWriter());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.benchmarks;
+
+import de.corelogics.tools.android.binarymanifest.AndroidManifest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse and rewrite throughput over {@link ManifestGenerator} output, far beyond the size of real manifests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeneratedManifestBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int strings;
+
+    @Param({"100", "10000"})
+    public int elements;
+
+    @Param({"false", "true"})
+    public boolean utf8;
+
+    private byte[] source;
+    private AndroidManifest manifest;
+    private AndroidManifest edited;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ManifestGenerator generator = new ManifestGenerator();
+        generator.setStringCount(strings);
+        generator.setElementCount(elements);
+        generator.setUtf8(utf8);
+        source = generator.generate();
+        manifest = new AndroidManifest(source);
+        edited = new AndroidManifest(source);
+        edited.setVersionName(edited.getVersionName() + "-rc1");
+    }
+
+    @Benchmark
+    public AndroidManifest parse() {
+        return new AndroidManifest(source);
+    }
+
+    @Benchmark
+    public int versionCode() {
+        return new AndroidManifest(source).getVersionCode();
+    }
+
+    @Benchmark
+    public byte[] write() {
+        return manifest.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] writeEdited() {
+        return edited.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] rewrite() {
+        AndroidManifest rewritten = new AndroidManifest(source);
+        rewritten.setVersionName(rewritten.getVersionName() + "-rc1");
+        return rewritten.toByteArray();
+    }
+}
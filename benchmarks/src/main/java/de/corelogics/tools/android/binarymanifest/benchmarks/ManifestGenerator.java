@@ -0,0 +1,491 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.benchmarks;
+
+import de.corelogics.tools.android.binarymanifest.chunks.ResHeapTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResTarget;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Generates synthetic binary manifests of arbitrary size. The output only depends on the settings and
+ * the seed: a {@code <manifest>} with {@code <uses-sdk>} and an {@code <application>} holding the
+ * requested number of {@code <activity>} elements, plus one {@code <meta-data>} element per long
+ * string. Strings beyond the ones referenced by the tree are filled up with random text, which
+ * includes non-ASCII and supplementary characters.
+ */
+public class ManifestGenerator {
+    public static final int LONG_STRING_LENGTH = 0x8000 + 1000;
+
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+    private static final long NONE = 0xffffffffL;
+    private static final String[] ATTRIBUTE_NAMES = {
+            "versionCode", "versionName", "minSdkVersion", "targetSdkVersion", "name", "label", "exported", "value"
+    };
+    private static final long[] ATTRIBUTE_IDS = {
+            0x0101021b, 0x0101021c, 0x0101020c, 0x01010270, 0x01010003, 0x01010001, 0x01010010, 0x01010024
+    };
+    private static final String[] FIXED_STRINGS = {
+            "android", ANDROID_NAMESPACE, "package", "manifest", "uses-sdk", "application", "activity", "meta-data",
+            "b", "i", "u", "com.example.generated", "1.0.0", "Generated"
+    };
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789._-äöüß€";
+
+    private static final String USAGE = "Usage: ManifestGenerator [options] <output directory>\n" +
+            "Writes <output directory>/<n>/AndroidManifest.xml for n = 0 .. count-1\n" +
+            "  --count <n>            number of manifests (default: 1)\n" +
+            "  --seed <n>             seed of the first manifest, manifest n uses seed + n (default: 1)\n" +
+            "  --strings <n>          string pool entries (default: 1000)\n" +
+            "  --utf8                 write UTF-8 instead of UTF-16 string pools\n" +
+            "  --styles <n>           strings with style spans (default: 0)\n" +
+            "  --elements <n>         <activity> elements (default: 100)\n" +
+            "  --attributes <n>       attributes per <activity> (default: 4)\n" +
+            "  --long-strings <n>     strings of " + LONG_STRING_LENGTH + " chars, UTF-16 only (default: 0)";
+
+    private long seed = 1;
+    private int stringCount = 1000;
+    private boolean utf8;
+    private int styleCount;
+    private int elementCount = 100;
+    private int attributeCount = 4;
+    private int longStringCount;
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setStringCount(int stringCount) {
+        this.stringCount = stringCount;
+    }
+
+    public void setUtf8(boolean utf8) {
+        this.utf8 = utf8;
+    }
+
+    public void setStyleCount(int styleCount) {
+        this.styleCount = styleCount;
+    }
+
+    public void setElementCount(int elementCount) {
+        this.elementCount = elementCount;
+    }
+
+    public void setAttributeCount(int attributeCount) {
+        this.attributeCount = attributeCount;
+    }
+
+    public void setLongStringCount(int longStringCount) {
+        this.longStringCount = longStringCount;
+    }
+
+    public byte[] generate() {
+        return generate(seed);
+    }
+
+    public byte[] generate(long seed) {
+        checkSettings();
+        SplittableRandom random = new SplittableRandom(seed);
+        Strings strings = new Strings(random);
+
+        ResHeapTarget tgt = new ResHeapTarget(64 * stringCount + 64 * elementCount * (attributeCount + 2));
+        tgt.writeU16(0x0003);
+        tgt.writeU16(8);
+        tgt.writeU32(0);
+        writeStringPool(tgt, strings, random);
+        writeResourceMap(tgt);
+        writeTree(tgt, strings, random);
+        int length = tgt.length();
+        tgt.position(ResTarget.LEN_U32);
+        tgt.writeU32(length);
+        tgt.close();
+        return tgt.toByteArray();
+    }
+
+    private void checkSettings() {
+        if (utf8 && longStringCount > 0) {
+            throw new IllegalStateException("UTF-8 string pools cannot hold strings of more than 32767 chars");
+        }
+        if (attributeCount < 1) {
+            throw new IllegalStateException("Every <activity> needs at least its android:name attribute");
+        }
+    }
+
+    private void writeStringPool(ResHeapTarget tgt, Strings strings, SplittableRandom random) {
+        List<String> values = strings.values;
+        int prefix = ATTRIBUTE_NAMES.length;
+        int styled = Math.min(styleCount, values.size() - prefix);
+        int styles = styled > 0 ? prefix + styled : 0;
+        long start = tgt.position();
+        int headerSize = 28;
+        tgt.writeU16(0x0001);
+        tgt.writeU16(headerSize);
+        tgt.writeU32(0);
+        tgt.writeU32(values.size());
+        tgt.writeU32(styles);
+        tgt.writeU32(utf8 ? 0x100 : 0);
+        tgt.writeU32(headerSize + (values.size() + styles) * ResTarget.LEN_U32);
+        tgt.writeU32(0);
+
+        long offsets = tgt.position();
+        tgt.position(offsets + (values.size() + styles) * ResTarget.LEN_U32);
+        long stringsStart = tgt.position();
+        long[] stringOffsets = new long[values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            stringOffsets[i] = tgt.position() - stringsStart;
+            writeString(tgt, values.get(i));
+        }
+        while (0 != tgt.position() % 4) {
+            tgt.writeU8(0);
+        }
+
+        // Styles belong to the strings with the same index, so like aapt the resource map prefix gets empty
+        // styles and the styled strings come after it.
+        long[] styleOffsets = new long[styles];
+        long stylesStart = tgt.position();
+        if (styles > 0) {
+            tgt.writeU32(NONE);
+        }
+        for (int i = prefix; i < styles; i++) {
+            styleOffsets[i] = tgt.position() - stylesStart;
+            int length = values.get(i).length();
+            int spans = 1 + random.nextInt(3);
+            for (int k = 0; k < spans && length > 0; k++) {
+                int first = random.nextInt(length);
+                tgt.writeU32(strings.styleTags[random.nextInt(strings.styleTags.length)]);
+                tgt.writeU32(first);
+                tgt.writeU32(first + random.nextInt(length - first));
+            }
+            tgt.writeU32(NONE);
+        }
+        if (styles > 0) {
+            tgt.writeU32(NONE);
+            tgt.writeU32(NONE);
+        }
+        long end = tgt.position();
+
+        tgt.position(start + ResTarget.LEN_U32);
+        tgt.writeU32(end - start);
+        tgt.position(start + 24);
+        tgt.writeU32(styles > 0 ? stylesStart - start : 0);
+        tgt.position(offsets);
+        for (long offset : stringOffsets) {
+            tgt.writeU32(offset);
+        }
+        for (long offset : styleOffsets) {
+            tgt.writeU32(offset);
+        }
+        tgt.position(end);
+    }
+
+    private void writeString(ResTarget tgt, String value) {
+        if (utf8) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeUtf8Length(tgt, value.length());
+            writeUtf8Length(tgt, bytes.length);
+            tgt.write(bytes);
+            tgt.writeU8(0);
+        } else {
+            if (value.length() > 0x7fff) {
+                tgt.writeU16(0x8000 | (value.length() >> 16));
+                tgt.writeU16(value.length() & 0xffff);
+            } else {
+                tgt.writeU16(value.length());
+            }
+            tgt.write(value.getBytes(StandardCharsets.UTF_16LE));
+            tgt.writeU16(0);
+        }
+    }
+
+    private static void writeUtf8Length(ResTarget tgt, int length) {
+        if (length > 0x7f) {
+            tgt.writeU8(0x80 | (length >> 8));
+            tgt.writeU8(length & 0xff);
+        } else {
+            tgt.writeU8(length);
+        }
+    }
+
+    private static void writeResourceMap(ResTarget tgt) {
+        tgt.writeU16(0x0180);
+        tgt.writeU16(8);
+        tgt.writeU32(8 + ATTRIBUTE_IDS.length * ResTarget.LEN_U32);
+        for (long id : ATTRIBUTE_IDS) {
+            tgt.writeU32(id);
+        }
+    }
+
+    private void writeTree(ResTarget tgt, Strings strings, SplittableRandom random) {
+        Node node = new Node(tgt);
+        long ns = strings.index(ANDROID_NAMESPACE);
+        node.namespace(0x0100, strings.index("android"), ns);
+
+        node.start(NONE, strings.index("manifest"), 3);
+        node.intAttribute(ns, attribute("versionCode"), 1 + random.nextInt(100000));
+        node.stringAttribute(ns, attribute("versionName"), strings.index("1.0.0"));
+        node.stringAttribute(NONE, strings.index("package"), strings.index("com.example.generated"));
+
+        node.start(NONE, strings.index("uses-sdk"), 2);
+        node.intAttribute(ns, attribute("minSdkVersion"), 21);
+        node.intAttribute(ns, attribute("targetSdkVersion"), 34);
+        node.end(NONE, strings.index("uses-sdk"));
+
+        node.start(NONE, strings.index("application"), 1);
+        node.stringAttribute(ns, attribute("label"), strings.index("Generated"));
+
+        long activity = strings.index("activity");
+        for (int i = 0; i < elementCount; i++) {
+            node.start(NONE, activity, attributeCount);
+            node.stringAttribute(ns, attribute("name"), strings.filler(i));
+            if (attributeCount > 1) {
+                node.booleanAttribute(ns, attribute("exported"), random.nextBoolean());
+            }
+            for (int k = 2; k < attributeCount; k++) {
+                node.stringAttribute(NONE, strings.extraAttributes[k - 2], strings.filler(random.nextInt(Integer.MAX_VALUE)));
+            }
+            node.end(NONE, activity);
+        }
+
+        long metaData = strings.index("meta-data");
+        for (int i = 0; i < longStringCount; i++) {
+            node.start(NONE, metaData, 2);
+            node.stringAttribute(ns, attribute("name"), strings.filler(i));
+            node.stringAttribute(ns, attribute("value"), strings.longStrings[i]);
+            node.end(NONE, metaData);
+        }
+
+        node.end(NONE, strings.index("application"));
+        node.end(NONE, strings.index("manifest"));
+        node.namespace(0x0101, strings.index("android"), ns);
+    }
+
+    private static long attribute(String name) {
+        for (int i = 0; i < ATTRIBUTE_NAMES.length; i++) {
+            if (ATTRIBUTE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    private class Strings {
+        private final List<String> values = new ArrayList<>();
+        private final long[] styleTags;
+        private final long[] extraAttributes;
+        private final long[] longStrings;
+        private final int fillerStart;
+
+        private Strings(SplittableRandom random) {
+            for (String name : ATTRIBUTE_NAMES) {
+                values.add(name);
+            }
+            for (String value : FIXED_STRINGS) {
+                values.add(value);
+            }
+            styleTags = new long[]{index("b"), index("i"), index("u")};
+            extraAttributes = new long[Math.max(0, attributeCount - 2)];
+            for (int i = 0; i < extraAttributes.length; i++) {
+                extraAttributes[i] = values.size();
+                values.add("attr" + i);
+            }
+            longStrings = new long[longStringCount];
+            for (int i = 0; i < longStringCount; i++) {
+                longStrings[i] = values.size();
+                values.add(randomString(random, i, LONG_STRING_LENGTH));
+            }
+            fillerStart = values.size();
+            for (int i = 0; values.size() < Math.max(stringCount, fillerStart + 1); i++) {
+                values.add(randomString(random, i, 4 + random.nextInt(40)));
+            }
+        }
+
+        private long index(String value) {
+            int index = values.indexOf(value);
+            if (index < 0) {
+                throw new IllegalArgumentException(value);
+            }
+            return index;
+        }
+
+        private long filler(int i) {
+            return fillerStart + i % (values.size() - fillerStart);
+        }
+
+        private String randomString(SplittableRandom random, int index, int length) {
+            StringBuilder value = new StringBuilder(length + 16).append('s').append(index).append('.');
+            while (value.length() < length) {
+                if (0 == random.nextInt(64)) {
+                    value.appendCodePoint(0x1f600 + random.nextInt(64));
+                } else {
+                    value.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+                }
+            }
+            return value.toString();
+        }
+    }
+
+    private static class Node {
+        private final ResTarget tgt;
+        private int line = 1;
+
+        private Node(ResTarget tgt) {
+            this.tgt = tgt;
+        }
+
+        private void header(int type, long size) {
+            tgt.writeU16(type);
+            tgt.writeU16(16);
+            tgt.writeU32(size);
+            tgt.writeU32(line++);
+            tgt.writeU32(NONE);
+        }
+
+        private void namespace(int type, long prefix, long uri) {
+            header(type, 24);
+            tgt.writeU32(prefix);
+            tgt.writeU32(uri);
+        }
+
+        private void start(long ns, long name, int attributes) {
+            header(0x0102, 36 + 20 * attributes);
+            tgt.writeU32(ns);
+            tgt.writeU32(name);
+            tgt.writeU16(20);
+            tgt.writeU16(20);
+            tgt.writeU16(attributes);
+            tgt.writeU16(0);
+            tgt.writeU16(0);
+            tgt.writeU16(0);
+        }
+
+        private void end(long ns, long name) {
+            header(0x0103, 24);
+            tgt.writeU32(ns);
+            tgt.writeU32(name);
+        }
+
+        private void attribute(long ns, long name, long raw, int type, long data) {
+            tgt.writeU32(ns);
+            tgt.writeU32(name);
+            tgt.writeU32(raw);
+            tgt.writeU16(8);
+            tgt.writeU8(0);
+            tgt.writeU8(type);
+            tgt.writeU32(data);
+        }
+
+        private void stringAttribute(long ns, long name, long value) {
+            attribute(ns, name, value, 0x03, value);
+        }
+
+        private void intAttribute(long ns, long name, long value) {
+            attribute(ns, name, NONE, 0x10, value);
+        }
+
+        private void booleanAttribute(long ns, long name, boolean value) {
+            attribute(ns, name, NONE, 0x12, value ? NONE : 0);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ManifestGenerator generator = new ManifestGenerator();
+        int count = 1;
+        Path output = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--count":
+                        count = Integer.parseInt(args[++i]);
+                        break;
+                    case "--seed":
+                        generator.setSeed(Long.parseLong(args[++i]));
+                        break;
+                    case "--strings":
+                        generator.setStringCount(Integer.parseInt(args[++i]));
+                        break;
+                    case "--utf8":
+                        generator.setUtf8(true);
+                        break;
+                    case "--styles":
+                        generator.setStyleCount(Integer.parseInt(args[++i]));
+                        break;
+                    case "--elements":
+                        generator.setElementCount(Integer.parseInt(args[++i]));
+                        break;
+                    case "--attributes":
+                        generator.setAttributeCount(Integer.parseInt(args[++i]));
+                        break;
+                    case "--long-strings":
+                        generator.setLongStringCount(Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || null != output) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        output = Paths.get(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (null == output) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            generator.checkSettings();
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+
+        Path root = output;
+        int digits = Integer.toString(Math.max(count - 1, 0)).length();
+        long start = System.nanoTime();
+        long bytes = IntStream.range(0, count).parallel().mapToLong(n -> {
+            byte[] manifest = generator.generate(generator.seed + n);
+            try {
+                Path dir = Files.createDirectories(root.resolve(String.format("%0" + digits + "d", n)));
+                Files.write(dir.resolve("AndroidManifest.xml"), manifest);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write manifest " + n, e);
+            }
+            return manifest.length;
+        }).sum();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d manifests, %.1f MB in %.3f s%n", count, bytes / 1e6, seconds);
+    }
+}
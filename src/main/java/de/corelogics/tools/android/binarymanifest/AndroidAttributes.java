@@ -0,0 +1,149 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resource IDs and value formats of the framework attributes used in manifests, read from the bundled
+ * {@code android-attributes.txt}. The format bits are those of the platform's {@code attrs.xml}.
+ */
+public final class AndroidAttributes {
+    public static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+
+    public static final int VERSION_CODE = 0x0101021b;
+    public static final int VERSION_NAME = 0x0101021c;
+    public static final int MIN_SDK_VERSION = 0x0101020c;
+
+    public static final int FORMAT_REFERENCE = 0x01;
+    public static final int FORMAT_STRING = 0x02;
+    public static final int FORMAT_INTEGER = 0x04;
+    public static final int FORMAT_BOOLEAN = 0x08;
+    public static final int FORMAT_COLOR = 0x10;
+    public static final int FORMAT_FLOAT = 0x20;
+    public static final int FORMAT_DIMENSION = 0x40;
+    public static final int FORMAT_FRACTION = 0x80;
+    public static final int FORMAT_ENUM = 0x10000;
+    public static final int FORMAT_FLAGS = 0x20000;
+
+    private static final String[] FORMAT_NAMES = {
+            "reference", "string", "integer", "boolean", "color", "float", "dimension", "fraction"};
+
+    private static final Map<String, Integer> IDS = new HashMap<>();
+    private static final Map<Integer, String> NAMES = new HashMap<>();
+    private static final Map<Integer, Integer> FORMATS = new HashMap<>();
+    private static final Map<Integer, Map<String, Integer>> SYMBOLS = new HashMap<>();
+
+    static {
+        try (InputStream in = AndroidAttributes.class.getResourceAsStream("android-attributes.txt")) {
+            if (null == in) {
+                throw new IllegalStateException("android-attributes.txt is missing");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while (null != (line = reader.readLine())) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                int id = Integer.parseUnsignedInt(fields[1].substring(2), 16);
+                IDS.put(fields[0], id);
+                NAMES.put(id, fields[0]);
+                if (fields.length > 2) {
+                    FORMATS.put(id, parseFormat(fields[2]));
+                }
+                if (fields.length > 3) {
+                    Map<String, Integer> symbols = new LinkedHashMap<>();
+                    for (String symbol : fields[3].split(",")) {
+                        int equals = symbol.indexOf('=');
+                        symbols.put(symbol.substring(0, equals), Integer.decode(symbol.substring(equals + 1)).intValue());
+                    }
+                    SYMBOLS.put(id, symbols);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read android-attributes.txt", e);
+        }
+    }
+
+    private AndroidAttributes() {
+    }
+
+    private static int parseFormat(String text) {
+        int format = 0;
+        for (String name : text.split("\\|")) {
+            if ("enum".equals(name)) {
+                format |= FORMAT_ENUM;
+            } else if ("flags".equals(name)) {
+                format |= FORMAT_FLAGS;
+            } else {
+                int bit = Arrays.asList(FORMAT_NAMES).indexOf(name);
+                if (bit < 0) {
+                    throw new IllegalStateException("Unknown attribute format " + name);
+                }
+                format |= 1 << bit;
+            }
+        }
+        return format;
+    }
+
+    public static int getResourceId(String name) {
+        Integer id = IDS.get(name);
+        return null == id ? 0 : id;
+    }
+
+    public static String getName(int resourceId) {
+        return NAMES.get(resourceId);
+    }
+
+    /**
+     * Accepted value formats of the attribute as {@code FORMAT_*} bits, 0 if unknown.
+     */
+    public static int getFormat(int resourceId) {
+        Integer format = FORMATS.get(resourceId);
+        return null == format ? 0 : format;
+    }
+
+    /**
+     * Symbols of an enum or flags attribute with their values, in the order of the attribute table.
+     */
+    public static Map<String, Integer> getSymbols(int resourceId) {
+        Map<String, Integer> symbols = SYMBOLS.get(resourceId);
+        return null == symbols ? Collections.<String, Integer>emptyMap() : Collections.unmodifiableMap(symbols);
+    }
+}
@@ -27,42 +27,142 @@
 
 package de.corelogics.tools.android.binarymanifest;
 
+import de.corelogics.tools.android.binarymanifest.chunks.ResBufferTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResChannelTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResChunkHeader;
+import de.corelogics.tools.android.binarymanifest.chunks.ResFileTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResHeapTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResMismatch;
+import de.corelogics.tools.android.binarymanifest.chunks.ResPatch;
+import de.corelogics.tools.android.binarymanifest.chunks.ResSizingTarget;
 import de.corelogics.tools.android.binarymanifest.chunks.ResSource;
+import de.corelogics.tools.android.binarymanifest.chunks.ResStreamTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResStringPool;
+import de.corelogics.tools.android.binarymanifest.chunks.ResStringPoolHeader;
+import de.corelogics.tools.android.binarymanifest.chunks.ResTable;
+import de.corelogics.tools.android.binarymanifest.chunks.ResTableConfig;
 import de.corelogics.tools.android.binarymanifest.chunks.ResTarget;
-import de.corelogics.tools.android.binarymanifest.chunks.ResTargetImpl;
-import de.corelogics.tools.android.binarymanifest.chunks.ResValidateImpl;
+import de.corelogics.tools.android.binarymanifest.chunks.ResVerifyTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlTree;
+import de.corelogics.tools.android.binarymanifest.trace.ManifestTracer;
+import de.corelogics.tools.android.binarymanifest.trace.ManifestTracing;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class AndroidManifest {
+    private static final int VALUE_DATA_OFFSET = 4 * ResTarget.LEN_U32;
+
+    private final File sourceFile;
     private final ResSource src;
     private ResChunkHeader fileHeader;
     private ResStringPool stringPool;
-    private List<ResChunk> chunks = new ArrayList<>();
-
+    private ResXmlTree tree;
 
     private String versionName = null;
     private boolean versionNameChanged = false;
+    private int versionNameRawIndex = ResXmlTree.NONE;
+    private int versionNameIndex = ResXmlTree.NONE;
+    private int versionNameAddedIndex = ResXmlTree.NONE;
+    private int versionNameReference = 0;
 
     private int versionCode = -1;
     private boolean versionCodeChanged = false;
 
+    private boolean edited = false;
+
+    private int versionNameAttribute = ResXmlTree.NONE;
+    private int versionCodeAttribute = ResXmlTree.NONE;
+    private int versionCodeElement = ResXmlTree.NONE;
+
     public AndroidManifest(File source) throws IOException {
-        this.src = new ResSource(source);
+        this(source, new ResSource(source));
+    }
+
+    public AndroidManifest(ByteBuffer source) {
+        this(null, new ResSource(source));
+    }
+
+    public AndroidManifest(byte[] source) {
+        this(null, new ResSource(source));
+    }
+
+    public AndroidManifest(InputStream source, int maxLength) throws IOException {
+        this(null, new ResSource(source, maxLength));
+    }
+
+    private AndroidManifest(File sourceFile, ResSource src) {
+        this.sourceFile = sourceFile;
+        this.src = src;
         read();
     }
 
+    private AndroidManifest(AndroidManifest other, File sourceFile) {
+        this.sourceFile = sourceFile;
+        this.src = other.src;
+        this.fileHeader = other.fileHeader;
+        this.stringPool = new ResStringPool(other.stringPool);
+        this.tree = new ResXmlTree(other.tree, stringPool);
+        this.versionName = other.versionName;
+        this.versionNameChanged = other.versionNameChanged;
+        this.versionNameRawIndex = other.versionNameRawIndex;
+        this.versionNameIndex = other.versionNameIndex;
+        this.versionNameAddedIndex = other.versionNameAddedIndex;
+        this.versionNameReference = other.versionNameReference;
+        this.versionCode = other.versionCode;
+        this.versionCodeChanged = other.versionCodeChanged;
+        this.edited = other.edited;
+        this.versionNameAttribute = other.versionNameAttribute;
+        this.versionCodeAttribute = other.versionCodeAttribute;
+        this.versionCodeElement = other.versionCodeElement;
+    }
+
+    /**
+     * Independent copy of this manifest without parsing again. The source bytes are shared and only read,
+     * so copies may be taken and changed concurrently as long as this instance itself is not changed.
+     */
+    AndroidManifest copy(File sourceFile) {
+        return new AndroidManifest(this, sourceFile);
+    }
+
+    /**
+     * Immutable snapshot of this manifest including its pending changes. Without pending changes it shares
+     * the parsed tables with a copy, otherwise the written output is parsed again.
+     */
+    public ManifestSnapshot snapshot() {
+        if (edited || versionCodeChanged || versionNameChanged || stringPool.isReencoded() || ResXmlTree.NONE != versionNameAddedIndex) {
+            return new ManifestSnapshot(new AndroidManifest(toByteArray()));
+        }
+        return new ManifestSnapshot(copy(null));
+    }
+
+    /**
+     * Approximate heap taken by the source and the parsed tables.
+     */
+    long footprint() {
+        return src.capacity() + tree.getTableBytes() + (long) (ResTarget.LEN_U32 + 8) * stringPool.size();
+    }
+
     public void setVersionCode(int versionCode) {
-        this.versionCodeChanged = this.versionCode != versionCode;
+        this.versionCodeChanged |= this.versionCode != versionCode;
         this.versionCode = versionCode;
+        if (ResXmlTree.NONE != versionCodeAttribute) {
+            tree.setAttributeValue(versionCodeAttribute, tree.getAttributeRawValue(versionCodeAttribute), tree.getAttributeValueType(versionCodeAttribute), versionCode);
+        }
     }
 
     public void setVersionName(String versionName) {
-        this.versionNameChanged = !this.versionName.equals(versionName);
+        this.versionNameChanged = ResXmlTree.NONE == versionNameIndex
+                || !versionName.equals(stringPool.lookup(versionNameIndex & 0xffffffffL));
         this.versionName = versionName;
     }
 
@@ -70,515 +170,319 @@ public class AndroidManifest {
         return versionCode;
     }
 
+    /**
+     * The versionName, {@code null} if the manifest has none or it is a resource reference.
+     */
     public String getVersionName() {
         return versionName;
     }
 
+    /**
+     * Resource ID the versionName refers to, as in {@code @string/app_version}, 0 if it is a literal or
+     * has been set.
+     */
+    public int getVersionNameReference() {
+        return versionNameChanged ? 0 : versionNameReference;
+    }
+
+    /**
+     * The versionName with a reference resolved against {@code table} for {@code config}.
+     */
+    public String getVersionName(ResTable table, ResTableConfig config) {
+        int reference = getVersionNameReference();
+        return 0 == reference ? versionName : table.getString(reference, config);
+    }
+
     private void read() {
+        ManifestTracer tracer = ManifestTracing.getTracer();
+        long parseStart = null == tracer ? 0 : System.nanoTime();
+        int chunkCount = 0;
         this.fileHeader = new ResChunkHeader(src);
-        while (src.position() < fileHeader.size) {
+        while (src.position() < fileHeader.getSize()) {
+            long chunkStart = null == tracer ? 0 : System.nanoTime();
             long bufferStartPos = src.position();
             ResChunkHeader chunkHeader = new ResChunkHeader(src);
-            if (chunkHeader.type == 0x1) {
+            if (chunkHeader.getType() == 0x1) {
                 ResStringPoolHeader poolHeader = new ResStringPoolHeader(chunkHeader, src);
                 this.stringPool = new ResStringPool(poolHeader, src);
-                System.out.println(stringPool);
-            } else if (chunkHeader.type == 0x0102) {
-                ResXmlStartElement startElement = new ResXmlStartElement(chunkHeader, src);
-                System.out.println(startElement);
-                this.chunks.add(startElement);
             } else {
-                UnknownResource unknown = new UnknownResource(chunkHeader, src);
-                System.out.println(unknown);
-                this.chunks.add(unknown);
+                if (null == tree) {
+                    tree = new ResXmlTree(src, stringPool);
+                }
+                tree.read(chunkHeader);
             }
-            src.position(bufferStartPos + chunkHeader.size);
-        }
-    }
-
-    public void write(File file) throws IOException {
-        ResTarget tgt = new ResTargetImpl(file, src.capacity() + 4096);
-        writeTo(tgt);
-        tgt.close();
-    }
-
-    public void validate(File file) throws IOException {
-        ResTarget tgt = new ResValidateImpl(file);
-        writeTo(tgt);
-        tgt.close();
-    }
-
-    private void writeTo(ResTarget tgt) {
-        this.fileHeader.writeTo(tgt);
-        long startPos = tgt.position();
-        this.stringPool.writeTo(tgt);
-        for (ResChunk chunk : chunks) {
-            chunk.writeTo(tgt);
-        }
-        long length = tgt.position() - startPos;
-        tgt.position(0);
-        long newLength = fileHeader.writeTo(tgt, (int) length);
-        tgt.position(newLength);
-    }
-
-    private interface ResChunk {
-        void writeTo(ResTarget tgt);
-    }
-
-    private static class ResChunkHeader {
-        private long chunkOriginalStart;
-        private int type;  //u16
-        private int headerSize;  //u16
-        private long size; //u32
-
-        public ResChunkHeader(ResSource src) {
-            chunkOriginalStart = src.position();
-            type = src.readU16();
-            headerSize = src.readU16();
-            size = src.readU32();
-        }
-
-        public long writeTo(ResTarget tgt, long newSize) {
-            tgt.writeU16(type);
-            tgt.writeU16(headerSize);
-            long newSizeAligned = newSize + 2 * tgt.LEN_U16 + tgt.LEN_U32;
-            while (0 != newSizeAligned % 4) {
-                newSizeAligned++;
+            src.position(bufferStartPos + chunkHeader.getSize());
+            chunkCount++;
+            if (null != tracer) {
+                tracer.chunkParsed(chunkHeader.getType(), chunkHeader.getSize(), System.nanoTime() - chunkStart);
             }
-            tgt.writeU32(newSizeAligned);
-            return newSizeAligned;
-        }
-
-        public void writeTo(ResTarget tgt) {
-            tgt.writeU16(type);
-            tgt.writeU16(headerSize);
-            tgt.writeU32(size);
-        }
-    }
-
-    private static class ResStringPoolHeader {
-        private ResChunkHeader header;
-        private long stringCount; // u32
-        private long styleCount; // u32
-        private long flags; // u32
-        private long stringsStart; // u32
-        private long stylesStart; // u32
-
-        private ResStringPoolHeader(ResChunkHeader header, ResSource src) {
-            this.header = header;
-            this.stringCount = src.readU32();
-            this.styleCount = src.readU32();
-            this.flags = src.readU32();
-            this.stringsStart = src.readU32();
-            this.stylesStart = src.readU32();
         }
-
-        @Override
-        public String toString() {
-            return "ResStringPoolHeader{" +
-                    "header=" + header +
-                    ", stringCount=" + stringCount +
-                    ", styleCount=" + styleCount +
-                    ", flags=" + flags +
-                    ", stringsStart=" + stringsStart +
-                    ", stylesStart=" + stylesStart +
-                    '}';
+        if (null == tree) {
+            tree = new ResXmlTree(src, stringPool);
         }
-
-        public void writeTo(ResTarget tgt, int newStringCount, int newStringsStart, int stylesStart, int length) {
-            header.writeTo(tgt, length + 5 * tgt.LEN_U32);
-            tgt.writeU32(newStringCount);
-            tgt.writeU32(styleCount);
-            tgt.writeU32(flags);
-            tgt.writeU32(newStringsStart);
-            tgt.writeU32(stylesStart);
+        findVersionAttributes();
+        if (null != tracer) {
+            tracer.parsed(fileHeader.getSize(), null == stringPool ? 0 : stringPool.size(), chunkCount, System.nanoTime() - parseStart);
         }
     }
 
-    private class ResStringPool implements ResChunk {
-        private ResStringPoolHeader header;
-        private long styleOffsets[];
-        private List<String> strings = new ArrayList<>();
-        private byte[] stylesData;
-
-        public long getIndexOfNewVersionName() {
-            return strings.indexOf(versionName);
-        }
-
-        public void writeTo(ResTarget tgt) {
-            if (versionNameChanged) {
-                strings.add(versionName);
-            }
-            int stringsStart = header.header.headerSize + strings.size() * tgt.LEN_U32 + styleOffsets.length * tgt.LEN_U32;
-            int stylesStart = stringsStart;
-            for (String st : strings) {
-                stylesStart += (2 + st.length()) * 2;
-
-            }
-            int length = stylesStart + stylesData.length;
-
-            header.writeTo(
-                    tgt,
-                    strings.size(),
-                    stringsStart,
-                    header.stylesStart > 0 ?
-                        stylesStart :
-                        0,
-                    length - header.header.headerSize);
-
-            int pos = 0;
-            for (final String st : strings) {
-                tgt.writeU32(pos);
-                pos += (2+st.length()) * 2;
-            }
+    public void apply(ManifestEdits edits) {
+        if (edits.isEmpty()) {
+            return;
+        }
+        updateVersionName();
+        edits.applyTo(tree, stringPool);
+        edited = true;
+        versionNameAddedIndex = ResXmlTree.NONE;
+        versionCode = -1;
+        versionCodeChanged = false;
+        versionCodeAttribute = ResXmlTree.NONE;
+        versionCodeElement = ResXmlTree.NONE;
+        versionName = null;
+        versionNameChanged = false;
+        versionNameAttribute = ResXmlTree.NONE;
+        versionNameIndex = ResXmlTree.NONE;
+        versionNameReference = 0;
+        findVersionAttributes();
+    }
 
-            int styleShift = (int) (stylesStart - header.stylesStart);
-            for (int i = 0; i < styleOffsets.length; i++) {
-                tgt.writeU32(styleOffsets[i] + styleShift);
+    private void findVersionAttributes() {
+        for (int node = 0; node < tree.getNodeCount(); node++) {
+            if (ResXmlTree.RES_XML_START_ELEMENT != tree.getNodeType(node) || ResXmlTree.NONE == tree.getNodeElement(node)) {
+                continue;
             }
-
-            for (final String st : strings) {
-                int stLen = st.length();
-                if (stLen > 32767) {
-                    int high = (stLen >> 16) & (0x8000);
-                    int low = stLen & 0xffff;
-                    tgt.writeU8(high);
-                    tgt.writeU8(low);
-                } else {
-                    tgt.writeU16(stLen);
+            int element = tree.getNodeElement(node);
+            for (int i = 0; i < tree.getAttributeCount(element); i++) {
+                int attribute = tree.getAttribute(element, i);
+                int resourceId = tree.getAttributeResourceId(attribute);
+                boolean isVersionCode = AndroidAttributes.VERSION_CODE == resourceId;
+                boolean isVersionName = AndroidAttributes.VERSION_NAME == resourceId;
+                if (0 == resourceId && stringPool.equalsAt(tree.getAttributeNamespace(attribute) & 0xffffffffL, AndroidAttributes.ANDROID_NAMESPACE)) {
+                    long name = tree.getAttributeName(attribute) & 0xffffffffL;
+                    isVersionCode = stringPool.equalsAt(name, "versionCode");
+                    isVersionName = stringPool.equalsAt(name, "versionName");
                 }
-                for (char c : st.toCharArray()) {
-                    tgt.writeU16(c);
+                if (ResXmlTree.NONE == versionCodeAttribute && isVersionCode) {
+                    int type = tree.getAttributeValueType(attribute);
+                    if (type < ResXmlTree.TYPE_FIRST_INT || type > ResXmlTree.TYPE_LAST_INT) {
+                        throw new IllegalStateException("versionCode is not an integer but of type " + type);
+                    }
+                    versionCode = tree.getAttributeValueData(attribute);
+                    versionCodeAttribute = attribute;
+                    versionCodeElement = element;
+                } else if (ResXmlTree.NONE == versionNameAttribute && isVersionName) {
+                    int type = tree.getAttributeValueType(attribute);
+                    versionNameRawIndex = tree.getAttributeRawValue(attribute);
+                    if (ResXmlTree.TYPE_REFERENCE == type) {
+                        versionNameReference = tree.getAttributeValueData(attribute);
+                    } else if (ResXmlTree.TYPE_STRING == type) {
+                        versionNameIndex = tree.getAttributeValueData(attribute);
+                        versionName = stringPool.lookup(versionNameIndex & 0xffffffffL);
+                    } else {
+                        throw new IllegalStateException("versionName is not a string but of type " + type);
+                    }
+                    versionNameAttribute = attribute;
                 }
-                tgt.writeU16(0);
-            }
-            tgt.write(stylesData);
-            while (tgt.position() % 4 != 0) {
-                tgt.writeU8(0);
             }
         }
+    }
 
-        public ResStringPool(ResStringPoolHeader header, ResSource src) {
-            this.header = header;
-            long stringOffsets[] = new long[(int) header.stringCount];
-            this.styleOffsets = new long[(int) header.styleCount];
-            for (int i = 0; i < stringOffsets.length; i++) {
-                stringOffsets[i] = src.readU32();
-            }
-            for (int i = 0; i < this.styleOffsets.length; i++) {
-                this.styleOffsets[i] = src.readU32();
-            }
-            long startOfStrings = header.header.chunkOriginalStart + header.stringsStart;
-
-            for (int i = 0; i < stringOffsets.length; i++) {
-                src.position(startOfStrings + stringOffsets[i]);
-                int size = src.readU16();
-                if (size > 32767) {
-                    size = (size & 0x7fff) << 16 + src.readU16();
-                }
-                char[] c = new char[size];
-                src.asCharBuffer().get(c);
-                this.strings.add(String.valueOf(c));
-            }
-
-            if (header.styleCount > 0) {
-                long startOfStyles = header.header.chunkOriginalStart + header.stylesStart;
-                long endOfStyles = header.header.chunkOriginalStart + header.header.size;
-                this.stylesData = new byte[(int) (endOfStyles - startOfStyles)];
-                src.position((int) startOfStrings);
-                src.get(this.stylesData);
-            } else {
-                this.stylesData = new byte[0];
-            }
-        }
+    public long measure() {
+        ResSizingTarget tgt = new ResSizingTarget();
+        writeTo(tgt);
+        return tgt.length();
+    }
 
-        @Override
-        public String toString() {
-            return "ResStringPool{" +
-                    "header=" + header +
-                    ", styleOffsets=" + Arrays.toString(styleOffsets) +
-                    ", strings=" + strings +
-                    '}';
-        }
+    public void write(File file) throws IOException {
+        long start = ManifestTracing.start();
+        ResBufferTarget tgt = new ResFileTarget(file, (int) measure());
+        writeTo(tgt);
+        tgt.close();
+        ManifestTracing.written(start, tgt.length(), false);
+    }
 
-        public String lookup(long index) {
-            if (index >= 0 && index < strings.size()) {
-                return strings.get((int) index);
-            }
-            return "<UNKNOWN>";
-        }
+    public void write(OutputStream out) throws IOException {
+        long start = ManifestTracing.start();
+        ResBufferTarget tgt = new ResStreamTarget(out, (int) measure());
+        writeTo(tgt);
+        tgt.close();
+        ManifestTracing.written(start, tgt.length(), false);
     }
 
-    private class ResStringPoolRef {
-        private long index; // u32
+    public void write(WritableByteChannel channel) throws IOException {
+        long start = ManifestTracing.start();
+        ResBufferTarget tgt = new ResChannelTarget(channel, (int) measure());
+        writeTo(tgt);
+        tgt.close();
+        ManifestTracing.written(start, tgt.length(), false);
+    }
 
-        public ResStringPoolRef(ResSource src) {
-            this.index = src.readU32();
+    public byte[] toByteArray() {
+        long start = ManifestTracing.start();
+        if (isPatchable()) {
+            byte[] data = src.toByteArray();
+            createPatch().applyTo(ByteBuffer.wrap(data));
+            ManifestTracing.written(start, data.length, true);
+            return data;
         }
+        ResHeapTarget tgt = new ResHeapTarget((int) measure());
+        writeTo(tgt);
+        tgt.close();
+        ManifestTracing.written(start, tgt.length(), false);
+        return tgt.detach();
+    }
 
-        public void writeTo(ResTarget tgt) {
-            tgt.writeU32(index);
-        }
+    public boolean isUtf8StringPool() {
+        return stringPool.isUtf8();
+    }
 
-        public void writeTo(ResTarget tgt, long newIndex) {
-            tgt.writeU32(newIndex);
-        }
+    public void setUtf8StringPool(boolean utf8) {
+        stringPool.setUtf8(utf8);
+    }
 
-        @Override
-        public String toString() {
-            return "ResStringPoolRef{" +
-                    ", index=" + index +
-                    ", val=" +
-                    lookup() +
-                    '}';
+    public boolean isPatchable() {
+        if (edited || stringPool.isReencoded()) {
+            return false;
         }
-
-        public String lookup() {
-            return (4294967295L == index ? "<NONE>" : stringPool.lookup(index));
+        if (versionNameChanged) {
+            int ownReferences = versionNameRawIndex == versionNameIndex ? 2 : 1;
+            return stringPool.canPatch(versionNameIndex & 0xffffffffL, versionName, ownReferences);
         }
+        return true;
     }
 
-    private class UnknownResource implements ResChunk {
-        private ResChunkHeader header;
-        private long contentDataSize;
-
-        public UnknownResource(ResChunkHeader header, ResSource src) {
-            long startOfContent = src.position();
-            this.header = header;
-            this.contentDataSize = header.size - (startOfContent - header.chunkOriginalStart);
+    public void patch(File file) throws IOException {
+        if (!isPatchable()) {
+            write(file);
+            return;
         }
-
-        @Override
-        public void writeTo(ResTarget tgt) {
-            header.writeTo(tgt);
-            src.position(header.chunkOriginalStart);
-            new ResChunkHeader(src);
-            src.copyTo(contentDataSize, tgt);
-        }
-
-        @Override
-        public String toString() {
-            return "UnknownResource{" +
-                    "header=" + header +
-                    ", contentDataSize=" + contentDataSize +
-                    '}';
+        long start = ManifestTracing.start();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(src.capacity());
+            FileChannel channel = out.getChannel();
+            src.writeTo(channel);
+            createPatch().applyTo(channel);
         }
+        ManifestTracing.written(start, src.capacity(), true);
     }
 
-    private class ResXmlTreeNodeHeader {
-        private ResChunkHeader header;
-        private long sourceLineNumber; // u32
-        private ResStringPoolRef comment;
-
-        public ResXmlTreeNodeHeader(ResChunkHeader header, ResSource src) {
-            this.header = header;
-            this.sourceLineNumber = src.readU32();
-            this.comment = new ResStringPoolRef(src);
-            src.position(header.chunkOriginalStart + header.headerSize);
+    public void patchInPlace() throws IOException {
+        if (null == sourceFile) {
+            throw new IllegalStateException("Manifest has not been read from a file");
         }
-
-        public void writeTo(ResTarget tgt) {
-            header.writeTo(tgt);
-            tgt.writeU32(sourceLineNumber);
-            comment.writeTo(tgt);
+        if (!isPatchable()) {
+            throw new IllegalStateException("versionName '" + versionName + "' does not fit into its string pool slot");
         }
-
-        @Override
-        public String toString() {
-            return "ResXmlTreeNodeHeader{" +
-                    "header=" + header +
-                    ", sourceLineNumber=" + sourceLineNumber +
-                    ", comment=" + comment +
-                    '}';
+        ResPatch patch = createPatch();
+        if (patch.isEmpty()) {
+            return;
         }
-    }
-
-    private class ResValue {
-        private int size; // u16
-        private int reserved; // u8
-        private int type; // u8
-        private long data; // u32
-
-        private ResValue(ResSource src) {
-            this.size = src.readU16();
-            this.reserved = src.readU8();
-            this.type = src.readU8();
-            this.data = src.readU32();
+        long start = ManifestTracing.start();
+        try (RandomAccessFile out = new RandomAccessFile(sourceFile, "rw")) {
+            patch.applyTo(out.getChannel());
         }
-
-        public void writeTo(ResTarget tgt) {
-            tgt.writeU16(size);
-            tgt.writeU8(reserved);
-            tgt.writeU8(type);
-            tgt.writeU32(data);
-        }
-
-        public void writeToWithNewVersionCode(ResTarget tgt) {
-            if (type != 0x10) {
-                throw new IllegalStateException();
-            }
-            tgt.writeU16(size);
-            tgt.writeU8(reserved);
-            tgt.writeU8(type);
-            tgt.writeU32(AndroidManifest.this.versionCode);
+        ManifestTracing.written(start, patch.length(), true);
+        versionCodeChanged = false;
+        if (versionNameChanged) {
+            stringPool.patched(versionNameIndex & 0xffffffffL, versionName);
+            versionNameChanged = false;
         }
+    }
 
-        public long writeToWithNewVersionIndex(ResTarget tgt, long newIndex) {
-            if (type != 3) {
-                throw new IllegalStateException();
+    /**
+     * The source with {@code versionCode} and {@code versionName} patched in, or {@code null} if they do not
+     * fit into the source. Only reads this manifest, which has to be unchanged.
+     */
+    byte[] patchedSource(int versionCode, String versionName) {
+        long start = ManifestTracing.start();
+        ResPatch patch = new ResPatch();
+        if (versionCode != this.versionCode && ResXmlTree.NONE != versionCodeAttribute) {
+            patch.writeU32(tree.getAttributeSourcePosition(versionCodeAttribute, versionCodeElement) + VALUE_DATA_OFFSET, versionCode & 0xffffffffL);
+        }
+        if (null != versionName && !versionName.equals(this.versionName) && ResXmlTree.NONE != versionNameAttribute) {
+            int ownReferences = versionNameRawIndex == versionNameIndex ? 2 : 1;
+            if (!stringPool.canPatch(versionNameIndex & 0xffffffffL, versionName, ownReferences)) {
+                return null;
             }
-            tgt.writeU16(size);
-            tgt.writeU8(reserved);
-            tgt.writeU8(type);
-            tgt.writeU32(newIndex);
-            return newIndex;
+            stringPool.patchString(patch, versionNameIndex & 0xffffffffL, versionName);
         }
+        byte[] data = src.toByteArray();
+        patch.applyTo(ByteBuffer.wrap(data));
+        ManifestTracing.written(start, data.length, true);
+        return data;
+    }
 
-        @Override
-        public String toString() {
-            String val = "";
-            switch (type) {
-                case 3:
-                    val = "(str:" + stringPool.lookup(data) + ")";
-                    break;
-                case 0x10:
-                    val = "(dec:" + Long.toString(data) + ")";
-            }
-            return "ResValue{" +
-                    "size=" + size +
-                    ", reserved=" + reserved +
-                    ", type=" + type +
-                    ", data=" + data + val +
-                    '}';
+    private ResPatch createPatch() {
+        ResPatch patch = new ResPatch();
+        if (versionCodeChanged && ResXmlTree.NONE != versionCodeAttribute) {
+            patch.writeU32(tree.getAttributeSourcePosition(versionCodeAttribute, versionCodeElement) + VALUE_DATA_OFFSET, versionCode & 0xffffffffL);
         }
-
-        public String asString() {
-            if (3 != type) {
-                throw new IllegalStateException();
-            }
-            return stringPool.lookup(data);
+        if (versionNameChanged) {
+            stringPool.retainSlot(versionNameIndex & 0xffffffffL);
+            stringPool.patchString(patch, versionNameIndex & 0xffffffffL, versionName);
         }
+        return patch;
+    }
 
-        public int asInt() {
-            if (0x10 != type) {
-                throw new IllegalStateException();
-            }
-            return (int) this.data;
-        }
+    /**
+     * Structural problems of the output, checked on the written bytes in memory.
+     */
+    public List<ResMismatch> verify() {
+        ResVerifyTarget tgt = new ResVerifyTarget((int) measure());
+        writeTo(tgt);
+        tgt.close();
+        return tgt.verify();
     }
 
-    private class ResXmlAttribute {
-        private ResStringPoolRef namespace;
-        private ResStringPoolRef name;
-        private ResStringPoolRef rawValue;
-        private ResValue typedValue;
-        private boolean isVersionCode = false;
-        private boolean isVersionName = false;
-
-        private ResXmlAttribute(ResSource src) {
-            this.namespace = new ResStringPoolRef(src);
-            this.name = new ResStringPoolRef(src);
-            this.rawValue = new ResStringPoolRef(src);
-            this.typedValue = new ResValue(src);
-            
-            if ("http://schemas.android.com/apk/res/android".equals(this.namespace.lookup())) {
-                if (-1 == versionCode && "versionCode".equals(name.lookup())) {
-                    versionCode = typedValue.asInt();
-                    isVersionCode = true;
-                } else if (null == versionName && "versionName".equals(name.lookup())) {
-                    versionName = typedValue.asString();
-                    isVersionName = true;
-                }
-            }
+    /**
+     * Structural problems of the output and all regions where it differs from {@code file}.
+     */
+    public List<ResMismatch> verify(File file) throws IOException {
+        ResVerifyTarget tgt = new ResVerifyTarget((int) measure());
+        writeTo(tgt);
+        tgt.close();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return tgt.compare(new ResSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
         }
+    }
 
-        public void writeTo(ResTarget tgt) {
-            this.namespace.writeTo(tgt);
-            this.name.writeTo(tgt);
-            if (isVersionName && versionNameChanged) {
-                long newIndex = stringPool.getIndexOfNewVersionName();
-                this.rawValue.writeTo(tgt, newIndex);
-                typedValue.writeToWithNewVersionIndex(tgt, newIndex);
-            } else if (isVersionCode && versionCodeChanged) {
-                this.rawValue.writeTo(tgt);
-                typedValue.writeToWithNewVersionCode(tgt);
-            } else {
-                this.rawValue.writeTo(tgt);
-                typedValue.writeTo(tgt);
-            }
-        }
-        
-        @Override
-        public String toString() {
-            return "\n\tResXmlAttribute{" +
-                    "namespace=" + namespace +
-                    ", name=" + name +
-                    ", rawValue=" + rawValue +
-                    ", typedValue=" + typedValue +
-                    '}';
+    public void validate(File file) throws IOException {
+        List<ResMismatch> mismatches = verify(file);
+        if (!mismatches.isEmpty()) {
+            throw new IllegalStateException("Output differs from " + file + " in " + mismatches.size() + " places:\n"
+                    + mismatches.stream().map(ResMismatch::toString).collect(Collectors.joining("\n")));
         }
     }
 
-    private class ResXmlStartElement implements ResChunk {
-        private ResXmlTreeNodeHeader header;
-        private ResStringPoolRef namespace;
-        private ResStringPoolRef name;
-        private int attributeStart; // u16
-        private int attributeSize; // u16
-        private int attributeCount; // u16
-        private int idAttributeIndex; // u16
-        private int classAttributeIndex; // u16
-        private int styleAttributeIndex; // u16
-        private ResXmlAttribute[] attributes;
-
-        @Override
-        public void writeTo(ResTarget tgt) {
-            header.writeTo(tgt);
-            namespace.writeTo(tgt);
-            name.writeTo(tgt);
-            tgt.writeU16(this.attributeStart);
-            tgt.writeU16(this.attributeSize);
-            tgt.writeU16(this.attributeCount);
-            tgt.writeU16(this.idAttributeIndex);
-            tgt.writeU16(this.classAttributeIndex);
-            tgt.writeU16(this.styleAttributeIndex);
-            for (int i = 0; i < this.attributeCount; i++) {
-                this.attributes[i].writeTo(tgt);
-            }
-        }
+    public void writeTo(ResTarget tgt) {
+        updateVersionName();
+        this.fileHeader.writeTo(tgt);
+        long startPos = tgt.position();
+        this.stringPool.writeTo(tgt);
+        tree.writeTo(tgt);
+        long length = tgt.position() - startPos;
+        tgt.position(0);
+        long newLength = fileHeader.writeTo(tgt, (int) length);
+        tgt.position(newLength);
+    }
 
-        public ResXmlStartElement(ResChunkHeader chunkHeader, ResSource src) {
-            this.header = new ResXmlTreeNodeHeader(chunkHeader, src);
-            this.namespace = new ResStringPoolRef(src);
-            this.name = new ResStringPoolRef(src);
-            this.attributeStart = src.readU16();
-            this.attributeSize = src.readU16();
-            this.attributeCount = src.readU16();
-            this.idAttributeIndex = src.readU16();
-            this.classAttributeIndex = src.readU16();
-            this.styleAttributeIndex = src.readU16();
-
-            this.attributes = new ResXmlAttribute[this.attributeCount];
-            for (int i = 0; i < this.attributeCount; i++) {
-                this.attributes[i] = new ResXmlAttribute(src);
+    private void updateVersionName() {
+        if (ResXmlTree.NONE != versionNameAttribute) {
+            if (versionNameChanged) {
+                int index = stringPool.indexOf(versionName);
+                if (index < 0 && ResXmlTree.NONE != versionNameAddedIndex) {
+                    index = versionNameAddedIndex;
+                    stringPool.setAdded(index, versionName);
+                } else if (index < 0) {
+                    index = stringPool.add(versionName);
+                    versionNameAddedIndex = index;
+                }
+                tree.setAttributeValue(versionNameAttribute, index, ResXmlTree.TYPE_STRING, index);
+            } else {
+                tree.setAttributeValue(versionNameAttribute, versionNameRawIndex,
+                        0 == versionNameReference ? ResXmlTree.TYPE_STRING : ResXmlTree.TYPE_REFERENCE,
+                        0 == versionNameReference ? versionNameIndex : versionNameReference);
             }
         }
-
-        @Override
-        public String toString() {
-            return "ResXmlStartElement{" +
-                    "header=" + header +
-                    ", namespace=" + namespace +
-                    ", name=" + name +
-                    ", attributeStart=" + attributeStart +
-                    ", attributeSize=" + attributeSize +
-                    ", attributeCount=" + attributeCount +
-                    ", idAttributeIndex=" + idAttributeIndex +
-                    ", classAttributeIndex=" + classAttributeIndex +
-                    ", styleAttributeIndex=" + styleAttributeIndex +
-                    ", attributes=" + Arrays.toString(attributes) +
-                    '}';
-        }
     }
-
 }
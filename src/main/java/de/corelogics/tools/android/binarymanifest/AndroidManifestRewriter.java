@@ -27,22 +27,409 @@
 
 package de.corelogics.tools.android.binarymanifest;
 
-import java.io.File;
+import de.corelogics.tools.android.binarymanifest.trace.JfrManifestTracer;
+import de.corelogics.tools.android.binarymanifest.trace.ManifestStats;
+import de.corelogics.tools.android.binarymanifest.trace.ManifestTracer;
+import de.corelogics.tools.android.binarymanifest.trace.ManifestTracing;
+
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class AndroidManifestRewriter {
-    public static void main(String[] args) throws IOException {
-        new AndroidManifestRewriter().rewrite(new File("AndroidManifest.rewritten.xml"));
+    private static final String USAGE = "Usage: AndroidManifestRewriter [options] <file or directory>...\n" +
+            "  --version-code <formula>    new versionCode, e.g. 'code * 10 + 3'\n" +
+            "  --version-name <template>   new versionName, e.g. '{name}-nightly.{code}'\n" +
+            "  --set <path>@<attribute>=<value>  set an attribute, e.g. 'manifest/uses-sdk@android:minSdkVersion=24'\n" +
+            "  --remove <path>[@<attribute>]     remove an attribute or, without one, the matching elements\n" +
+            "  --add <path>@<attribute>=<value>  add an element, e.g. 'manifest/uses-permission@android:name=android.permission.CAMERA'\n" +
+            "  --list <file>               read further input paths from a file, one per line\n" +
+            "  --threads <n>               parser threads (default: number of cores)\n" +
+            "  --io-threads <n>            threads for APK inputs (default: 4 x parser threads)\n" +
+            "  --max-in-flight-mb <n>      upper bound for input bytes being processed at once (default: 256)\n" +
+            "  --stats                     print parse and write counters at the end\n" +
+            "  --jfr                       emit Java Flight Recorder events for a running recording\n" +
+            "Directories are searched for AndroidManifest.xml and *.apk files, which are rewritten in place.";
+
+    private final ManifestEditor editor;
+    private final int threads;
+    private final int ioThreads;
+    private final Semaphore inFlight;
+    private final int maxInFlightKb;
+    private final ExecutorService sharedParsers;
+    private final ExecutorService sharedIo;
+    private final ManifestCache cache;
+    private ManifestTracer tracer;
+
+    public AndroidManifestRewriter(ManifestEditor editor, int threads, int ioThreads, int maxInFlightMb) {
+        this(editor, threads, ioThreads, maxInFlightMb, null, null, null);
+    }
+
+    /**
+     * Rewriter that runs on the given pools instead of starting its own per batch, and reads loose manifests
+     * through {@code cache} if one is given. The pools are not shut down.
+     */
+    public AndroidManifestRewriter(ManifestEditor editor, ExecutorService parsers, ExecutorService io, int maxInFlightMb, ManifestCache cache) {
+        this(editor, 0, 0, maxInFlightMb, parsers, io, cache);
+    }
+
+    private AndroidManifestRewriter(ManifestEditor editor, int threads, int ioThreads, int maxInFlightMb,
+                                    ExecutorService sharedParsers, ExecutorService sharedIo, ManifestCache cache) {
+        if (maxInFlightMb < 1) {
+            throw new IllegalArgumentException("maxInFlightMb must be at least 1, got " + maxInFlightMb);
+        }
+        this.editor = editor;
+        this.threads = threads;
+        this.ioThreads = ioThreads;
+        this.maxInFlightKb = maxInFlightMb * 1024;
+        this.inFlight = new Semaphore(maxInFlightKb);
+        this.sharedParsers = sharedParsers;
+        this.sharedIo = sharedIo;
+        this.cache = cache;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.exit(run(args, Paths.get("").toAbsolutePath(), System.out, System.err, null, null, null));
+    }
+
+    /**
+     * Runs one command line and returns its exit code. Relative paths are resolved against
+     * {@code workingDirectory}. Without pools, {@code --threads} and {@code --io-threads} size new ones for this
+     * call; {@link ManifestDaemon} passes its long-lived pools and cache instead.
+     */
+    static int run(String[] args, Path workingDirectory, PrintStream out, PrintStream err,
+                   ExecutorService parsers, ExecutorService io, ManifestCache cache) throws IOException, InterruptedException {
+        String versionCode = null;
+        String versionName = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ioThreads = -1;
+        int maxInFlightMb = 256;
+        ManifestStats stats = null;
+        boolean jfr = false;
+        final ManifestEdits edits = new ManifestEdits();
+        List<Path> inputs = new ArrayList<>();
+        final RewriteRules rules;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--version-code":
+                        versionCode = args[++i];
+                        break;
+                    case "--version-name":
+                        versionName = args[++i];
+                        break;
+                    case "--set": {
+                        String[] edit = splitEdit(args[++i], true);
+                        edits.set(edit[0], edit[1], AttributeValue.parse(edit[2]));
+                        break;
+                    }
+                    case "--remove": {
+                        String[] edit = splitEdit(args[++i], false);
+                        if (null == edit[1]) {
+                            edits.removeElement(edit[0]);
+                        } else {
+                            edits.remove(edit[0], edit[1]);
+                        }
+                        break;
+                    }
+                    case "--add": {
+                        String[] edit = splitEdit(args[++i], true);
+                        int slash = edit[0].lastIndexOf('/');
+                        if (slash < 0) {
+                            throw new IllegalArgumentException("Cannot add a root element");
+                        }
+                        edits.addElement(edit[0].substring(0, slash), edit[0].substring(slash + 1), edit[1], AttributeValue.parse(edit[2]));
+                        break;
+                    }
+                    case "--list":
+                        for (String line : Files.readAllLines(workingDirectory.resolve(args[++i]), StandardCharsets.UTF_8)) {
+                            if (!line.trim().isEmpty()) {
+                                inputs.add(workingDirectory.resolve(line.trim()).normalize());
+                            }
+                        }
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--io-threads":
+                        ioThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--max-in-flight-mb":
+                        maxInFlightMb = Integer.parseInt(args[++i]);
+                        if (maxInFlightMb < 1) {
+                            throw new IllegalArgumentException("--max-in-flight-mb must be at least 1");
+                        }
+                        break;
+                    case "--stats":
+                        stats = new ManifestStats();
+                        break;
+                    case "--jfr":
+                        jfr = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        inputs.add(workingDirectory.resolve(args[i]).normalize());
+                }
+            }
+            rules = new RewriteRules(versionCode, versionName);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            err.println(USAGE);
+            return 2;
+        }
+        if (inputs.isEmpty()) {
+            err.println(USAGE);
+            return 2;
+        }
+
+        ManifestEditor editor = new ManifestEditor() {
+            @Override
+            public void edit(AndroidManifest manifest) {
+                manifest.apply(edits);
+                rules.edit(manifest);
+            }
+        };
+        AndroidManifestRewriter rewriter = null == parsers
+                ? new AndroidManifestRewriter(editor, threads, ioThreads > 0 ? ioThreads : 4 * threads, maxInFlightMb)
+                : new AndroidManifestRewriter(editor, parsers, io, maxInFlightMb, cache);
+        if (null != stats && jfr) {
+            rewriter.tracer = ManifestTracer.combine(stats, new JfrManifestTracer());
+        } else if (null != stats) {
+            rewriter.tracer = stats;
+        } else if (jfr) {
+            rewriter.tracer = new JfrManifestTracer();
+        }
+
+        List<Path> files = collect(inputs);
+        long start = System.nanoTime();
+        List<Result> results = rewriter.rewrite(files);
+        int failed = summarize(results, System.nanoTime() - start, out);
+        if (null != stats) {
+            out.println(stats);
+        }
+        return failed > 0 ? 1 : 0;
+    }
+
+    private static List<Path> collect(List<Path> inputs) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        for (Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                Files.walkFileTree(input, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (isManifest(file) || isApk(file)) {
+                            files.add(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } else {
+                files.add(input);
+            }
+        }
+        return files;
+    }
+
+    private static boolean isManifest(Path file) {
+        return ApkRewriter.MANIFEST_ENTRY.equals(file.getFileName().toString());
     }
 
-    private void rewrite(File source) throws IOException {
-        final AndroidManifest manifest = new AndroidManifest(source);
-        System.out.println("Gefunden: versionName='" + manifest.getVersionName() + "', versionCode=" + manifest.getVersionCode());
-//        manifest.validate(source);
-//        manifest.setVersionName("12.0.4-dev.20150115-141802");
-//        manifest.setVersionCode(16_000_000);
-//        manifest.write(new File("AndroidManifest.rewritten.xml"));
-//        manifest.validate(source);
+    static boolean isApk(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".apk");
     }
 
+    public List<Result> rewrite(List<Path> files) throws InterruptedException {
+        boolean shared = null != sharedParsers;
+        ExecutorService parsers = shared ? sharedParsers : new ForkJoinPool(threads);
+        ExecutorService io = shared ? sharedIo : Executors.newFixedThreadPool(ioThreads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>(files.size());
+            for (final Path file : files) {
+                final int permits = permitsFor(file);
+                inFlight.acquire(permits);
+                Callable<Result> task = new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        try {
+                            return rewrite(file);
+                        } finally {
+                            inFlight.release(permits);
+                        }
+                    }
+                };
+                futures.add(isApk(file) ? io.submit(task) : parsers.submit(task));
+            }
+            List<Result> results = new ArrayList<>(futures.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            if (!shared) {
+                parsers.shutdown();
+                io.shutdown();
+                parsers.awaitTermination(1, TimeUnit.MINUTES);
+                io.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        }
+    }
+
+    private int permitsFor(Path file) {
+        try {
+            return (int) Math.max(1, Math.min(maxInFlightKb, Files.size(file) / 1024));
+        } catch (IOException e) {
+            return 1;
+        }
+    }
+
+    public Result rewrite(Path file) {
+        if (null == tracer) {
+            return rewriteTraced(file);
+        }
+        ManifestTracing.setThreadTracer(tracer);
+        try {
+            return rewriteTraced(file);
+        } finally {
+            ManifestTracing.setThreadTracer(null);
+        }
+    }
+
+    private Result rewriteTraced(Path file) {
+        final Result result = new Result(file);
+        long start = System.nanoTime();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            result.bytes = Files.size(file);
+            ManifestEditor editor = new ManifestEditor() {
+                @Override
+                public void edit(AndroidManifest manifest) {
+                    result.oldVersionCode = manifest.getVersionCode();
+                    result.oldVersionName = manifest.getVersionName();
+                    AndroidManifestRewriter.this.editor.edit(manifest);
+                    result.newVersionCode = manifest.getVersionCode();
+                    result.newVersionName = manifest.getVersionName();
+                }
+            };
+            if (isApk(file)) {
+                new ApkRewriter(editor).rewrite(file.toFile(), tmp.toFile());
+            } else {
+                AndroidManifest manifest = null != cache ? cache.get(file.toFile()) : new AndroidManifest(file.toFile());
+                editor.edit(manifest);
+                Files.write(tmp, manifest.toByteArray());
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            result.error = e;
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {}
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static String[] splitEdit(String edit, boolean withValue) {
+        int depth = 0;
+        int at = -1;
+        for (int i = 0; i < edit.length(); i++) {
+            char c = edit.charAt(i);
+            if ('[' == c) {
+                depth++;
+            } else if (']' == c) {
+                depth--;
+            } else if ('@' == c && 0 == depth) {
+                at = i;
+                break;
+            }
+        }
+        if (at < 0) {
+            if (withValue) {
+                throw new IllegalArgumentException("Expected <path>@<attribute>=<value> but got " + edit);
+            }
+            return new String[]{edit, null};
+        }
+        String attribute = edit.substring(at + 1);
+        if (!withValue) {
+            return new String[]{edit.substring(0, at), attribute};
+        }
+        int equals = attribute.indexOf('=');
+        if (equals < 0) {
+            throw new IllegalArgumentException("Expected <path>@<attribute>=<value> but got " + edit);
+        }
+        return new String[]{edit.substring(0, at), attribute.substring(0, equals), attribute.substring(equals + 1)};
+    }
+
+    private static int summarize(List<Result> results, long elapsedNanos, PrintStream out) {
+        int failed = 0;
+        long bytes = 0;
+        long busyNanos = 0;
+        for (Result result : results) {
+            out.println(result);
+            if (null != result.error) {
+                failed++;
+            }
+            bytes += result.bytes;
+            busyNanos += result.nanos;
+        }
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        out.println(results.size() + " files, " + (results.size() - failed) + " rewritten, " + failed + " failed");
+        out.println(String.format("%.1f MB in %.3f s: %.0f files/s, %.1f MB/s, %.3f ms average per file",
+                bytes / 1e6,
+                seconds,
+                results.size() / seconds,
+                bytes / 1e6 / seconds,
+                results.isEmpty() ? 0 : busyNanos / 1e6 / results.size()));
+        return failed;
+    }
+
+    public static class Result {
+        private final Path file;
+        private long bytes;
+        private long nanos;
+        private int oldVersionCode;
+        private int newVersionCode;
+        private String oldVersionName;
+        private String newVersionName;
+        private Exception error;
+
+        private Result(Path file) {
+            this.file = file;
+        }
+
+        public boolean isSuccess() {
+            return null == error;
+        }
+
+        @Override
+        public String toString() {
+            if (null != error) {
+                return "FAILED " + file + ": " + error;
+            }
+            return "OK     " + file +
+                    ": versionCode " + oldVersionCode + " -> " + newVersionCode +
+                    ", versionName '" + oldVersionName + "' -> '" + newVersionName + "'";
+        }
+    }
 }
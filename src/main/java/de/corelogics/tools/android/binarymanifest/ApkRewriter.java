@@ -0,0 +1,448 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Rewrites the AndroidManifest.xml of an APK. All other entries are copied with their local headers and
+ * compressed data untouched, STORED entries keep the alignment recorded in their 0xd935 extra field, or
+ * 4 bytes if they have none. The APK signing block is dropped,
+ * so the result has to be signed again.
+ */
+public class ApkRewriter {
+    public static final String MANIFEST_ENTRY = "AndroidManifest.xml";
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int DEFAULT_ALIGNMENT = 4;
+    private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+
+    private final ManifestEditor editor;
+
+    public ApkRewriter(ManifestEditor editor) {
+        this.editor = editor;
+    }
+
+    public AndroidManifest rewrite(File source, File target) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(source, "r");
+             RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            out.setLength(0);
+            return rewrite(in.getChannel(), out.getChannel());
+        }
+    }
+
+    /**
+     * Reads the binary manifest of an APK without rewriting anything.
+     */
+    public static byte[] readManifest(File apk) throws IOException {
+        try (ZipFile zip = new ZipFile(apk)) {
+            ZipEntry entry = zip.getEntry(MANIFEST_ENTRY);
+            if (null == entry) {
+                throw new IOException("No " + MANIFEST_ENTRY + " found in " + apk);
+            }
+            try (InputStream in = zip.getInputStream(entry)) {
+                return in.readAllBytes();
+            }
+        }
+    }
+
+    /**
+     * Maps an entry of an APK. STORED entries, as {@code resources.arsc} usually is, are mapped in place,
+     * others are inflated onto the heap.
+     */
+    public static ByteBuffer mapEntry(File apk, String name) throws IOException {
+        try (FileChannel in = FileChannel.open(apk.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer endOfCentralDirectory = findEndOfCentralDirectory(in);
+            ByteBuffer centralDirectory = readCentralDirectory(in, endOfCentralDirectory);
+            int entryCount = endOfCentralDirectory.getShort(10) & 0xffff;
+            int position = 0;
+            for (int i = 0; i < entryCount; i++) {
+                Entry entry = new Entry(centralDirectory, position);
+                position += entry.centralHeaderLength;
+                if (!name.equals(entry.name)) {
+                    continue;
+                }
+                long dataOffset = entry.localHeaderOffset + readLocalHeader(in, entry).capacity();
+                if (METHOD_STORED == entry.method) {
+                    return in.map(FileChannel.MapMode.READ_ONLY, dataOffset, entry.compressedSize).order(ByteOrder.LITTLE_ENDIAN);
+                } else if (METHOD_DEFLATED == entry.method) {
+                    return ByteBuffer.wrap(inflate(read(in, dataOffset, (int) entry.compressedSize), (int) entry.uncompressedSize, name))
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                }
+                throw new IOException("Unsupported compression method " + entry.method + " for " + name);
+            }
+            throw new IOException("No " + name + " found in " + apk);
+        }
+    }
+
+    private AndroidManifest rewrite(FileChannel in, FileChannel out) throws IOException {
+        ByteBuffer endOfCentralDirectory = findEndOfCentralDirectory(in);
+        ByteBuffer centralDirectory = readCentralDirectory(in, endOfCentralDirectory);
+        int entryCount = endOfCentralDirectory.getShort(10) & 0xffff;
+        List<Entry> entries = new ArrayList<>(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            Entry entry = new Entry(centralDirectory, position);
+            entries.add(entry);
+            position += entry.centralHeaderLength;
+        }
+
+        List<Entry> entriesInFileOrder = new ArrayList<>(entries);
+        Collections.sort(entriesInFileOrder, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.localHeaderOffset, b.localHeaderOffset);
+            }
+        });
+
+        AndroidManifest manifest = null;
+        for (Entry entry : entriesInFileOrder) {
+            entry.newLocalHeaderOffset = out.position();
+            if (MANIFEST_ENTRY.equals(entry.name)) {
+                manifest = rewriteManifest(in, out, entry);
+            } else {
+                copyEntry(in, out, entry);
+            }
+        }
+        if (null == manifest) {
+            throw new IOException("No " + MANIFEST_ENTRY + " found");
+        }
+
+        long newCentralDirectoryOffset = out.position();
+        for (Entry entry : entries) {
+            ByteBuffer header = centralDirectory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            header.limit(entry.centralHeaderOffset + entry.centralHeaderLength);
+            header.position(entry.centralHeaderOffset);
+            header = header.slice().order(ByteOrder.LITTLE_ENDIAN);
+            header.putShort(8, (short) entry.flags);
+            header.putInt(16, (int) entry.crc);
+            header.putInt(20, (int) entry.compressedSize);
+            header.putInt(24, (int) entry.uncompressedSize);
+            header.putInt(42, (int) entry.newLocalHeaderOffset);
+            writeFully(out, header);
+        }
+        long newCentralDirectorySize = out.position() - newCentralDirectoryOffset;
+        endOfCentralDirectory.putInt(12, (int) newCentralDirectorySize);
+        endOfCentralDirectory.putInt(16, (int) newCentralDirectoryOffset);
+        endOfCentralDirectory.rewind();
+        writeFully(out, endOfCentralDirectory);
+        return manifest;
+    }
+
+    private static ByteBuffer readCentralDirectory(FileChannel in, ByteBuffer endOfCentralDirectory) throws IOException {
+        int entryCount = endOfCentralDirectory.getShort(10) & 0xffff;
+        long centralDirectorySize = endOfCentralDirectory.getInt(12) & 0xffffffffL;
+        long centralDirectoryOffset = endOfCentralDirectory.getInt(16) & 0xffffffffL;
+        if (0xffff == entryCount || 0xffffffffL == centralDirectoryOffset) {
+            throw new IOException("ZIP64 archives are not supported");
+        }
+        return read(in, centralDirectoryOffset, (int) centralDirectorySize);
+    }
+
+    private void copyEntry(FileChannel in, FileChannel out, Entry entry) throws IOException {
+        ByteBuffer localHeader = readLocalHeader(in, entry);
+        long dataOffset = entry.localHeaderOffset + localHeader.capacity();
+        if (METHOD_STORED == entry.method) {
+            int alignment = alignmentOf(localHeader);
+            if (0 != (out.position() + localHeader.capacity()) % alignment) {
+                localHeader = align(localHeader, out.position(), alignment);
+            }
+        }
+        writeFully(out, localHeader);
+        long dataLength = entry.compressedSize;
+        if (0 != (entry.flags & FLAG_DATA_DESCRIPTOR)) {
+            dataLength += dataDescriptorLength(in, dataOffset + entry.compressedSize);
+        }
+        transfer(in, dataOffset, dataLength, out);
+    }
+
+    private AndroidManifest rewriteManifest(FileChannel in, FileChannel out, Entry entry) throws IOException {
+        ByteBuffer localHeader = readLocalHeader(in, entry);
+        ByteBuffer compressed = read(in, entry.localHeaderOffset + localHeader.capacity(), (int) entry.compressedSize);
+        byte[] content;
+        if (METHOD_STORED == entry.method) {
+            content = new byte[(int) entry.compressedSize];
+            compressed.get(content);
+        } else if (METHOD_DEFLATED == entry.method) {
+            content = inflate(compressed, (int) entry.uncompressedSize, MANIFEST_ENTRY);
+        } else {
+            throw new IOException("Unsupported compression method " + entry.method + " for " + MANIFEST_ENTRY);
+        }
+
+        AndroidManifest manifest = new AndroidManifest(content);
+        editor.edit(manifest);
+        content = manifest.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        byte[] data = METHOD_DEFLATED == entry.method ? deflate(content) : content;
+        entry.flags &= ~FLAG_DATA_DESCRIPTOR;
+        entry.crc = crc.getValue();
+        entry.compressedSize = data.length;
+        entry.uncompressedSize = content.length;
+
+        if (METHOD_STORED == entry.method) {
+            int alignment = alignmentOf(localHeader);
+            if (0 != (out.position() + localHeader.capacity()) % alignment) {
+                localHeader = align(localHeader, out.position(), alignment);
+            }
+        }
+        localHeader.putShort(6, (short) entry.flags);
+        localHeader.putInt(14, (int) entry.crc);
+        localHeader.putInt(18, (int) entry.compressedSize);
+        localHeader.putInt(22, (int) entry.uncompressedSize);
+        localHeader.rewind();
+        writeFully(out, localHeader);
+        writeFully(out, ByteBuffer.wrap(data));
+        return manifest;
+    }
+
+    private static ByteBuffer readLocalHeader(FileChannel in, Entry entry) throws IOException {
+        ByteBuffer fixed = read(in, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (LOCAL_HEADER_SIGNATURE != fixed.getInt(0)) {
+            throw new IOException("Bad local header for " + entry.name);
+        }
+        int nameLength = fixed.getShort(26) & 0xffff;
+        int extraLength = fixed.getShort(28) & 0xffff;
+        return read(in, entry.localHeaderOffset, LOCAL_HEADER_SIZE + nameLength + extraLength);
+    }
+
+    /**
+     * Alignment requested by the entry's 0xd935 extra field, as written by zipalign ({@code -p} uses 4096 or
+     * 16384 for native libraries), or 4 if the field is absent.
+     */
+    private static int alignmentOf(ByteBuffer localHeader) {
+        int nameLength = localHeader.getShort(26) & 0xffff;
+        int extraLength = localHeader.getShort(28) & 0xffff;
+        int extraStart = LOCAL_HEADER_SIZE + nameLength;
+        int position = extraStart;
+        while (position + 4 <= extraStart + extraLength) {
+            int id = localHeader.getShort(position) & 0xffff;
+            int size = localHeader.getShort(position + 2) & 0xffff;
+            if (ALIGNMENT_EXTRA_ID == id && size >= 2 && position + 6 <= extraStart + extraLength) {
+                int alignment = localHeader.getShort(position + 4) & 0xffff;
+                return alignment > 0 ? alignment : DEFAULT_ALIGNMENT;
+            }
+            position += 4 + size;
+        }
+        return DEFAULT_ALIGNMENT;
+    }
+
+    private ByteBuffer align(ByteBuffer localHeader, long offset, int alignment) {
+        int nameLength = localHeader.getShort(26) & 0xffff;
+        int extraLength = localHeader.getShort(28) & 0xffff;
+        int extraStart = LOCAL_HEADER_SIZE + nameLength;
+
+        ByteBuffer extra = ByteBuffer.allocate(extraLength).order(ByteOrder.LITTLE_ENDIAN);
+        int position = extraStart;
+        while (position + 4 <= extraStart + extraLength) {
+            int id = localHeader.getShort(position) & 0xffff;
+            int size = localHeader.getShort(position + 2) & 0xffff;
+            int end = Math.min(position + 4 + size, extraStart + extraLength);
+            if (ALIGNMENT_EXTRA_ID != id) {
+                for (int i = position; i < end; i++) {
+                    extra.put(localHeader.get(i));
+                }
+            }
+            position = end;
+        }
+
+        int unaligned = (int) ((offset + extraStart + extra.position() + 6) % alignment);
+        int padding = 0 == unaligned ? 0 : alignment - unaligned;
+        ByteBuffer aligned = ByteBuffer.allocate(extraStart + extra.position() + 6 + padding).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < extraStart; i++) {
+            aligned.put(localHeader.get(i));
+        }
+        extra.flip();
+        aligned.put(extra);
+        aligned.putShort((short) ALIGNMENT_EXTRA_ID);
+        aligned.putShort((short) (2 + padding));
+        aligned.putShort((short) alignment);
+        aligned.putShort(28, (short) (aligned.capacity() - extraStart));
+        aligned.rewind();
+        return aligned;
+    }
+
+    private int dataDescriptorLength(FileChannel in, long offset) throws IOException {
+        return DATA_DESCRIPTOR_SIGNATURE == read(in, offset, 4).getInt(0) ? 16 : 12;
+    }
+
+    private static ByteBuffer findEndOfCentralDirectory(FileChannel in) throws IOException {
+        long size = in.size();
+        int searchLength = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + 0xffff);
+        ByteBuffer tail = read(in, size - searchLength, searchLength);
+        for (int i = searchLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (END_OF_CENTRAL_DIRECTORY_SIGNATURE == tail.getInt(i)) {
+                int commentLength = tail.getShort(i + 20) & 0xffff;
+                if (i + END_OF_CENTRAL_DIRECTORY_SIZE + commentLength == searchLength) {
+                    tail.limit(searchLength);
+                    tail.position(i);
+                    return tail.slice().order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+        }
+        throw new IOException("Not a ZIP archive");
+    }
+
+    private static byte[] inflate(ByteBuffer compressed, int uncompressedSize, String name) throws IOException {
+        byte[] input = new byte[compressed.remaining()];
+        compressed.get(input);
+        byte[] content = new byte[uncompressedSize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, length, content.length - length);
+                if (0 == inflated && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != content.length) {
+                throw new IOException("Truncated " + name);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] data = new byte[content.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, 2 * data.length);
+                }
+                length += deflater.deflate(data, length, data.length - length);
+            }
+            return Arrays.copyOf(data, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel in, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void transfer(FileChannel in, long offset, long length, FileChannel out) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            long count = in.transferTo(offset + transferred, length - transferred, out);
+            if (count <= 0) {
+                throw new IOException("Unexpected end of archive");
+            }
+            transferred += count;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    private static class Entry {
+        private final int centralHeaderOffset;
+        private final int centralHeaderLength;
+        private final String name;
+        private final int method;
+        private final long localHeaderOffset;
+        private int flags;
+        private long crc;
+        private long compressedSize;
+        private long uncompressedSize;
+        private long newLocalHeaderOffset;
+
+        private Entry(ByteBuffer centralDirectory, int offset) throws IOException {
+            if (CENTRAL_HEADER_SIGNATURE != centralDirectory.getInt(offset)) {
+                throw new IOException("Bad central directory header at " + offset);
+            }
+            this.centralHeaderOffset = offset;
+            this.flags = centralDirectory.getShort(offset + 8) & 0xffff;
+            this.method = centralDirectory.getShort(offset + 10) & 0xffff;
+            this.crc = centralDirectory.getInt(offset + 16) & 0xffffffffL;
+            this.compressedSize = centralDirectory.getInt(offset + 20) & 0xffffffffL;
+            this.uncompressedSize = centralDirectory.getInt(offset + 24) & 0xffffffffL;
+            int nameLength = centralDirectory.getShort(offset + 28) & 0xffff;
+            int extraLength = centralDirectory.getShort(offset + 30) & 0xffff;
+            int commentLength = centralDirectory.getShort(offset + 32) & 0xffff;
+            this.localHeaderOffset = centralDirectory.getInt(offset + 42) & 0xffffffffL;
+            this.centralHeaderLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer nameBuffer = centralDirectory.duplicate();
+            nameBuffer.position(offset + CENTRAL_HEADER_SIZE);
+            nameBuffer.get(nameBytes);
+            this.name = new String(nameBytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Non-blocking reads and writes of manifests over {@link AsynchronousFileChannel}. Opening, transferring,
+ * parsing and serializing all run on the given executor and chain through completion handlers, so no thread
+ * waits for a file in flight and any number of jobs can share a small pool.
+ * <p>
+ * A manifest handed to a write must not be used by the caller until the returned future completes.
+ */
+public final class AsyncManifestFiles {
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+    private static final Set<StandardOpenOption> READ = EnumSet.of(StandardOpenOption.READ);
+    private static final Set<StandardOpenOption> WRITE = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+    private AsyncManifestFiles() {
+    }
+
+    public static CompletableFuture<AndroidManifest> read(File file, ExecutorService executor) {
+        return readBytes(file, executor).thenApply(AndroidManifest::new);
+    }
+
+    public static CompletableFuture<ManifestSnapshot> readSnapshot(File file, ExecutorService executor) {
+        return readBytes(file, executor).thenApply(ManifestSnapshot::new);
+    }
+
+    public static CompletableFuture<ByteBuffer> readBytes(File file, ExecutorService executor) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        submit(executor, result, () -> {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(), READ, executor);
+            long size;
+            try {
+                size = channel.size();
+                if (size > MAX_LENGTH) {
+                    throw new IOException(file + " exceeds " + MAX_LENGTH + " bytes");
+                }
+            } catch (IOException | RuntimeException e) {
+                try {
+                    channel.close();
+                } catch (IOException closeFailure) {
+                    e.addSuppressed(closeFailure);
+                }
+                throw e;
+            }
+            new Transfer(channel, file, false, result).next(ByteBuffer.allocate((int) size));
+        });
+        return result;
+    }
+
+    /**
+     * Serializes {@code manifest} on the executor and writes it to {@code file}.
+     */
+    public static CompletableFuture<Void> write(AndroidManifest manifest, File file, ExecutorService executor) {
+        return CompletableFuture.supplyAsync(manifest::toByteArray, executor).thenCompose(data -> write(data, file, executor));
+    }
+
+    public static CompletableFuture<Void> write(ManifestSnapshot snapshot, File file, ExecutorService executor) {
+        return CompletableFuture.supplyAsync(snapshot::toByteArray, executor).thenCompose(data -> write(data, file, executor));
+    }
+
+    public static CompletableFuture<Void> write(byte[] data, File file, ExecutorService executor) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        submit(executor, result, () -> {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(), WRITE, executor);
+            new Transfer(channel, file, true, result).next(ByteBuffer.wrap(data));
+        });
+        return result.thenApply(buffer -> null);
+    }
+
+    /**
+     * Reads {@code source}, applies {@code editor} and writes the result to {@code target}, which may be the
+     * same file. The result goes to a sibling temp file first and is moved into place once complete, so a failed
+     * write leaves {@code target} as it was.
+     */
+    public static CompletableFuture<AndroidManifest> rewrite(File source, File target, ManifestEditor editor, ExecutorService executor) {
+        Path tmp = target.toPath().resolveSibling(target.getName() + ".tmp");
+        CompletableFuture<AndroidManifest> result = new CompletableFuture<>();
+        read(source, executor).thenCompose(manifest -> {
+            editor.edit(manifest);
+            byte[] data = manifest.toByteArray();
+            return write(data, tmp.toFile(), executor).thenApply(done -> manifest);
+        }).whenComplete((manifest, e) -> {
+            if (null != e) {
+                fail(result, e, tmp);
+                return;
+            }
+            try {
+                Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException moveFailure) {
+                fail(result, moveFailure, tmp);
+                return;
+            }
+            result.complete(manifest);
+        });
+        return result;
+    }
+
+    private static void fail(CompletableFuture<?> result, Throwable e, Path tmp) {
+        try {
+            Files.deleteIfExists(tmp);
+        } catch (IOException deleteFailure) {
+            e.addSuppressed(deleteFailure);
+        }
+        result.completeExceptionally(e);
+    }
+
+    private static void submit(ExecutorService executor, CompletableFuture<?> result, IoTask task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private interface IoTask {
+        void run() throws IOException;
+    }
+
+    private static class Transfer implements CompletionHandler<Integer, ByteBuffer> {
+        private final AsynchronousFileChannel channel;
+        private final File file;
+        private final boolean write;
+        private final CompletableFuture<ByteBuffer> result;
+        private long position;
+
+        private Transfer(AsynchronousFileChannel channel, File file, boolean write, CompletableFuture<ByteBuffer> result) {
+            this.channel = channel;
+            this.file = file;
+            this.write = write;
+            this.result = result;
+        }
+
+        private void next(ByteBuffer buffer) {
+            if (!buffer.hasRemaining()) {
+                completed(0, buffer);
+            } else if (write) {
+                channel.write(buffer, position, buffer, this);
+            } else {
+                channel.read(buffer, position, buffer, this);
+            }
+        }
+
+        @Override
+        public void completed(Integer count, ByteBuffer buffer) {
+            if (count < 0) {
+                failed(new IOException("Unexpected end of " + file), buffer);
+                return;
+            }
+            position += count;
+            if (buffer.hasRemaining()) {
+                try {
+                    next(buffer);
+                } catch (RuntimeException e) {
+                    failed(e, buffer);
+                }
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            buffer.flip();
+            result.complete(buffer);
+        }
+
+        @Override
+        public void failed(Throwable e, ByteBuffer buffer) {
+            try {
+                channel.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            result.completeExceptionally(e);
+        }
+    }
+}
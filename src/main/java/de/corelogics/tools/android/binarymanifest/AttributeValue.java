@@ -0,0 +1,133 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlTree;
+
+/**
+ * Typed attribute value of a {@link ManifestEdits} batch.
+ */
+public final class AttributeValue {
+    private final int type;
+    private final int data;
+    private final String string;
+
+    private AttributeValue(int type, int data, String string) {
+        this.type = type;
+        this.data = data;
+        this.string = string;
+    }
+
+    public static AttributeValue string(String value) {
+        if (null == value) {
+            throw new IllegalArgumentException("String value must not be null");
+        }
+        return new AttributeValue(ResXmlTree.TYPE_STRING, 0, value);
+    }
+
+    public static AttributeValue integer(int value) {
+        return new AttributeValue(ResXmlTree.TYPE_INT_DEC, value, null);
+    }
+
+    public static AttributeValue hex(int value) {
+        return new AttributeValue(ResXmlTree.TYPE_INT_HEX, value, null);
+    }
+
+    public static AttributeValue bool(boolean value) {
+        return new AttributeValue(ResXmlTree.TYPE_INT_BOOLEAN, value ? -1 : 0, null);
+    }
+
+    public static AttributeValue reference(int resourceId) {
+        return new AttributeValue(ResXmlTree.TYPE_REFERENCE, resourceId, null);
+    }
+
+    /**
+     * Value of any non-string type, with {@code data} as the platform stores it.
+     */
+    public static AttributeValue typed(int type, int data) {
+        if (ResXmlTree.TYPE_STRING == type) {
+            throw new IllegalArgumentException("Use string() for string values");
+        }
+        return new AttributeValue(type, data, null);
+    }
+
+    /**
+     * Guesses the type from the text: {@code true}/{@code false}, {@code @0x7f010001} references,
+     * {@code 0x1f} hex and decimal integers, anything else is a string.
+     */
+    public static AttributeValue parse(String text) {
+        if ("true".equals(text) || "false".equals(text)) {
+            return bool("true".equals(text));
+        }
+        try {
+            if (text.startsWith("@0x")) {
+                return reference(Integer.parseUnsignedInt(text.substring(3), 16));
+            }
+            if (text.startsWith("0x")) {
+                return hex(Integer.parseUnsignedInt(text.substring(2), 16));
+            }
+            if (text.matches("-?[0-9]+")) {
+                return integer(Integer.parseInt(text));
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return string(text);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getData() {
+        return data;
+    }
+
+    public String getString() {
+        return string;
+    }
+
+    public boolean isString() {
+        return ResXmlTree.TYPE_STRING == type;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case ResXmlTree.TYPE_STRING:
+                return string;
+            case ResXmlTree.TYPE_INT_BOOLEAN:
+                return Boolean.toString(0 != data);
+            case ResXmlTree.TYPE_INT_HEX:
+                return "0x" + Integer.toHexString(data);
+            case ResXmlTree.TYPE_REFERENCE:
+                return "@0x" + Integer.toHexString(data);
+            default:
+                return Integer.toString(data);
+        }
+    }
+}
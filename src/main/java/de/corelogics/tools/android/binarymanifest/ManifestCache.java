@@ -0,0 +1,278 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parsed manifests by content, evicted in LRU order once their approximate heap footprint exceeds a byte
+ * budget. Lookups by file first compare path, size and modification time with the last read of that path
+ * and only read and hash the content if they differ; equal content read from different paths or APKs
+ * shares one entry.
+ * <p>
+ * The cached manifests are never handed out. Every lookup returns an independent copy, which costs copying
+ * the parsed tables instead of parsing, so callers may change it freely. All methods are thread-safe,
+ * misses are parsed outside the lock.
+ */
+public class ManifestCache {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, FileKey> files = new HashMap<>();
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ManifestCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache budget must be positive but is " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Manifest of a loose {@code AndroidManifest.xml} or of an APK. Copies of loose manifests keep the file
+     * as their source, so {@link AndroidManifest#patchInPlace()} works on them.
+     */
+    public AndroidManifest get(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        boolean apk = file.getName().toLowerCase().endsWith(".apk");
+        File sourceFile = apk ? null : file;
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        synchronized (this) {
+            FileKey known = files.get(path);
+            if (null != known && known.size == size && known.modified == modified) {
+                Entry entry = entries.get(known.key);
+                if (null != entry) {
+                    hits.increment();
+                    return entry.manifest.copy(sourceFile);
+                }
+            }
+        }
+        byte[] data = apk ? ApkRewriter.readManifest(file) : Files.readAllBytes(path);
+        return get(data, path, size, modified, sourceFile);
+    }
+
+    /**
+     * Manifest with the given content.
+     */
+    public AndroidManifest get(byte[] data) {
+        return get(data, null, 0, 0, null);
+    }
+
+    private AndroidManifest get(byte[] data, Path path, long size, long modified, File sourceFile) {
+        Key key = new Key(data);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (null != entry) {
+                hits.increment();
+                remember(path, size, modified, entry);
+                return entry.manifest.copy(sourceFile);
+            }
+        }
+        misses.increment();
+        AndroidManifest parsed = new AndroidManifest(data);
+        Entry parsedEntry = new Entry(key, parsed, parsed.footprint());
+        if (parsedEntry.weight > maxBytes) {
+            return parsed.copy(sourceFile);
+        }
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (null == entry) {
+                entry = parsedEntry;
+                entries.put(key, entry);
+                bytes += entry.weight;
+                evict();
+            }
+            remember(path, size, modified, entry);
+            return entry.manifest.copy(sourceFile);
+        }
+    }
+
+    private void remember(Path path, long size, long modified, Entry entry) {
+        if (null != path) {
+            FileKey previous = files.put(path, new FileKey(size, modified, entry.key));
+            if (null == previous || !previous.key.equals(entry.key)) {
+                entry.paths.add(path);
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.weight;
+            for (Path path : eldest.paths) {
+                FileKey known = files.get(path);
+                if (null != known && known.key.equals(eldest.key)) {
+                    files.remove(path);
+                }
+            }
+            evictions.increment();
+        }
+    }
+
+    public synchronized void invalidate(File file) {
+        files.remove(file.toPath().toAbsolutePath().normalize());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        files.clear();
+        bytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = getHitCount();
+        long lookups = hitCount + getMissCount();
+        return "ManifestCache{" +
+                "entries=" + getSize() +
+                ", bytes=" + getBytes() + "/" + maxBytes +
+                ", hits=" + hitCount +
+                ", misses=" + getMissCount() +
+                ", evictions=" + getEvictionCount() +
+                String.format(", hitRate=%.1f%%", 0 == lookups ? 0.0 : 100.0 * hitCount / lookups) +
+                '}';
+    }
+
+    /**
+     * Content key; the 64 bit hash only narrows the lookup, equal hashes are confirmed by comparing the bytes.
+     */
+    private static class Key {
+        private final byte[] data;
+        private final long hash;
+
+        private Key(byte[] data) {
+            this.data = data;
+            this.hash = hash(data);
+        }
+
+        private static long hash(byte[] data) {
+            long hash = 0x9e3779b97f4a7c15L ^ data.length;
+            int words = data.length / 8;
+            for (int i = 0; i < words; i++) {
+                hash = Long.rotateLeft(hash ^ (long) LONGS.get(data, 8 * i) * 0xbf58476d1ce4e5b9L, 31) * 0x94d049bb133111ebL;
+            }
+            for (int i = 8 * words; i < data.length; i++) {
+                hash = (hash ^ (data[i] & 0xff)) * 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            return hash ^ hash >>> 33;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(data, other.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash);
+        }
+    }
+
+    private static class FileKey {
+        private final long size;
+        private final long modified;
+        private final Key key;
+
+        private FileKey(long size, long modified, Key key) {
+            this.size = size;
+            this.modified = modified;
+            this.key = key;
+        }
+    }
+
+    private static class Entry {
+        private final Key key;
+        private final AndroidManifest manifest;
+        private final long weight;
+        private final List<Path> paths = new ArrayList<>(1);
+
+        private Entry(Key key, AndroidManifest manifest, long weight) {
+            this.key = key;
+            this.manifest = manifest;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import de.corelogics.tools.android.binarymanifest.chunks.ResHeapTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResStringPool;
+import de.corelogics.tools.android.binarymanifest.chunks.ResTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlTree;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiles a textual {@code AndroidManifest.xml} to binary XML in-process, the way aapt2 links a manifest.
+ * Attributes in the android namespace get the resource ID and value format from {@link AndroidAttributes};
+ * their names go first in the string pool, in resource ID order, so that the resource map covers exactly
+ * them. Resource references have to be given as IDs ({@code @0x7f0b0001}) since no resource table is
+ * linked, and {@code tools:} attributes are dropped.
+ */
+public class ManifestCompiler {
+    public static final String TOOLS_NAMESPACE = "http://schemas.android.com/tools";
+
+    private static final int NODE_HEADER_SIZE = 16;
+    private static final int ATTRIBUTE_SIZE = 20;
+    private static final String[] DIMENSION_UNITS = {"px", "dp", "dip", "sp", "pt", "in", "mm"};
+    private static final int[] DIMENSION_UNIT_VALUES = {0, 1, 1, 2, 3, 4, 5};
+
+    private static final ThreadLocal<SAXParser> PARSERS = new ThreadLocal<SAXParser>() {
+        @Override
+        protected SAXParser initialValue() {
+            try {
+                SAXParserFactory factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+                return factory.newSAXParser();
+            } catch (ParserConfigurationException | SAXException e) {
+                throw new IllegalStateException("No namespace aware SAX parser available", e);
+            }
+        }
+    };
+
+    private boolean utf8;
+
+    public void setUtf8(boolean utf8) {
+        this.utf8 = utf8;
+    }
+
+    public byte[] compile(File source) throws IOException {
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            return compile(in);
+        }
+    }
+
+    public byte[] compile(String xml) {
+        try {
+            return compile(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    public byte[] compile(InputStream in) throws IOException {
+        ResHeapTarget tgt = new ResHeapTarget();
+        compile(in, tgt);
+        tgt.close();
+        return tgt.toByteArray();
+    }
+
+    /**
+     * Parses the textual manifest from {@code in} and writes the binary document to {@code tgt}.
+     *
+     * @throws IOException if the input is no well-formed XML
+     * @throws IllegalArgumentException for unknown android attributes and values that do not fit their format
+     */
+    public void compile(InputStream in, ResTarget tgt) throws IOException {
+        Document document = new Document();
+        SAXParser parser = PARSERS.get();
+        try {
+            parser.parse(new InputSource(in), document);
+        } catch (SAXException e) {
+            throw new IOException("Invalid manifest XML: " + e.getMessage(), e);
+        } finally {
+            parser.reset();
+        }
+        document.writeTo(tgt, utf8);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean utf8 = false;
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if ("--utf8".equals(arg)) {
+                utf8 = true;
+            } else {
+                files.add(arg);
+            }
+        }
+        if (2 != files.size()) {
+            System.err.println("Usage: ManifestCompiler [--utf8] <AndroidManifest.xml source> <binary output>");
+            System.exit(2);
+        }
+        ManifestCompiler compiler = new ManifestCompiler();
+        compiler.setUtf8(utf8);
+        try {
+            Files.write(Paths.get(files.get(1)), compiler.compile(new File(files.get(0))));
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(files.get(0) + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Encodes {@code text} for an attribute with the given {@code AndroidAttributes.FORMAT_*} bits. Attributes
+     * without a known format keep their text as a string.
+     */
+    static AttributeValue encode(String text, int resourceId) {
+        int format = 0 == resourceId ? 0 : AndroidAttributes.getFormat(resourceId);
+        if (0 == format) {
+            return AttributeValue.string(text);
+        }
+        String trimmed = text.trim();
+        if (trimmed.startsWith("@") || trimmed.startsWith("?")) {
+            if ("@null".equals(trimmed)) {
+                return AttributeValue.reference(0);
+            }
+            if (trimmed.startsWith("@0x")) {
+                return AttributeValue.reference(Integer.parseUnsignedInt(trimmed.substring(3), 16));
+            }
+            if (trimmed.startsWith("?0x")) {
+                return AttributeValue.typed(ResXmlTree.TYPE_ATTRIBUTE, Integer.parseUnsignedInt(trimmed.substring(3), 16));
+            }
+            if (0 == (format & AndroidAttributes.FORMAT_STRING) || trimmed.indexOf('/') > 0) {
+                throw new IllegalArgumentException("Cannot resolve " + trimmed + " without a resource table, use @0x<id>");
+            }
+        }
+        if (0 != (format & (AndroidAttributes.FORMAT_ENUM | AndroidAttributes.FORMAT_FLAGS)) && !trimmed.isEmpty()) {
+            Map<String, Integer> symbols = AndroidAttributes.getSymbols(resourceId);
+            if (0 != (format & AndroidAttributes.FORMAT_ENUM) && symbols.containsKey(trimmed)) {
+                return AttributeValue.integer(symbols.get(trimmed));
+            }
+            if (0 != (format & AndroidAttributes.FORMAT_FLAGS)) {
+                int flags = 0;
+                boolean known = true;
+                for (String symbol : trimmed.split("\\|")) {
+                    Integer value = symbols.get(symbol.trim());
+                    known &= null != value;
+                    flags |= null == value ? 0 : value;
+                }
+                if (known) {
+                    return AttributeValue.hex(flags);
+                }
+            }
+        }
+        if (0 != (format & AndroidAttributes.FORMAT_BOOLEAN) && ("true".equals(trimmed) || "false".equals(trimmed))) {
+            return AttributeValue.bool("true".equals(trimmed));
+        }
+        if (0 != (format & (AndroidAttributes.FORMAT_INTEGER | AndroidAttributes.FORMAT_ENUM | AndroidAttributes.FORMAT_FLAGS))) {
+            try {
+                if (trimmed.startsWith("0x") || trimmed.startsWith("0X")) {
+                    return AttributeValue.hex(Integer.parseUnsignedInt(trimmed.substring(2), 16));
+                }
+                return AttributeValue.integer(Integer.parseInt(trimmed));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (0 != (format & AndroidAttributes.FORMAT_COLOR) && trimmed.matches("#([0-9a-fA-F]{3,4}|[0-9a-fA-F]{6}|[0-9a-fA-F]{8})")) {
+            return color(trimmed.substring(1));
+        }
+        if (0 != (format & AndroidAttributes.FORMAT_DIMENSION)) {
+            for (int i = 0; i < DIMENSION_UNITS.length; i++) {
+                if (trimmed.endsWith(DIMENSION_UNITS[i])) {
+                    try {
+                        float value = Float.parseFloat(trimmed.substring(0, trimmed.length() - DIMENSION_UNITS[i].length()));
+                        return AttributeValue.typed(ResXmlTree.TYPE_DIMENSION, complex(value, DIMENSION_UNIT_VALUES[i]));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        if (0 != (format & AndroidAttributes.FORMAT_FLOAT) && trimmed.matches("[-+]?[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?")) {
+            return AttributeValue.typed(ResXmlTree.TYPE_FLOAT, Float.floatToIntBits(Float.parseFloat(trimmed)));
+        }
+        if (0 != (format & AndroidAttributes.FORMAT_STRING)) {
+            return AttributeValue.string(text);
+        }
+        throw new IllegalArgumentException("'" + text + "' is no valid value for android:" + AndroidAttributes.getName(resourceId));
+    }
+
+    private static AttributeValue color(String hex) {
+        int value = (int) Long.parseLong(hex, 16);
+        switch (hex.length()) {
+            case 3:
+                return AttributeValue.typed(ResXmlTree.TYPE_INT_COLOR_RGB4, 0xff000000 | expand(value));
+            case 4:
+                return AttributeValue.typed(ResXmlTree.TYPE_INT_COLOR_ARGB4, expand(value >>> 12) << 24 | expand(value & 0xfff));
+            case 6:
+                return AttributeValue.typed(ResXmlTree.TYPE_INT_COLOR_RGB8, 0xff000000 | value);
+            case 8:
+                return AttributeValue.typed(ResXmlTree.TYPE_INT_COLOR_ARGB8, value);
+            default:
+                throw new IllegalArgumentException("Invalid color #" + hex);
+        }
+    }
+
+    private static int expand(int nibbles) {
+        int value = 0;
+        for (int shift = 8; shift >= 0; shift -= 4) {
+            int nibble = (nibbles >>> shift) & 0xf;
+            value = value << 8 | nibble << 4 | nibble;
+        }
+        return value;
+    }
+
+    /**
+     * Packs a dimension the way the platform's {@code TypedValue} expects it: a 24 bit mantissa with one of
+     * four radix positions and the unit in the low nibble.
+     */
+    private static int complex(float value, int unit) {
+        boolean negative = value < 0;
+        long bits = (long) (Math.abs(value) * (1 << 23) + 0.5f);
+        int radix;
+        int shift;
+        if (0 == (bits & 0x7fffff)) {
+            radix = 0;
+            shift = 23;
+        } else if (0 == (bits & 0xffffffffff800000L)) {
+            radix = 3;
+            shift = 0;
+        } else if (0 == (bits & 0xffffffff80000000L)) {
+            radix = 2;
+            shift = 8;
+        } else if (0 == (bits & 0xffffff8000000000L)) {
+            radix = 1;
+            shift = 16;
+        } else {
+            radix = 0;
+            shift = 23;
+        }
+        int mantissa = (int) ((bits >> shift) & 0xffffff);
+        if (negative) {
+            mantissa = -mantissa & 0xffffff;
+        }
+        return mantissa << 8 | radix << 4 | unit;
+    }
+
+    private static class Node {
+        private final int type;
+        private final int line;
+        private final String namespace;
+        private final String name;
+        private final List<Attribute> attributes;
+
+        private Node(int type, int line, String namespace, String name, List<Attribute> attributes) {
+            this.type = type;
+            this.line = line;
+            this.namespace = namespace;
+            this.name = name;
+            this.attributes = attributes;
+        }
+    }
+
+    private static class Attribute {
+        private final String namespace;
+        private final String name;
+        private final int resourceId;
+        private final AttributeValue value;
+
+        private Attribute(String namespace, String name, int resourceId, AttributeValue value) {
+            this.namespace = namespace;
+            this.name = name;
+            this.resourceId = resourceId;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Collects the nodes and strings of the document while it is parsed; the pool is only ordered once all
+     * attribute names with resource IDs are known.
+     */
+    private static class Document extends DefaultHandler {
+        private final List<Node> nodes = new ArrayList<>();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> stringList = new ArrayList<>();
+        private final TreeMap<Integer, String> attributeNames = new TreeMap<>();
+        private final List<Node> openNamespaces = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private Locator locator;
+        private int textLine;
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+        }
+
+        private int line() {
+            return null == locator ? 0 : locator.getLineNumber();
+        }
+
+        private void string(String value) {
+            if (null != value && !strings.containsKey(value)) {
+                strings.put(value, stringList.size());
+                stringList.add(value);
+            }
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) {
+            if (!TOOLS_NAMESPACE.equals(uri)) {
+                flushText();
+                string(prefix);
+                string(uri);
+                Node node = new Node(ResXmlTree.RES_XML_START_NAMESPACE, line(), prefix, uri, null);
+                nodes.add(node);
+                openNamespaces.add(node);
+            }
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) {
+            for (int i = openNamespaces.size() - 1; i >= 0; i--) {
+                Node node = openNamespaces.get(i);
+                if (prefix.equals(node.namespace)) {
+                    openNamespaces.remove(i);
+                    nodes.add(new Node(ResXmlTree.RES_XML_END_NAMESPACE, line(), node.namespace, node.name, null));
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            flushText();
+            String namespace = uri.isEmpty() ? null : uri;
+            string(namespace);
+            string(localName);
+            List<Attribute> list = new ArrayList<>(attributes.getLength());
+            for (int i = 0; i < attributes.getLength(); i++) {
+                String attributeNamespace = attributes.getURI(i).isEmpty() ? null : attributes.getURI(i);
+                if (TOOLS_NAMESPACE.equals(attributeNamespace)) {
+                    continue;
+                }
+                String name = attributes.getLocalName(i);
+                int resourceId = 0;
+                if (AndroidAttributes.ANDROID_NAMESPACE.equals(attributeNamespace)) {
+                    resourceId = AndroidAttributes.getResourceId(name);
+                    if (0 == resourceId) {
+                        throw new IllegalArgumentException("Line " + line() + ": unknown attribute android:" + name
+                                + ", add it to android-attributes.txt");
+                    }
+                    attributeNames.put(resourceId, name);
+                } else {
+                    string(name);
+                }
+                AttributeValue value;
+                try {
+                    value = encode(attributes.getValue(i), resourceId);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Line " + line() + ": " + e.getMessage(), e);
+                }
+                string(attributeNamespace);
+                string(value.getString());
+                list.add(new Attribute(attributeNamespace, name, resourceId, value));
+            }
+            Collections.sort(list, new Comparator<Attribute>() {
+                @Override
+                public int compare(Attribute a, Attribute b) {
+                    if (0 == a.resourceId || 0 == b.resourceId) {
+                        return Boolean.compare(0 == a.resourceId, 0 == b.resourceId);
+                    }
+                    return Integer.compareUnsigned(a.resourceId, b.resourceId);
+                }
+            });
+            nodes.add(new Node(ResXmlTree.RES_XML_START_ELEMENT, line(), namespace, localName, list));
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            flushText();
+            nodes.add(new Node(ResXmlTree.RES_XML_END_ELEMENT, line(), uri.isEmpty() ? null : uri, localName, null));
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (0 == text.length()) {
+                textLine = line();
+            }
+            text.append(ch, start, length);
+        }
+
+        private void flushText() {
+            String value = text.toString().trim();
+            text.setLength(0);
+            if (!value.isEmpty()) {
+                string(value);
+                nodes.add(new Node(ResXmlTree.RES_XML_CDATA, textLine, null, value, null));
+            }
+        }
+
+        private void writeTo(ResTarget tgt, boolean utf8) {
+            List<String> pool = new ArrayList<>(attributeNames.size() + stringList.size());
+            pool.addAll(attributeNames.values());
+            pool.addAll(stringList);
+            Map<Integer, Integer> attributeNameIndices = new HashMap<>();
+            for (Integer resourceId : attributeNames.keySet()) {
+                attributeNameIndices.put(resourceId, attributeNameIndices.size());
+            }
+            int offset = attributeNames.size();
+
+            long start = tgt.position();
+            tgt.writeU16(0x0003);
+            tgt.writeU16(2 * ResTarget.LEN_U32);
+            tgt.writeU32(0);
+            ResStringPool.write(tgt, pool, utf8);
+            tgt.writeU16(ResXmlTree.RES_XML_RESOURCE_MAP);
+            tgt.writeU16(2 * ResTarget.LEN_U32);
+            tgt.writeU32((2 + attributeNames.size()) * ResTarget.LEN_U32);
+            for (Integer resourceId : attributeNames.keySet()) {
+                tgt.writeU32(resourceId & 0xffffffffL);
+            }
+            for (Node node : nodes) {
+                writeNode(tgt, node, offset, attributeNameIndices);
+            }
+            long end = tgt.position();
+            tgt.position(start + ResTarget.LEN_U32);
+            tgt.writeU32(end - start);
+            tgt.position(end);
+        }
+
+        private void writeNode(ResTarget tgt, Node node, int offset, Map<Integer, Integer> attributeNameIndices) {
+            int bodySize;
+            switch (node.type) {
+                case ResXmlTree.RES_XML_START_ELEMENT:
+                    bodySize = 5 * ResTarget.LEN_U32 + node.attributes.size() * ATTRIBUTE_SIZE;
+                    break;
+                case ResXmlTree.RES_XML_CDATA:
+                    bodySize = 3 * ResTarget.LEN_U32;
+                    break;
+                default:
+                    bodySize = 2 * ResTarget.LEN_U32;
+            }
+            tgt.writeU16(node.type);
+            tgt.writeU16(NODE_HEADER_SIZE);
+            tgt.writeU32(NODE_HEADER_SIZE + bodySize);
+            tgt.writeU32(node.line);
+            tgt.writeU32(index(null, offset));
+            if (ResXmlTree.RES_XML_CDATA == node.type) {
+                long text = index(node.name, offset);
+                tgt.writeU32(text);
+                writeValue(tgt, ResXmlTree.TYPE_STRING, text);
+                return;
+            }
+            tgt.writeU32(index(node.namespace, offset));
+            tgt.writeU32(index(node.name, offset));
+            if (ResXmlTree.RES_XML_START_ELEMENT != node.type) {
+                return;
+            }
+            int id = 0;
+            int cls = 0;
+            int style = 0;
+            for (int i = 0; i < node.attributes.size(); i++) {
+                Attribute attribute = node.attributes.get(i);
+                if ("id".equals(attribute.name) && (null == attribute.namespace || 0 != attribute.resourceId)) {
+                    id = i + 1;
+                } else if (null == attribute.namespace && "class".equals(attribute.name)) {
+                    cls = i + 1;
+                } else if (null == attribute.namespace && "style".equals(attribute.name)) {
+                    style = i + 1;
+                }
+            }
+            tgt.writeU16(5 * ResTarget.LEN_U32);
+            tgt.writeU16(ATTRIBUTE_SIZE);
+            tgt.writeU16(node.attributes.size());
+            tgt.writeU16(id);
+            tgt.writeU16(cls);
+            tgt.writeU16(style);
+            for (Attribute attribute : node.attributes) {
+                tgt.writeU32(index(attribute.namespace, offset));
+                tgt.writeU32(0 != attribute.resourceId
+                        ? attributeNameIndices.get(attribute.resourceId)
+                        : index(attribute.name, offset));
+                AttributeValue value = attribute.value;
+                if (value.isString()) {
+                    long raw = index(value.getString(), offset);
+                    tgt.writeU32(raw);
+                    writeValue(tgt, ResXmlTree.TYPE_STRING, raw);
+                } else {
+                    tgt.writeU32(index(null, offset));
+                    writeValue(tgt, value.getType(), value.getData() & 0xffffffffL);
+                }
+            }
+        }
+
+        private static void writeValue(ResTarget tgt, int type, long data) {
+            tgt.writeU16(2 * ResTarget.LEN_U32);
+            tgt.writeU8(0);
+            tgt.writeU8(type);
+            tgt.writeU32(data);
+        }
+
+        private long index(String value, int offset) {
+            return null == value ? 0xffffffffL : offset + strings.get(value);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a JVM with warm parser classes, long-lived pools and a {@link ManifestCache} running, so build steps
+ * do not pay for JVM startup on every call. The daemon listens on loopback HTTP only; each request is a
+ * {@code POST /read} or {@code POST /rewrite} whose body holds the command line arguments, one per line, and
+ * whose response streams the output lines followed by {@code exit <code>}. Requests run concurrently.
+ * <p>
+ * The port and a random token are written to a port file readable by the owner only; requests without the
+ * token are refused. Running this class with a command instead of {@code serve} is the matching thin client.
+ */
+public final class ManifestDaemon {
+    private static final String USAGE = "Usage: ManifestDaemon [--port-file <file>] serve [--port <n>] [--threads <n>] [--io-threads <n>] [--cache-mb <n>]\n" +
+            "       ManifestDaemon [--port-file <file>] read <file>...\n" +
+            "       ManifestDaemon [--port-file <file>] rewrite [AndroidManifestRewriter options] <file or directory>...\n" +
+            "       ManifestDaemon [--port-file <file>] stop\n" +
+            "The port file defaults to ~/.manifest-daemon.";
+    static final String TOKEN_HEADER = "X-Daemon-Token";
+    static final String DIRECTORY_HEADER = "X-Working-Directory";
+    private static final String EXIT = "exit ";
+
+    private final HttpServer server;
+    private final ExecutorService requests;
+    private final ForkJoinPool parsers;
+    private final ExecutorService io;
+    private final ManifestCache cache;
+    private final String token;
+
+    public ManifestDaemon(int port, int threads, int ioThreads, long cacheBytes) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 64);
+        this.requests = Executors.newCachedThreadPool();
+        this.parsers = new ForkJoinPool(threads);
+        this.io = Executors.newFixedThreadPool(ioThreads);
+        this.cache = new ManifestCache(cacheBytes);
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : random) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        this.token = token.toString();
+        server.setExecutor(requests);
+        server.createContext("/", new Handler());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public ManifestCache getCache() {
+        return cache;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() throws InterruptedException {
+        server.stop(0);
+        requests.shutdown();
+        parsers.shutdown();
+        io.shutdown();
+        parsers.awaitTermination(1, TimeUnit.MINUTES);
+        io.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Runs one command as if it had been passed to the client and returns its exit code.
+     */
+    int execute(String command, String[] args, Path workingDirectory, PrintStream out) throws IOException, InterruptedException {
+        switch (command) {
+            case "read":
+                return read(args, workingDirectory, out);
+            case "rewrite":
+                return AndroidManifestRewriter.run(args, workingDirectory, out, out, parsers, io, cache);
+            default:
+                out.println(USAGE);
+                return 2;
+        }
+    }
+
+    private int read(String[] args, Path workingDirectory, PrintStream out) {
+        if (0 == args.length) {
+            out.println(USAGE);
+            return 2;
+        }
+        int failed = 0;
+        for (String arg : args) {
+            Path file = workingDirectory.resolve(arg).normalize();
+            try {
+                ManifestInfo info = AndroidManifestRewriter.isApk(file)
+                        ? ManifestInfo.read(ApkRewriter.readManifest(file.toFile()))
+                        : ManifestInfo.read(file.toFile());
+                out.println("OK     " + file + ": package " + info.getPackageName() +
+                        ", versionCode " + info.getVersionCode() +
+                        ", versionName '" + info.getVersionName() + "'" +
+                        ", minSdkVersion " + info.getMinSdkVersion());
+            } catch (IOException | RuntimeException e) {
+                out.println("FAILED " + file + ": " + e);
+                failed++;
+            }
+        }
+        return failed > 0 ? 1 : 0;
+    }
+
+    private class Handler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            boolean stop = false;
+            try {
+                // one request per connection, the JDK server and client occasionally stall on reused ones
+                exchange.getResponseHeaders().set("Connection", "close");
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                if (!token.equals(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+                    exchange.sendResponseHeaders(403, -1);
+                    return;
+                }
+                String directory = exchange.getRequestHeaders().getFirst(DIRECTORY_HEADER);
+                if (null == directory || !Paths.get(directory).isAbsolute()) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+                String command = exchange.getRequestURI().getPath().substring(1);
+                String[] args = readArguments(exchange.getRequestBody());
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                PrintStream out = new PrintStream(exchange.getResponseBody(), true, "UTF-8");
+                int exitCode;
+                if ("stop".equals(command)) {
+                    exitCode = 0;
+                    stop = true;
+                } else {
+                    try {
+                        exitCode = execute(command, args, Paths.get(directory), out);
+                    } catch (IOException | RuntimeException e) {
+                        out.println("error: " + e);
+                        exitCode = 1;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        out.println("error: " + e);
+                        exitCode = 1;
+                    }
+                }
+                out.println(EXIT + exitCode);
+                out.close();
+            } finally {
+                exchange.close();
+            }
+            if (stop) {
+                stopLater();
+            }
+        }
+    }
+
+    private static String[] readArguments(InputStream body) throws IOException {
+        List<String> args = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        for (String line = reader.readLine(); null != line; line = reader.readLine()) {
+            args.add(line);
+        }
+        return args.toArray(new String[0]);
+    }
+
+    private void stopLater() {
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ManifestDaemon.this.stop();
+                } catch (InterruptedException ignored) {}
+            }
+        }, "manifest-daemon-stop");
+        stopper.start();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path portFile = Paths.get(System.getProperty("user.home"), ".manifest-daemon");
+        int i = 0;
+        if (args.length > 1 && "--port-file".equals(args[0])) {
+            portFile = Paths.get(args[1]);
+            i = 2;
+        }
+        if (i >= args.length) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        String command = args[i];
+        String[] rest = Arrays.copyOfRange(args, i + 1, args.length);
+        if ("serve".equals(command)) {
+            serve(rest, portFile);
+        } else {
+            System.exit(send(command, rest, portFile));
+        }
+    }
+
+    private static void serve(String[] args, final Path portFile) throws IOException {
+        int port = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ioThreads = -1;
+        long cacheMb = 64;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--io-threads":
+                        ioThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--cache-mb":
+                        cacheMb = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        ManifestDaemon daemon = new ManifestDaemon(port, threads, ioThreads > 0 ? ioThreads : 4 * threads, cacheMb * 1024 * 1024);
+        writePortFile(portFile, daemon.getPort() + " " + daemon.getToken());
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Files.deleteIfExists(portFile);
+                } catch (IOException ignored) {}
+            }
+        }));
+        daemon.start();
+        System.out.println("Listening on 127.0.0.1:" + daemon.getPort() + ", port file " + portFile);
+    }
+
+    private static void writePortFile(Path portFile, String content) throws IOException {
+        Path tmp = portFile.resolveSibling(portFile.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, portFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int send(String command, String[] args, Path portFile) throws IOException {
+        String[] portAndToken;
+        try {
+            portAndToken = new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8).trim().split(" ");
+        } catch (IOException e) {
+            System.err.println("No daemon running, start one with: ManifestDaemon serve");
+            return 2;
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + portAndToken[0] + "/" + command).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty(TOKEN_HEADER, portAndToken[1]);
+        connection.setRequestProperty(DIRECTORY_HEADER, Paths.get("").toAbsolutePath().toString());
+        StringBuilder body = new StringBuilder();
+        for (String arg : args) {
+            body.append(arg).append('\n');
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (200 != connection.getResponseCode()) {
+            System.err.println("Daemon refused the request: HTTP " + connection.getResponseCode());
+            return 2;
+        }
+        int exitCode = 1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); null != line; line = reader.readLine()) {
+                if (line.startsWith(EXIT)) {
+                    exitCode = Integer.parseInt(line.substring(EXIT.length()));
+                } else {
+                    System.out.println(line);
+                }
+            }
+        }
+        return exitCode;
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import de.corelogics.tools.android.binarymanifest.chunks.ResSource;
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlPullParser;
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlTree;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a binary manifest as textual XML. The chunks are pulled with a {@link ResXmlPullParser} and written
+ * as they come, without building a tree; each pool string is decoded at most once. Typed values are
+ * formatted the way aapt prints them ({@code @0x7f010001} references, {@code 0x1f} hex, {@code 16dp}
+ * dimensions, {@code #ff00ff00} colors). Attributes with a known framework resource ID are written under
+ * the name the platform resolves them by, so names mangled by obfuscators come out readable.
+ */
+public class ManifestDecompiler {
+    private static final String INDENT = "    ";
+    private static final String[] DIMENSION_UNITS = {"px", "dp", "sp", "pt", "in", "mm"};
+    private static final String[] FRACTION_UNITS = {"%", "%p"};
+    private static final double[] RADIX_MULTIPLIERS = {1.0 / (1 << 8), 1.0 / (1 << 15), 1.0 / (1 << 23), 1.0 / (1L << 31)};
+
+    private final ResXmlPullParser parser;
+    private final Writer out;
+    private final char[] buffer = new char[8192];
+    private int length;
+    private String[] strings;
+    private String[] names;
+    private int[] undeclared = new int[4];
+    private int undeclaredCount;
+    private int attributes;
+    private boolean open;
+    private boolean text;
+
+    private ManifestDecompiler(ResSource src, Writer out) {
+        this.parser = new ResXmlPullParser(src);
+        this.out = out;
+    }
+
+    public static String decompile(File source) throws IOException {
+        return decompile(new ResSource(source));
+    }
+
+    public static String decompile(byte[] source) {
+        return decompile(new ResSource(source));
+    }
+
+    public static String decompile(ResSource src) {
+        StringWriter out = new StringWriter();
+        try {
+            decompile(src, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    public static void decompile(ResSource src, OutputStream out) throws IOException {
+        decompile(src, new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16));
+    }
+
+    public static void decompile(ResSource src, Writer out) throws IOException {
+        new ManifestDecompiler(src, out).run();
+        out.flush();
+    }
+
+    private void run() throws IOException {
+        write("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        for (int event = parser.next(); ResXmlPullParser.END_DOCUMENT != event; event = parser.next()) {
+            switch (event) {
+                case ResXmlPullParser.START_TAG:
+                    closeStartTag();
+                    writeStartTag();
+                    break;
+                case ResXmlPullParser.END_TAG:
+                    writeEndTag();
+                    break;
+                case ResXmlPullParser.TEXT:
+                    closeStartTag();
+                    escape(string(parser.getText()), false);
+                    text = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        write('\n');
+        out.write(buffer, 0, length);
+    }
+
+    private void writeStartTag() throws IOException {
+        int depth = parser.getDepth();
+        String comment = string(parser.getComment());
+        if (null != comment) {
+            newLine(depth - 1);
+            write("<!--");
+            write(comment.replace("--", "- -"));
+            write("-->");
+        }
+        newLine(depth - 1);
+        write('<');
+        undeclaredCount = 0;
+        attributes = 0;
+        writeName(parser.getNamespace(), parser.getName(), false);
+        for (int i = parser.getNamespaceCount(depth - 1); i < parser.getNamespaceCount(depth); i++) {
+            separateAttribute(depth);
+            String prefix = string(parser.getNamespacePrefix(i));
+            if (null == prefix || prefix.isEmpty()) {
+                write("xmlns");
+            } else {
+                write("xmlns:");
+                write(prefix);
+            }
+            write("=\"");
+            escape(string(parser.getNamespaceUri(i)), true);
+            write('"');
+        }
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            separateAttribute(depth);
+            writeName(parser.getAttributeNamespace(i), parser.getAttributeName(i), true);
+            write("=\"");
+            int type = parser.getAttributeValueType(i);
+            int raw = parser.getAttributeRawValue(i);
+            if (ResXmlTree.TYPE_STRING == type) {
+                escape(string(ResXmlPullParser.NONE != raw ? raw : parser.getAttributeValueData(i)), true);
+            } else {
+                int data = parser.getAttributeValueData(i);
+                String symbols = ResXmlTree.TYPE_INT_DEC == type || ResXmlTree.TYPE_INT_HEX == type
+                        ? symbols(parser.getAttributeResourceId(i), data)
+                        : null;
+                escape(null != symbols ? symbols : format(type, data), true);
+            }
+            write('"');
+        }
+        for (int i = 0; i < undeclaredCount; i++) {
+            separateAttribute(depth);
+            write("xmlns:");
+            write(undeclaredPrefix(undeclared[i], i));
+            write("=\"");
+            escape(string(undeclared[i]), true);
+            write('"');
+        }
+        open = true;
+        text = false;
+    }
+
+    private void writeEndTag() throws IOException {
+        if (open) {
+            write("/>");
+            open = false;
+        } else {
+            if (!text) {
+                newLine(parser.getDepth() - 1);
+            }
+            write("</");
+            undeclaredCount = 0;
+            writeName(parser.getNamespace(), parser.getName(), false);
+            write('>');
+        }
+        text = false;
+    }
+
+    private void closeStartTag() throws IOException {
+        if (open) {
+            write('>');
+            open = false;
+        }
+    }
+
+    private void separateAttribute(int depth) throws IOException {
+        if (0 == attributes++) {
+            write(' ');
+        } else {
+            newLine(depth);
+        }
+    }
+
+    private void newLine(int depth) throws IOException {
+        write('\n');
+        for (int i = 0; i < depth; i++) {
+            write(INDENT);
+        }
+    }
+
+    private void writeName(int namespace, int nameIndex, boolean attribute) throws IOException {
+        if (ResXmlPullParser.NONE != namespace) {
+            String prefix = prefix(namespace, attribute);
+            if (!prefix.isEmpty()) {
+                write(prefix);
+                write(':');
+            }
+        }
+        write(name(nameIndex));
+    }
+
+    private String name(int index) {
+        if (null == names) {
+            names = new String[parser.getStringCount()];
+        }
+        if (index < 0 || index >= names.length) {
+            return "";
+        }
+        String name = names[index];
+        if (null == name) {
+            int resourceId = parser.getResourceId(index);
+            name = 0 == resourceId ? null : AndroidAttributes.getName(resourceId);
+            if (null == name) {
+                name = string(index);
+            }
+            if ((null == name || name.isEmpty()) && 0 != resourceId) {
+                name = "attr_" + hex8(resourceId);
+            }
+            names[index] = null == name ? "" : name;
+            name = names[index];
+        }
+        return name;
+    }
+
+    /**
+     * Prefix of the innermost declaration of {@code uri}. Namespaces without a declaration, e.g. from
+     * manifests whose namespace chunks were stripped, are declared again on every element using them.
+     * A default namespace yields an empty prefix for elements only, as unprefixed attributes have no namespace.
+     */
+    private String prefix(int uri, boolean attribute) {
+        for (int i = parser.getNamespaceCount(parser.getDepth()) - 1; i >= 0; i--) {
+            if (uri == parser.getNamespaceUri(i)) {
+                String prefix = string(parser.getNamespacePrefix(i));
+                if (null != prefix && !prefix.isEmpty()) {
+                    return prefix;
+                } else if (!attribute) {
+                    return "";
+                }
+            }
+        }
+        for (int i = 0; i < undeclaredCount; i++) {
+            if (uri == undeclared[i]) {
+                return undeclaredPrefix(uri, i);
+            }
+        }
+        if (undeclaredCount == undeclared.length) {
+            undeclared = Arrays.copyOf(undeclared, 2 * undeclared.length);
+        }
+        undeclared[undeclaredCount] = uri;
+        return undeclaredPrefix(uri, undeclaredCount++);
+    }
+
+    private String undeclaredPrefix(int uri, int index) {
+        return parser.equalsString(uri, AndroidAttributes.ANDROID_NAMESPACE) ? "android" : "ns" + index;
+    }
+
+    private String string(int index) {
+        if (null == strings) {
+            strings = new String[parser.getStringCount()];
+        }
+        if (index < 0 || index >= strings.length) {
+            return null;
+        }
+        String string = strings[index];
+        if (null == string) {
+            string = parser.getString(index);
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    private void write(char c) throws IOException {
+        if (length == buffer.length) {
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+        buffer[length++] = c;
+    }
+
+    private void write(String value) throws IOException {
+        write(value, 0, value.length());
+    }
+
+    private void write(String value, int start, int count) throws IOException {
+        while (count > 0) {
+            if (length == buffer.length) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+            int chunk = Math.min(count, buffer.length - length);
+            value.getChars(start, start + chunk, buffer, length);
+            length += chunk;
+            start += chunk;
+            count -= chunk;
+        }
+    }
+
+    private void escape(String value, boolean attribute) throws IOException {
+        if (null == value) {
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if ('&' == c) {
+                replacement = "&amp;";
+            } else if ('<' == c) {
+                replacement = "&lt;";
+            } else if ('>' == c) {
+                replacement = "&gt;";
+            } else if ('"' == c && attribute) {
+                replacement = "&quot;";
+            } else if (c < 0x20 && (attribute || ('\n' != c && '\t' != c))) {
+                replacement = "&#" + (int) c + ';';
+            } else {
+                continue;
+            }
+            write(value, start, i - start);
+            write(replacement);
+            start = i + 1;
+        }
+        write(value, start, value.length() - start);
+    }
+
+    /**
+     * Text of a typed value other than a string.
+     */
+    public static String format(int type, int data) {
+        switch (type) {
+            case ResXmlTree.TYPE_NULL:
+                return 0 == data ? "" : "@empty";
+            case ResXmlTree.TYPE_REFERENCE:
+            case ResXmlTree.TYPE_DYNAMIC_REFERENCE:
+                return 0 == data ? "@null" : "@0x" + hex8(data);
+            case ResXmlTree.TYPE_ATTRIBUTE:
+            case ResXmlTree.TYPE_DYNAMIC_ATTRIBUTE:
+                return "?0x" + hex8(data);
+            case ResXmlTree.TYPE_FLOAT:
+                return Float.toString(Float.intBitsToFloat(data));
+            case ResXmlTree.TYPE_DIMENSION:
+                return complex(data, DIMENSION_UNITS, 1);
+            case ResXmlTree.TYPE_FRACTION:
+                return complex(data, FRACTION_UNITS, 100);
+            case ResXmlTree.TYPE_INT_HEX:
+                return "0x" + Integer.toHexString(data);
+            case ResXmlTree.TYPE_INT_BOOLEAN:
+                return 0 != data ? "true" : "false";
+            case ResXmlTree.TYPE_INT_COLOR_ARGB8:
+                return "#" + hex8(data);
+            case ResXmlTree.TYPE_INT_COLOR_RGB8:
+                return "#" + hex8(data).substring(2);
+            case ResXmlTree.TYPE_INT_COLOR_ARGB4:
+                return "#" + nibble(data >>> 28) + nibble(data >>> 20) + nibble(data >>> 12) + nibble(data >>> 4);
+            case ResXmlTree.TYPE_INT_COLOR_RGB4:
+                return "#" + nibble(data >>> 20) + nibble(data >>> 12) + nibble(data >>> 4);
+            default:
+                if (type >= ResXmlTree.TYPE_FIRST_INT && type <= ResXmlTree.TYPE_LAST_INT) {
+                    return Integer.toString(data);
+                }
+                return "0x" + hex8(data) + " (type 0x" + Integer.toHexString(type) + ")";
+        }
+    }
+
+    /**
+     * Enum or flags symbols for {@code data}, or null if the attribute has none or they do not cover all bits.
+     */
+    private static String symbols(int resourceId, int data) {
+        int format = 0 == resourceId ? 0 : AndroidAttributes.getFormat(resourceId);
+        if (0 == (format & (AndroidAttributes.FORMAT_ENUM | AndroidAttributes.FORMAT_FLAGS))) {
+            return null;
+        }
+        Map<String, Integer> symbols = AndroidAttributes.getSymbols(resourceId);
+        for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+            if (data == symbol.getValue()) {
+                return symbol.getKey();
+            }
+        }
+        if (0 == (format & AndroidAttributes.FORMAT_FLAGS)) {
+            return null;
+        }
+        List<Map.Entry<String, Integer>> matches = new ArrayList<>();
+        int remaining = data;
+        while (0 != remaining) {
+            Map.Entry<String, Integer> best = null;
+            for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+                int value = symbol.getValue();
+                if (0 != value && value == (value & remaining)
+                        && (null == best || Integer.compareUnsigned(value, best.getValue()) > 0)) {
+                    best = symbol;
+                }
+            }
+            if (null == best) {
+                return null;
+            }
+            matches.add(best);
+            remaining &= ~best.getValue();
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = matches.size() - 1; i >= 0; i--) {
+            text.append(text.length() > 0 ? "|" : "").append(matches.get(i).getKey());
+        }
+        return text.toString();
+    }
+
+    private static String complex(int data, String[] units, int scale) {
+        int unit = data & 0xf;
+        double value = (data & 0xffffff00) * RADIX_MULTIPLIERS[(data >> 4) & 0x3] * scale;
+        String number = value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE
+                ? Long.toString((long) value)
+                : Float.toString((float) value);
+        return number + (unit < units.length ? units[unit] : " (unit " + unit + ")");
+    }
+
+    private static String hex8(int data) {
+        String hex = Integer.toHexString(data);
+        return "00000000".substring(hex.length()) + hex;
+    }
+
+    private static char nibble(int data) {
+        return Character.forDigit(data & 0xf, 16);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: ManifestDecompiler <AndroidManifest.xml or APK> [<output file>]");
+            System.exit(2);
+        }
+        try {
+            File file = new File(args[0]);
+            ResSource src = new ResSource(file.getName().toLowerCase().endsWith(".apk")
+                    ? ApkRewriter.readManifest(file)
+                    : Files.readAllBytes(file.toPath()));
+            if (args.length > 1) {
+                try (OutputStream out = Files.newOutputStream(Paths.get(args[1]))) {
+                    decompile(src, out);
+                }
+            } else {
+                decompile(src, System.out);
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.err.println(args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
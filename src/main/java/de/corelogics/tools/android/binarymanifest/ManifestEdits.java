@@ -0,0 +1,412 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import de.corelogics.tools.android.binarymanifest.chunks.ResStringPool;
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batch of attribute and element edits that is applied to a manifest in one go, before it is written
+ * with a single string pool rebuild.
+ * <p>
+ * Elements are addressed by a path from the root element, e.g. {@code manifest/uses-sdk} or
+ * {@code manifest/application/meta-data[@android:name='channel']}, which matches every element along
+ * the path; {@code *} matches any element name. Attributes are addressed by name, with the
+ * {@code android:} prefix for framework attributes, or by their framework resource ID.
+ */
+public class ManifestEdits implements ManifestEditor {
+    private final List<Edit> edits = new ArrayList<>();
+
+    public ManifestEdits set(String path, String attribute, AttributeValue value) {
+        edits.add(new SetAttribute(new ElementPath(path), AttributeName.parse(attribute), value));
+        return this;
+    }
+
+    public ManifestEdits set(String path, int resourceId, AttributeValue value) {
+        edits.add(new SetAttribute(new ElementPath(path), AttributeName.of(resourceId), value));
+        return this;
+    }
+
+    public ManifestEdits remove(String path, String attribute) {
+        edits.add(new RemoveAttribute(new ElementPath(path), AttributeName.parse(attribute)));
+        return this;
+    }
+
+    public ManifestEdits remove(String path, int resourceId) {
+        edits.add(new RemoveAttribute(new ElementPath(path), AttributeName.of(resourceId)));
+        return this;
+    }
+
+    public ManifestEdits addElement(String parentPath, String name, Map<String, AttributeValue> attributes) {
+        Map<AttributeName, AttributeValue> parsed = new LinkedHashMap<>();
+        for (Map.Entry<String, AttributeValue> attribute : attributes.entrySet()) {
+            parsed.put(AttributeName.parse(attribute.getKey()), attribute.getValue());
+        }
+        edits.add(new AddElement(new ElementPath(parentPath), name, parsed));
+        return this;
+    }
+
+    public ManifestEdits addElement(String parentPath, String name, String attribute, AttributeValue value) {
+        return addElement(parentPath, name, Collections.singletonMap(attribute, value));
+    }
+
+    public ManifestEdits removeElement(String path) {
+        edits.add(new RemoveElement(new ElementPath(path)));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    @Override
+    public void edit(AndroidManifest manifest) {
+        manifest.apply(this);
+    }
+
+    void applyTo(ResXmlTree tree, ResStringPool stringPool) {
+        Document document = new Document(tree, stringPool);
+        for (Edit edit : edits) {
+            edit.apply(document);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ManifestEdits" + edits;
+    }
+
+    private interface Edit {
+        void apply(Document document);
+    }
+
+    private static class SetAttribute implements Edit {
+        private final ElementPath path;
+        private final AttributeName attribute;
+        private final AttributeValue value;
+
+        private SetAttribute(ElementPath path, AttributeName attribute, AttributeValue value) {
+            this.path = path;
+            this.attribute = attribute;
+            this.value = value;
+        }
+
+        @Override
+        public void apply(Document document) {
+            List<Integer> elements = document.match(path);
+            if (elements.isEmpty()) {
+                throw new IllegalStateException("No element matches " + path);
+            }
+            for (int element : elements) {
+                document.set(element, attribute, value);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "set " + path + "@" + attribute + "=" + value;
+        }
+    }
+
+    private static class RemoveAttribute implements Edit {
+        private final ElementPath path;
+        private final AttributeName attribute;
+
+        private RemoveAttribute(ElementPath path, AttributeName attribute) {
+            this.path = path;
+            this.attribute = attribute;
+        }
+
+        @Override
+        public void apply(Document document) {
+            for (int element : document.match(path)) {
+                int found = document.find(element, attribute);
+                if (ResXmlTree.NONE != found) {
+                    document.tree.removeAttribute(element, found);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "remove " + path + "@" + attribute;
+        }
+    }
+
+    private static class AddElement implements Edit {
+        private final ElementPath parent;
+        private final String name;
+        private final Map<AttributeName, AttributeValue> attributes;
+
+        private AddElement(ElementPath parent, String name, Map<AttributeName, AttributeValue> attributes) {
+            this.parent = parent;
+            this.name = name;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public void apply(Document document) {
+            List<Integer> parents = document.match(parent);
+            if (parents.isEmpty()) {
+                throw new IllegalStateException("No element matches " + parent);
+            }
+            for (int element : parents) {
+                int added = document.tree.addElement(element, ResXmlTree.NONE, document.string(name, document.tree.getResourceIdCount()));
+                for (Map.Entry<AttributeName, AttributeValue> attribute : attributes.entrySet()) {
+                    document.set(added, attribute.getKey(), attribute.getValue());
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "add " + parent + "/" + name + attributes;
+        }
+    }
+
+    private static class RemoveElement implements Edit {
+        private final ElementPath path;
+
+        private RemoveElement(ElementPath path) {
+            this.path = path;
+        }
+
+        @Override
+        public void apply(Document document) {
+            for (int element : document.match(path)) {
+                document.tree.removeElement(element);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "remove " + path;
+        }
+    }
+
+    private static class Document {
+        private final ResXmlTree tree;
+        private final ResStringPool stringPool;
+
+        private Document(ResXmlTree tree, ResStringPool stringPool) {
+            this.tree = tree;
+            this.stringPool = stringPool;
+        }
+
+        private List<Integer> match(ElementPath path) {
+            List<Integer> matches = new ArrayList<>();
+            int root = tree.getRootElement();
+            if (ResXmlTree.NONE != root && path.matches(this, root, 0)) {
+                collect(path, root, 1, matches);
+            }
+            return matches;
+        }
+
+        private void collect(ElementPath path, int element, int depth, List<Integer> matches) {
+            if (depth == path.segments.size()) {
+                matches.add(element);
+                return;
+            }
+            for (int child = tree.getFirstChild(element); ResXmlTree.NONE != child; child = tree.getNextSibling(child)) {
+                if (path.matches(this, child, depth)) {
+                    collect(path, child, depth + 1, matches);
+                }
+            }
+        }
+
+        private int find(int element, AttributeName name) {
+            for (int i = 0; i < tree.getAttributeCount(element); i++) {
+                int attribute = tree.getAttribute(element, i);
+                if (0 != name.resourceId && tree.getAttributeResourceId(attribute) == name.resourceId) {
+                    return attribute;
+                }
+                int namespace = tree.getAttributeNamespace(attribute);
+                boolean android = ResXmlTree.NONE != namespace && stringPool.equalsAt(namespace & 0xffffffffL, AndroidAttributes.ANDROID_NAMESPACE);
+                if (android == name.android && null != name.name && stringPool.equalsAt(tree.getAttributeName(attribute) & 0xffffffffL, name.name)) {
+                    return attribute;
+                }
+            }
+            return ResXmlTree.NONE;
+        }
+
+        private void set(int element, AttributeName name, AttributeValue value) {
+            int attribute = find(element, name);
+            if (ResXmlTree.NONE == attribute) {
+                int nameIndex = attributeName(name);
+                int namespace = name.android ? string(AndroidAttributes.ANDROID_NAMESPACE, 0) : ResXmlTree.NONE;
+                int data = value.isString() ? string(value.getString(), 0) : value.getData();
+                tree.addAttribute(element, namespace, nameIndex, value.isString() ? data : ResXmlTree.NONE, value.getType(), data);
+            } else {
+                int data = value.isString() ? string(value.getString(), 0) : value.getData();
+                tree.setAttributeValue(attribute, value.isString() ? data : ResXmlTree.NONE, value.getType(), data);
+            }
+        }
+
+        private int attributeName(AttributeName name) {
+            if (null == name.name) {
+                throw new IllegalStateException("Unknown name of attribute 0x" + Integer.toHexString(name.resourceId));
+            }
+            if (0 == name.resourceId) {
+                return string(name.name, tree.getResourceIdCount());
+            }
+            for (int i = 0; i < tree.getResourceIdCount(); i++) {
+                if (tree.getResourceId(i) == name.resourceId) {
+                    return i;
+                }
+            }
+            int index = tree.getResourceIdCount();
+            stringPool.insert(index, name.name);
+            tree.shiftStringIndices(index, 1);
+            tree.addResourceId(name.resourceId);
+            return index;
+        }
+
+        private int string(String value, int from) {
+            int index = stringPool.indexOf(value, from);
+            return index >= 0 ? index : stringPool.add(value);
+        }
+    }
+
+    private static class AttributeName {
+        private final boolean android;
+        private final String name;
+        private final int resourceId;
+
+        private AttributeName(boolean android, String name, int resourceId) {
+            this.android = android;
+            this.name = name;
+            this.resourceId = resourceId;
+        }
+
+        private static AttributeName parse(String qualifiedName) {
+            int colon = qualifiedName.indexOf(':');
+            if (colon < 0) {
+                return new AttributeName(false, qualifiedName, 0);
+            }
+            if (!"android".equals(qualifiedName.substring(0, colon))) {
+                throw new IllegalArgumentException("Unsupported namespace prefix in " + qualifiedName);
+            }
+            String name = qualifiedName.substring(colon + 1);
+            return new AttributeName(true, name, AndroidAttributes.getResourceId(name));
+        }
+
+        private static AttributeName of(int resourceId) {
+            return new AttributeName(true, AndroidAttributes.getName(resourceId), resourceId);
+        }
+
+        @Override
+        public String toString() {
+            return null != name ? (android ? "android:" : "") + name : "0x" + Integer.toHexString(resourceId);
+        }
+    }
+
+    private static class ElementPath {
+        private final String text;
+        private final List<String> segments = new ArrayList<>();
+        private final List<Map<AttributeName, String>> predicates = new ArrayList<>();
+
+        private ElementPath(String text) {
+            this.text = text;
+            int position = 0;
+            while (position < text.length()) {
+                int end = position;
+                while (end < text.length() && '/' != text.charAt(end) && '[' != text.charAt(end)) {
+                    end++;
+                }
+                if (end == position) {
+                    throw new IllegalArgumentException("Empty element name in path " + text);
+                }
+                segments.add(text.substring(position, end));
+                Map<AttributeName, String> predicate = new LinkedHashMap<>();
+                while (end < text.length() && '[' == text.charAt(end)) {
+                    end = parsePredicate(end, predicate);
+                }
+                predicates.add(predicate);
+                if (end < text.length() && '/' != text.charAt(end)) {
+                    throw new IllegalArgumentException("Unexpected '" + text.charAt(end) + "' in path " + text);
+                }
+                position = end + 1;
+            }
+            if (segments.isEmpty()) {
+                throw new IllegalArgumentException("Empty path");
+            }
+        }
+
+        private int parsePredicate(int start, Map<AttributeName, String> predicate) {
+            int equals = text.indexOf('=', start);
+            if (start + 1 >= text.length() || '@' != text.charAt(start + 1) || equals < 0 || equals + 1 >= text.length()) {
+                throw new IllegalArgumentException("Expected [@attribute='value'] in path " + text);
+            }
+            char quote = text.charAt(equals + 1);
+            int close = text.indexOf(quote, equals + 2);
+            if (('\'' != quote && '"' != quote) || close < 0 || close + 1 >= text.length() || ']' != text.charAt(close + 1)) {
+                throw new IllegalArgumentException("Expected [@attribute='value'] in path " + text);
+            }
+            predicate.put(AttributeName.parse(text.substring(start + 2, equals)), text.substring(equals + 2, close));
+            return close + 2;
+        }
+
+        private boolean matches(Document document, int element, int depth) {
+            String name = segments.get(depth);
+            if (!"*".equals(name) && !document.stringPool.equalsAt(document.tree.getElementName(element) & 0xffffffffL, name)) {
+                return false;
+            }
+            for (Map.Entry<AttributeName, String> predicate : predicates.get(depth).entrySet()) {
+                int attribute = document.find(element, predicate.getKey());
+                if (ResXmlTree.NONE == attribute || !hasValue(document, attribute, predicate.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean hasValue(Document document, int attribute, String value) {
+            ResXmlTree tree = document.tree;
+            if (ResXmlTree.TYPE_STRING == tree.getAttributeValueType(attribute)) {
+                return document.stringPool.equalsAt(tree.getAttributeValueData(attribute) & 0xffffffffL, value);
+            }
+            AttributeValue expected = AttributeValue.parse(value);
+            if (ResXmlTree.TYPE_INT_BOOLEAN == tree.getAttributeValueType(attribute)) {
+                return ResXmlTree.TYPE_INT_BOOLEAN == expected.getType()
+                        && (0 != tree.getAttributeValueData(attribute)) == (0 != expected.getData());
+            }
+            return !expected.isString() && expected.getData() == tree.getAttributeValueData(attribute);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import de.corelogics.tools.android.binarymanifest.chunks.ResSource;
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlPullParser;
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Package, version and minSdkVersion of a manifest. {@link #read(ResSource)} pulls chunks with a
+ * {@link ResXmlPullParser}, only looks at the {@code <manifest>} and {@code <uses-sdk>} start elements and
+ * the few pool strings it needs, and stops as soon as {@code <uses-sdk>} or {@code <application>} starts. Attributes are recognized by their
+ * framework resource ID, names are only compared for attributes without one.
+ */
+public class ManifestInfo {
+    private final String packageName;
+    private final int versionCode;
+    private final String versionName;
+    private final int minSdkVersion;
+
+    public ManifestInfo(String packageName, int versionCode, String versionName, int minSdkVersion) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.versionName = versionName;
+        this.minSdkVersion = minSdkVersion;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public int getVersionCode() {
+        return versionCode;
+    }
+
+    public String getVersionName() {
+        return versionName;
+    }
+
+    public int getMinSdkVersion() {
+        return minSdkVersion;
+    }
+
+    public static ManifestInfo read(File source) throws IOException {
+        return read(new ResSource(source));
+    }
+
+    public static ManifestInfo read(byte[] source) {
+        return read(new ResSource(source));
+    }
+
+    public static ManifestInfo read(ByteBuffer source) {
+        return read(new ResSource(source));
+    }
+
+    public static ManifestInfo read(ResSource src) {
+        ResXmlPullParser parser = new ResXmlPullParser(src);
+        String packageName = null;
+        int versionCode = -1;
+        String versionName = null;
+        int minSdkVersion = -1;
+
+        for (int event = parser.next(); ResXmlPullParser.END_DOCUMENT != event; event = parser.next()) {
+            if (ResXmlPullParser.END_TAG == event && 1 == parser.getDepth()) {
+                break;
+            }
+            if (ResXmlPullParser.START_TAG != event) {
+                continue;
+            }
+            int depth = parser.getDepth();
+            boolean isManifest = 1 == depth && parser.equalsString(parser.getName(), "manifest");
+            boolean isUsesSdk = 2 == depth && parser.equalsString(parser.getName(), "uses-sdk");
+            if (2 == depth && parser.equalsString(parser.getName(), "application")) {
+                break;
+            }
+            if (!isManifest && !isUsesSdk) {
+                continue;
+            }
+            for (int i = 0; i < parser.getAttributeCount(); i++) {
+                int name = parser.getAttributeName(i);
+                int valueType = parser.getAttributeValueType(i);
+                int data = parser.getAttributeValueData(i);
+                int resourceId = parser.getResourceId(name);
+                if (0 == resourceId && ResXmlPullParser.NONE == parser.getAttributeNamespace(i)) {
+                    if (isManifest && parser.equalsString(name, "package")) {
+                        packageName = parser.getString(parser.getAttributeRawValue(i));
+                    }
+                } else if (0 == resourceId && parser.equalsString(parser.getAttributeNamespace(i), AndroidAttributes.ANDROID_NAMESPACE)) {
+                    if (parser.equalsString(name, "versionCode")) {
+                        resourceId = AndroidAttributes.VERSION_CODE;
+                    } else if (parser.equalsString(name, "versionName")) {
+                        resourceId = AndroidAttributes.VERSION_NAME;
+                    } else if (parser.equalsString(name, "minSdkVersion")) {
+                        resourceId = AndroidAttributes.MIN_SDK_VERSION;
+                    }
+                }
+                if (isManifest && AndroidAttributes.VERSION_CODE == resourceId) {
+                    versionCode = isInt(valueType) ? data : -1;
+                } else if (isManifest && AndroidAttributes.VERSION_NAME == resourceId) {
+                    versionName = ResXmlTree.TYPE_STRING == valueType ? parser.getString(data) : null;
+                } else if (isUsesSdk && AndroidAttributes.MIN_SDK_VERSION == resourceId) {
+                    minSdkVersion = isInt(valueType) ? data : -1;
+                }
+            }
+            if (isUsesSdk) {
+                break;
+            }
+        }
+        return new ManifestInfo(packageName, versionCode, versionName, minSdkVersion);
+    }
+
+    private static boolean isInt(int valueType) {
+        return ResXmlTree.TYPE_INT_DEC == valueType || ResXmlTree.TYPE_INT_HEX == valueType;
+    }
+
+    @Override
+    public String toString() {
+        return "ManifestInfo{" +
+                "packageName='" + packageName + '\'' +
+                ", versionCode=" + versionCode +
+                ", versionName='" + versionName + '\'' +
+                ", minSdkVersion=" + minSdkVersion +
+                '}';
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable parsed manifest that any number of threads can read and write from without locks. The parsed
+ * tables are never changed after construction and the source is only read at absolute positions; changes
+ * create a new snapshot that shares them and only records the versions and editors to apply.
+ * <p>
+ * Writing patches versionCode and versionName into a copy of the source where they fit, and otherwise
+ * applies the changes to a private copy of the tables, as {@link #toManifest()} does. Editors are applied
+ * before the versions and must not be changed once they are handed to {@link #withEdits}.
+ */
+public final class ManifestSnapshot {
+    private final AndroidManifest base;
+    private final Integer versionCode;
+    private final String versionName;
+    private final List<ManifestEditor> editors;
+
+    public ManifestSnapshot(File source) throws IOException {
+        this(new AndroidManifest(source));
+    }
+
+    public ManifestSnapshot(byte[] source) {
+        this(new AndroidManifest(source));
+    }
+
+    public ManifestSnapshot(ByteBuffer source) {
+        this(new AndroidManifest(source));
+    }
+
+    ManifestSnapshot(AndroidManifest base) {
+        this(base, null, null, Collections.emptyList());
+    }
+
+    private ManifestSnapshot(AndroidManifest base, Integer versionCode, String versionName, List<ManifestEditor> editors) {
+        this.base = base;
+        this.versionCode = versionCode;
+        this.versionName = versionName;
+        this.editors = editors;
+    }
+
+    public int getVersionCode() {
+        return null == versionCode ? base.getVersionCode() : versionCode;
+    }
+
+    /**
+     * The versionName, {@code null} if the manifest has none. Like {@link #getVersionCode()} it does not
+     * reflect editors.
+     */
+    public String getVersionName() {
+        return null == versionName ? base.getVersionName() : versionName;
+    }
+
+    public ManifestSnapshot withVersionCode(int versionCode) {
+        return new ManifestSnapshot(base, versionCode, versionName, editors);
+    }
+
+    public ManifestSnapshot withVersionName(String versionName) {
+        return new ManifestSnapshot(base, versionCode, versionName, editors);
+    }
+
+    public ManifestSnapshot withEdits(ManifestEditor editor) {
+        List<ManifestEditor> editors = new ArrayList<>(this.editors.size() + 1);
+        editors.addAll(this.editors);
+        editors.add(editor);
+        return new ManifestSnapshot(base, versionCode, versionName, Collections.unmodifiableList(editors));
+    }
+
+    /**
+     * The unchanged snapshot this one was derived from.
+     */
+    public ManifestSnapshot getBase() {
+        return null == versionCode && null == versionName && editors.isEmpty() ? this : new ManifestSnapshot(base);
+    }
+
+    /**
+     * A new mutable manifest with all changes of this snapshot applied.
+     */
+    public AndroidManifest toManifest() {
+        AndroidManifest manifest = base.copy(null);
+        for (ManifestEditor editor : editors) {
+            editor.edit(manifest);
+        }
+        if (null != versionCode) {
+            manifest.setVersionCode(versionCode);
+        }
+        if (null != versionName) {
+            manifest.setVersionName(versionName);
+        }
+        return manifest;
+    }
+
+    public byte[] toByteArray() {
+        if (editors.isEmpty()) {
+            byte[] data = base.patchedSource(getVersionCode(), versionName);
+            if (null != data) {
+                return data;
+            }
+        }
+        return toManifest().toByteArray();
+    }
+
+    public void write(File file) throws IOException {
+        if (editors.isEmpty()) {
+            byte[] data = base.patchedSource(getVersionCode(), versionName);
+            if (null != data) {
+                Files.write(file.toPath(), data);
+                return;
+            }
+        }
+        toManifest().write(file);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        if (editors.isEmpty()) {
+            byte[] data = base.patchedSource(getVersionCode(), versionName);
+            if (null != data) {
+                out.write(data);
+                return;
+            }
+        }
+        toManifest().write(out);
+    }
+
+    @Override
+    public String toString() {
+        return "ManifestSnapshot{" +
+                "versionCode=" + getVersionCode() +
+                ", versionName='" + getVersionName() + '\'' +
+                ", editors=" + editors +
+                '}';
+    }
+}
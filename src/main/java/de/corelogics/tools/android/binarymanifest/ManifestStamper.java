@@ -0,0 +1,251 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+import de.corelogics.tools.android.binarymanifest.chunks.ResSource;
+import de.corelogics.tools.android.binarymanifest.chunks.ResStringPool;
+import de.corelogics.tools.android.binarymanifest.chunks.ResTarget;
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlPullParser;
+import de.corelogics.tools.android.binarymanifest.chunks.ResXmlTree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Writes many versionCode/versionName variants of one manifest. The manifest is written once as a template
+ * whose versionName string has a slot large enough for the longest name, so every variant has the same
+ * size and layout; a variant is a copy of the template with the versionCode and the slot filled in.
+ * <p>
+ * A stamper is immutable and may be used from any number of threads.
+ */
+public class ManifestStamper {
+    private static final int VALUE_DATA_OFFSET = 4 * ResTarget.LEN_U32;
+    private static final char PLACEHOLDER = '\u0001';
+
+    private final byte[] template;
+    private final boolean utf8;
+    private final long versionCodePosition;
+    private final long versionNamePosition;
+    private final int versionNameCapacity;
+    private final int versionCode;
+    private final String versionName;
+
+    /**
+     * Plans the template for {@code manifest}, which is left unchanged. {@code versionNames} are all names
+     * the variants may use.
+     */
+    public ManifestStamper(AndroidManifest manifest, List<String> versionNames) {
+        AndroidManifest copy = manifest.copy(null);
+        this.versionCode = manifest.getVersionCode();
+        this.versionName = manifest.getVersionName();
+        this.utf8 = copy.isUtf8StringPool();
+
+        String placeholder = null;
+        if (null != versionName) {
+            int longest = length(versionName);
+            for (String name : versionNames) {
+                longest = null == name ? longest : Math.max(longest, length(name));
+            }
+            char[] chars = new char[longest];
+            Arrays.fill(chars, PLACEHOLDER);
+            placeholder = new String(chars);
+            copy.setVersionName(placeholder);
+        } else if (versionNames.stream().anyMatch(name -> null != name)) {
+            throw new IllegalStateException("Manifest has no versionName to stamp");
+        }
+        this.template = copy.toByteArray();
+
+        long codePosition = -1;
+        long namePosition = -1;
+        int nameCapacity = 0;
+        ResXmlPullParser parser = new ResXmlPullParser(new ResSource(template));
+        int nameIndex = ResXmlTree.NONE;
+        int references = 0;
+        for (int event = parser.next(); ResXmlPullParser.END_DOCUMENT != event; event = parser.next()) {
+            if (ResXmlPullParser.TEXT == event && null != placeholder && parser.equalsString(parser.getText(), placeholder)) {
+                references++;
+            }
+            for (int i = 0; ResXmlPullParser.START_TAG == event && i < parser.getAttributeCount(); i++) {
+                int resourceId = parser.getAttributeResourceId(i);
+                if (0 == resourceId && parser.equalsString(parser.getAttributeNamespace(i), AndroidAttributes.ANDROID_NAMESPACE)) {
+                    int name = parser.getAttributeName(i);
+                    resourceId = parser.equalsString(name, "versionCode") ? AndroidAttributes.VERSION_CODE
+                            : parser.equalsString(name, "versionName") ? AndroidAttributes.VERSION_NAME : 0;
+                }
+                if (AndroidAttributes.VERSION_CODE == resourceId && codePosition < 0) {
+                    codePosition = parser.getAttributePosition(i) + VALUE_DATA_OFFSET;
+                } else if (AndroidAttributes.VERSION_NAME == resourceId && ResXmlTree.NONE == nameIndex) {
+                    nameIndex = parser.getAttributeValueData(i);
+                }
+                if (null != placeholder && parser.equalsString(parser.getAttributeRawValue(i), placeholder)) {
+                    references++;
+                }
+                if (null != placeholder && ResXmlTree.TYPE_STRING == parser.getAttributeValueType(i)
+                        && parser.equalsString(parser.getAttributeValueData(i), placeholder)) {
+                    references++;
+                }
+            }
+        }
+        if (null != placeholder) {
+            if (ResXmlTree.NONE == nameIndex || !parser.equalsString(nameIndex, placeholder) || references > 2) {
+                throw new IllegalStateException("versionName string is shared and cannot be stamped");
+            }
+            namePosition = stringPosition(parser.getStringPoolPosition(), nameIndex);
+            nameCapacity = ResStringPool.encodedLength(placeholder, utf8);
+        }
+        this.versionCodePosition = codePosition;
+        this.versionNamePosition = namePosition;
+        this.versionNameCapacity = nameCapacity;
+    }
+
+    private int length(String name) {
+        return utf8 ? name.getBytes(StandardCharsets.UTF_8).length : name.length();
+    }
+
+    private long stringPosition(long pool, int index) {
+        ByteBuffer buffer = ByteBuffer.wrap(template).order(ByteOrder.LITTLE_ENDIAN);
+        int headerSize = buffer.getShort((int) pool + 2) & 0xffff;
+        long stringsStart = buffer.getInt((int) pool + 20) & 0xffffffffL;
+        long offset = buffer.getInt((int) pool + headerSize + 4 * index) & 0xffffffffL;
+        return pool + stringsStart + offset;
+    }
+
+    /**
+     * Size of every variant.
+     */
+    public int getLength() {
+        return template.length;
+    }
+
+    public byte[] stamp(int versionCode, String versionName) {
+        byte[] variant = new byte[template.length];
+        stamp(versionCode, versionName, variant, 0);
+        return variant;
+    }
+
+    /**
+     * Writes the variant to {@code target} at {@code offset}; {@code null} keeps the original versionName.
+     */
+    public void stamp(int versionCode, String versionName, byte[] target, int offset) {
+        System.arraycopy(template, 0, target, offset, template.length);
+        if (versionCodePosition >= 0) {
+            ByteBuffer.wrap(target).order(ByteOrder.LITTLE_ENDIAN).putInt(offset + (int) versionCodePosition, versionCode);
+        } else if (versionCode != this.versionCode) {
+            throw new IllegalStateException("Manifest has no versionCode to stamp");
+        }
+        if (versionNamePosition >= 0) {
+            byte[] name = ResStringPool.encode(null == versionName ? this.versionName : versionName, utf8);
+            if (name.length > versionNameCapacity) {
+                throw new IllegalArgumentException("versionName '" + versionName + "' was not planned for");
+            }
+            int position = offset + (int) versionNamePosition;
+            System.arraycopy(name, 0, target, position, name.length);
+            Arrays.fill(target, position + name.length, position + versionNameCapacity, (byte) 0);
+        }
+    }
+
+    /**
+     * All variants back to back in one arena, variant {@code i} at {@code i * getLength()}. With
+     * {@code parallel} the copies are spread over the common fork/join pool.
+     */
+    public byte[] stampAll(final List<Variant> variants, boolean parallel) {
+        if ((long) variants.size() * template.length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(variants.size() + " variants of " + template.length + " bytes exceed one arena");
+        }
+        final byte[] arena = new byte[variants.size() * template.length];
+        if (parallel) {
+            ForkJoinPool.commonPool().invoke(new StampTask(variants, arena, 0, variants.size()));
+        } else {
+            for (int i = 0; i < variants.size(); i++) {
+                stamp(variants.get(i).versionCode, variants.get(i).versionName, arena, i * template.length);
+            }
+        }
+        return arena;
+    }
+
+    public List<ByteBuffer> slices(byte[] arena) {
+        List<ByteBuffer> slices = new ArrayList<>(arena.length / Math.max(1, template.length));
+        for (int offset = 0; offset + template.length <= arena.length; offset += template.length) {
+            slices.add(ByteBuffer.wrap(arena, offset, template.length).slice());
+        }
+        return slices;
+    }
+
+    private class StampTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int BATCH_BYTES = 1 << 20;
+
+        private final List<Variant> variants;
+        private final byte[] arena;
+        private final int from;
+        private final int to;
+
+        private StampTask(List<Variant> variants, byte[] arena, int from, int to) {
+            this.variants = variants;
+            this.arena = arena;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (long) (to - from) * template.length > BATCH_BYTES) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new StampTask(variants, arena, from, middle), new StampTask(variants, arena, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                stamp(variants.get(i).versionCode, variants.get(i).versionName, arena, i * template.length);
+            }
+        }
+    }
+
+    public static final class Variant {
+        private final int versionCode;
+        private final String versionName;
+
+        public Variant(int versionCode, String versionName) {
+            this.versionCode = versionCode;
+            this.versionName = versionName;
+        }
+
+        public int getVersionCode() {
+            return versionCode;
+        }
+
+        public String getVersionName() {
+            return versionName;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest;
+
+/**
+ * Edit rules of the batch rewriter. The versionCode formula is an integer expression over the current
+ * version code {@code code}, e.g. {@code code * 10 + 3}. The versionName template may refer to
+ * {@code {name}}, {@code {code}} (the new version code) and {@code {oldCode}}.
+ */
+public class RewriteRules implements ManifestEditor {
+    private final String versionCodeFormula;
+    private final String versionNameTemplate;
+
+    public RewriteRules(String versionCodeFormula, String versionNameTemplate) {
+        this.versionCodeFormula = versionCodeFormula;
+        this.versionNameTemplate = versionNameTemplate;
+        if (null != versionCodeFormula) {
+            // syntax only: the range and division checks depend on the version code of each file
+            parse(new Formula(versionCodeFormula, 1, false));
+        }
+    }
+
+    @Override
+    public void edit(AndroidManifest manifest) {
+        int oldCode = manifest.getVersionCode();
+        if (null != versionCodeFormula) {
+            manifest.setVersionCode(evaluateVersionCode(oldCode));
+        }
+        if (null != versionNameTemplate) {
+            if (0 != manifest.getVersionNameReference() && versionNameTemplate.contains("{name}")) {
+                throw new IllegalStateException(String.format("versionName refers to resource 0x%08x, {name} cannot be used", manifest.getVersionNameReference()));
+            }
+            manifest.setVersionName(versionNameTemplate
+                    .replace("{name}", String.valueOf(manifest.getVersionName()))
+                    .replace("{code}", Integer.toString(manifest.getVersionCode()))
+                    .replace("{oldCode}", Integer.toString(oldCode)));
+        }
+    }
+
+    public int evaluateVersionCode(int code) {
+        long value = parse(new Formula(versionCodeFormula, code, true));
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("versionCode " + value + " out of range for formula '" + versionCodeFormula + "'");
+        }
+        return (int) value;
+    }
+
+    private static long parse(Formula formula) {
+        long value = formula.expression();
+        if (formula.position < formula.text.length()) {
+            throw formula.error();
+        }
+        return value;
+    }
+
+    private static class Formula {
+        private final String text;
+        private final long code;
+        private final boolean evaluate;
+        private int position;
+
+        private Formula(String text, long code, boolean evaluate) {
+            this.text = text;
+            this.code = code;
+            this.evaluate = evaluate;
+        }
+
+        private long expression() {
+            long value = term();
+            while (true) {
+                if (accept('+')) {
+                    value += term();
+                } else if (accept('-')) {
+                    value -= term();
+                } else {
+                    return value;
+                }
+            }
+        }
+
+        private long term() {
+            long value = factor();
+            while (true) {
+                if (accept('*')) {
+                    value *= factor();
+                } else if (accept('/')) {
+                    long divisor = divisor();
+                    value = evaluate ? value / divisor : value;
+                } else if (accept('%')) {
+                    long divisor = divisor();
+                    value = evaluate ? value % divisor : value;
+                } else {
+                    return value;
+                }
+            }
+        }
+
+        private long divisor() {
+            long divisor = factor();
+            if (evaluate && 0 == divisor) {
+                throw new IllegalArgumentException("Division by zero in versionCode formula '" + text + "'");
+            }
+            return divisor;
+        }
+
+        private long factor() {
+            if (accept('-')) {
+                return -factor();
+            }
+            if (accept('(')) {
+                long value = expression();
+                if (!accept(')')) {
+                    throw error();
+                }
+                return value;
+            }
+            skipWhitespace();
+            int start = position;
+            while (position < text.length() && Character.isLetterOrDigit(text.charAt(position))) {
+                position++;
+            }
+            String token = text.substring(start, position);
+            if ("code".equals(token)) {
+                return code;
+            }
+            try {
+                return Long.parseLong(token);
+            } catch (NumberFormatException e) {
+                throw error();
+            }
+        }
+
+        private boolean accept(char c) {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error() {
+            return new IllegalArgumentException("Invalid versionCode formula '" + text + "' at position " + position);
+        }
+    }
+}
@@ -27,41 +27,50 @@
 
 package de.corelogics.tools.android.binarymanifest.chunks;
 
-import sun.nio.ch.DirectBuffer;
-
-import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 
-public class ResTargetImpl implements ResTarget {
-    private RandomAccessFile sourceFile;
-    private final MappedByteBuffer buffer;
-    private final FileChannel outputChannel;
-    private final File outputFile;
+/**
+ * Base of the targets that collect the output in a growable heap buffer.
+ */
+public abstract class ResBufferTarget implements ResTarget {
+    private ByteBuffer buffer;
+    private int length;
 
-    public ResTargetImpl(File file, long initialSize) throws IOException {
-        outputFile = file;
-        this.sourceFile = new RandomAccessFile(outputFile, "rw");
-        this.sourceFile.setLength(initialSize);
-        this.outputChannel = this.sourceFile.getChannel();
-        this.buffer = outputChannel.map(FileChannel.MapMode.READ_WRITE, 0, outputChannel.size());
+    protected ResBufferTarget(int initialSize) {
+        this.buffer = ByteBuffer.allocate(Math.max(initialSize, 16));
         buffer.order(ByteOrder.LITTLE_ENDIAN);
     }
 
-    @Override
-    public void close() throws IOException {
-        int length = buffer.position();
-        outputChannel.close();
-        try {
-            sourceFile.close();
-        } catch(IOException ignored) {}
-        ((DirectBuffer) buffer).cleaner().clean();
-        this.sourceFile = new RandomAccessFile(outputFile, "rw");
-        sourceFile.setLength(length);
-        sourceFile.close();
+    public int length() {
+        return Math.max(length, buffer.position());
+    }
+
+    protected ByteBuffer content() {
+        ByteBuffer content = buffer.duplicate();
+        content.position(0);
+        content.limit(length());
+        return content;
+    }
+
+    private ByteBuffer ensureRemaining(int count) {
+        if (buffer.remaining() < count) {
+            grow(buffer.position() + count);
+        }
+        return buffer;
+    }
+
+    private void grow(long minCapacity) {
+        length = length();
+        int position = buffer.position();
+        long capacity = Math.max(minCapacity, 2L * buffer.capacity());
+        ByteBuffer grown = ByteBuffer.allocate((int) Math.min(capacity, Integer.MAX_VALUE - 8));
+        grown.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(0);
+        buffer.limit(length);
+        grown.put(buffer);
+        grown.position(position);
+        buffer = grown;
     }
 
     @Override
@@ -71,26 +80,35 @@ public class ResTargetImpl implements ResTarget {
 
     @Override
     public void position(long position) {
+        length = length();
+        if (position > buffer.capacity()) {
+            grow(position);
+        }
         buffer.position((int) position);
     }
 
     @Override
     public void writeU16(int val) {
-        buffer.putShort((short) val);
+        ensureRemaining(LEN_U16).putShort((short) val);
     }
 
     @Override
     public void writeU32(long val) {
-        buffer.putInt((int) (val & 0xffffffffL));
+        ensureRemaining(LEN_U32).putInt((int) (val & 0xffffffffL));
     }
 
     @Override
     public void writeU8(int val) {
-        buffer.put((byte)val);
+        ensureRemaining(LEN_U8).put((byte) val);
     }
 
     @Override
     public void write(byte[] data) {
-        buffer.put(data);
+        ensureRemaining(data.length).put(data);
+    }
+
+    @Override
+    public void write(ByteBuffer data) {
+        ensureRemaining(data.remaining()).put(data);
     }
 }
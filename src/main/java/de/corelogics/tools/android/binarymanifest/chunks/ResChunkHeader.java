@@ -0,0 +1,85 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+public class ResChunkHeader {
+    private final long chunkOriginalStart;
+    private final int type;  //u16
+    private final int headerSize;  //u16
+    private final long size; //u32
+
+    public ResChunkHeader(ResSource src) {
+        chunkOriginalStart = src.position();
+        type = src.readU16();
+        headerSize = src.readU16();
+        size = src.readU32();
+    }
+
+    public long getChunkOriginalStart() {
+        return chunkOriginalStart;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long writeTo(ResTarget tgt, long newSize) {
+        tgt.writeU16(type);
+        tgt.writeU16(headerSize);
+        long newSizeAligned = newSize + 2 * tgt.LEN_U16 + tgt.LEN_U32;
+        while (0 != newSizeAligned % 4) {
+            newSizeAligned++;
+        }
+        tgt.writeU32(newSizeAligned);
+        return newSizeAligned;
+    }
+
+    public void writeTo(ResTarget tgt) {
+        tgt.writeU16(type);
+        tgt.writeU16(headerSize);
+        tgt.writeU32(size);
+    }
+
+    @Override
+    public String toString() {
+        return "ResChunkHeader{" +
+                "chunkOriginalStart=" + chunkOriginalStart +
+                ", type=" + type +
+                ", headerSize=" + headerSize +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class ResHeapTarget extends ResBufferTarget {
+    public ResHeapTarget() {
+        this(4096);
+    }
+
+    public ResHeapTarget(int initialSize) {
+        super(initialSize);
+    }
+
+    public byte[] toByteArray() {
+        byte[] data = new byte[length()];
+        content().get(data);
+        return data;
+    }
+
+    /**
+     * The output without copying it if it fills the buffer exactly, as it does when the target was sized
+     * by a {@link ResSizingTarget} pass. Nothing may be written to the target afterwards.
+     */
+    public byte[] detach() {
+        ByteBuffer content = content();
+        if (0 == content.arrayOffset() && content.array().length == content.limit()) {
+            return content.array();
+        }
+        return toByteArray();
+    }
+
+    @Override
+    public void close() {
+    }
+}
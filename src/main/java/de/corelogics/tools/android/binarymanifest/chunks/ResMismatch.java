@@ -0,0 +1,84 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+/**
+ * A region of written output that differs from the expected bytes or breaks a structural invariant,
+ * located by chunk and, inside the XML tree, by element path and attribute.
+ */
+public class ResMismatch {
+    private final long position;
+    private final long length;
+    private final int chunkType;
+    private final long chunkPosition;
+    private final String location;
+    private final String detail;
+
+    public ResMismatch(long position, long length, int chunkType, long chunkPosition, String location, String detail) {
+        this.position = position;
+        this.length = length;
+        this.chunkType = chunkType;
+        this.chunkPosition = chunkPosition;
+        this.location = location;
+        this.detail = detail;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Type of the innermost chunk holding the region, {@link ResXmlTree#NONE} outside of any chunk.
+     */
+    public int getChunkType() {
+        return chunkType;
+    }
+
+    public long getChunkPosition() {
+        return chunkPosition;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    @Override
+    public String toString() {
+        return "@" + position + "+" + length
+                + (ResXmlTree.NONE == chunkType ? "" : String.format(" [chunk 0x%04x @%d]", chunkType, chunkPosition))
+                + " " + location + ": " + detail;
+    }
+}
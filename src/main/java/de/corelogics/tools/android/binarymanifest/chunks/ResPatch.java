@@ -0,0 +1,92 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of byte edits at absolute positions of a binary resource file, used to change a file
+ * without re-serializing it.
+ */
+public class ResPatch {
+    private final List<Long> positions = new ArrayList<>();
+    private final List<ByteBuffer> edits = new ArrayList<>();
+
+    public boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    public long length() {
+        long length = 0;
+        for (ByteBuffer edit : edits) {
+            length += edit.capacity();
+        }
+        return length;
+    }
+
+    public void writeU16(long position, int val) {
+        allocate(position, ResTarget.LEN_U16).putShort(0, (short) val);
+    }
+
+    public void writeU32(long position, long val) {
+        allocate(position, ResTarget.LEN_U32).putInt(0, (int) (val & 0xffffffffL));
+    }
+
+    public ByteBuffer allocate(long position, int length) {
+        ByteBuffer edit = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        positions.add(position);
+        edits.add(edit);
+        return edit;
+    }
+
+    public void applyTo(ByteBuffer buffer) {
+        for (int i = 0; i < edits.size(); i++) {
+            ByteBuffer edit = edits.get(i).duplicate();
+            edit.rewind();
+            ByteBuffer slot = buffer.duplicate();
+            slot.position((int) (long) positions.get(i));
+            slot.put(edit);
+        }
+    }
+
+    public void applyTo(FileChannel channel) throws IOException {
+        for (int i = 0; i < edits.size(); i++) {
+            ByteBuffer edit = edits.get(i).duplicate();
+            edit.rewind();
+            long position = positions.get(i);
+            while (edit.hasRemaining()) {
+                position += channel.write(edit, position);
+            }
+        }
+    }
+}
@@ -27,55 +27,57 @@
 
 package de.corelogics.tools.android.binarymanifest.chunks;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
-public class ResValidateImpl extends ResSource implements ResTarget {
-    public ResValidateImpl(File file) throws IOException {
-        super(file);
+/**
+ * Discards the output and only records its length.
+ */
+public class ResSizingTarget implements ResTarget {
+    private long position;
+    private long length;
+
+    public long length() {
+        return Math.max(length, position);
+    }
+
+    @Override
+    public void close() {
     }
 
     @Override
-    public void close() throws IOException {
-        sourceFile.close();
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void position(long position) {
+        this.length = length();
+        this.position = position;
     }
 
     @Override
     public void writeU16(int val) {
-        long pos = super.position();
-        int read = readU16();
-        if (read != val) {
-            System.err.println("@" + pos + ": Ex=" + read + ", act=" + val);
-        }
+        position += LEN_U16;
     }
 
     @Override
     public void writeU32(long val) {
-        long pos = super.position();
-        long read = readU32();
-        if (read != val) {
-            System.err.println("@" + pos + ": Ex=" + read + ", act=" + val);
-        }
+        position += LEN_U32;
     }
 
     @Override
     public void writeU8(int val) {
-        long pos = super.position();
-        int read = readU8();
-        if (read != val) {
-            System.err.println("@" + pos + ": Ex=" + read + ", act=" + val);
-        }
+        position += LEN_U8;
     }
 
     @Override
     public void write(byte[] data) {
-        long pos = super.position();
+        position += data.length;
+    }
 
-        byte[] read = new byte[data.length];
-        super.get(read);
-        if (!Arrays.equals(read, data)) {
-            throw new IllegalStateException("@" + pos + ": Ex:" + Arrays.toString(read) + ", act: " + Arrays.toString(data));
-        }
+    @Override
+    public void write(ByteBuffer data) {
+        position += data.remaining();
+        data.position(data.limit());
     }
 }
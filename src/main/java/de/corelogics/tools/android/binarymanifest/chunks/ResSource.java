@@ -29,23 +29,64 @@ package de.corelogics.tools.android.binarymanifest.chunks;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 public class ResSource {
-    protected final RandomAccessFile sourceFile;
-    protected final MappedByteBuffer buffer;
+    protected final ByteBuffer buffer;
 
+    /**
+     * Maps the file read-only. The file is closed right away, the mapping stays valid without it.
+     */
     public ResSource(File source) throws IOException {
-        this.sourceFile = new RandomAccessFile(source, "r");
-        FileChannel inChannel = this.sourceFile.getChannel();
-        this.buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+        try (FileChannel inChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            this.buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public ResSource(ByteBuffer source) {
+        this.buffer = source.slice();
         buffer.order(ByteOrder.LITTLE_ENDIAN);
     }
 
+    public ResSource(byte[] source) {
+        this(ByteBuffer.wrap(source));
+    }
+
+    public ResSource(InputStream source, int maxLength) throws IOException {
+        this(readFully(source, maxLength));
+    }
+
+    private static ByteBuffer readFully(InputStream source, int maxLength) throws IOException {
+        byte[] data = new byte[Math.min(maxLength, 8192)];
+        int length = 0;
+        while (true) {
+            if (length == data.length) {
+                if (length == maxLength) {
+                    if (source.read() < 0) {
+                        break;
+                    }
+                    throw new IOException("Source exceeds " + maxLength + " bytes");
+                }
+                data = Arrays.copyOf(data, (int) Math.min(maxLength, 2L * length));
+            }
+            int read = source.read(data, length, data.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return ByteBuffer.wrap(data, 0, length);
+    }
+
     public int readU8() {
         return buffer.get() & 0xff;
     }
@@ -58,6 +99,29 @@ public class ResSource {
         return (long) buffer.getInt() & 0xffffffffL;
     }
 
+    public int getU8(long position) {
+        return buffer.get((int) position) & 0xff;
+    }
+
+    public int getU16(long position) {
+        return (int) (buffer.getShort((int) position)) & 0xffff;
+    }
+
+    public long getU32(long position) {
+        return (long) buffer.getInt((int) position) & 0xffffffffL;
+    }
+
+    public String getString(long position, int length, Charset charset) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + (int) position, length, charset);
+        }
+        byte[] data = new byte[length];
+        ByteBuffer content = buffer.duplicate();
+        content.position((int) position);
+        content.get(data);
+        return new String(data, charset);
+    }
+
     public long position() {
         return buffer.position();
     }
@@ -78,9 +142,35 @@ public class ResSource {
         return buffer.capacity();
     }
 
-    public void copyTo(long len, ResTarget tgt) {
-        for (long i = 0; i < len; i++) {
-            tgt.writeU8(this.readU8());
+    public byte[] toByteArray() {
+        byte[] data = new byte[buffer.capacity()];
+        ByteBuffer content = buffer.duplicate();
+        content.clear();
+        content.get(data);
+        return data;
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer content = buffer.duplicate();
+        content.clear();
+        while (content.hasRemaining()) {
+            channel.write(content);
+        }
+    }
+
+    public void copyTo(long position, long len, ResTarget tgt) {
+        if (0 == len) {
+            return;
         }
+        ByteBuffer content = buffer.duplicate();
+        content.limit((int) (position + len));
+        content.position((int) position);
+        tgt.write(content.slice());
+    }
+
+    public void copyTo(long len, ResTarget tgt) {
+        long position = position();
+        copyTo(position, len, tgt);
+        position(position + len);
     }
 }
@@ -0,0 +1,852 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * String pool that indexes the string offsets of the source and decodes a string on its first lookup.
+ * Strings added for writing are appended behind the original string data, which is copied as is unless
+ * the pool is re-encoded between UTF-16 and UTF-8. A pool that would be written exactly as read is copied
+ * as one block.
+ * <p>
+ * {@link #indexOf} uses an open-addressing hash table over all strings, built on first use from the
+ * raw string data with the same hash as {@link String#hashCode()}, so building it decodes nothing.
+ */
+public class ResStringPool {
+    private static final int MAX_UTF8_LENGTH = 0x7fff;
+    private static final int STRING_COUNT_OFFSET = 8;
+    private static final int FLAGS_OFFSET = 16;
+    private static final int STRINGS_START_OFFSET = 20;
+    private static final long SPAN_END = 0xffffffffL;
+    private static final int SPAN_SIZE = 3 * ResTarget.LEN_U32;
+    private static final int MALFORMED = -1;
+
+    private final ResSource src;
+    private final ResStringPoolHeader header;
+    private final long offsetsStart;
+    private final long stringsStart;
+    private final int stringCount;
+    private final String[] decoded;
+    private final int[] references;
+    private final List<String> inserted = new ArrayList<>();
+    private final List<String> added = new ArrayList<>();
+    private final Map<Integer, Integer> slotCapacities = new HashMap<>();
+    private int insertAt = -1;
+    private boolean utf8;
+    private int[] hashSlots;
+    private int[] hashCodes;
+    private int hashed;
+
+    public ResStringPool(ResStringPoolHeader header, ResSource src) {
+        this.src = src;
+        this.header = header;
+        long chunkStart = header.getHeader().getChunkOriginalStart();
+        this.offsetsStart = chunkStart + header.getHeader().getHeaderSize();
+        this.stringsStart = chunkStart + header.getStringsStart();
+        this.stringCount = (int) header.getStringCount();
+        this.decoded = new String[stringCount];
+        this.references = new int[stringCount];
+        this.utf8 = header.isUtf8();
+    }
+
+    /**
+     * Independent copy sharing the read-only source and the strings decoded so far.
+     */
+    public ResStringPool(ResStringPool other) {
+        this.src = other.src;
+        this.header = other.header;
+        this.offsetsStart = other.offsetsStart;
+        this.stringsStart = other.stringsStart;
+        this.stringCount = other.stringCount;
+        this.decoded = other.decoded.clone();
+        this.references = other.references.clone();
+        this.inserted.addAll(other.inserted);
+        this.added.addAll(other.added);
+        this.slotCapacities.putAll(other.slotCapacities);
+        this.insertAt = other.insertAt;
+        this.utf8 = other.utf8;
+        this.hashSlots = null == other.hashSlots ? null : other.hashSlots.clone();
+        this.hashCodes = null == other.hashCodes ? null : other.hashCodes.clone();
+        this.hashed = other.hashed;
+    }
+
+    public int size() {
+        return stringCount + inserted.size() + added.size();
+    }
+
+    public boolean isUtf8() {
+        return utf8;
+    }
+
+    public void setUtf8(boolean utf8) {
+        this.utf8 = utf8;
+    }
+
+    public boolean isReencoded() {
+        return utf8 != header.isUtf8();
+    }
+
+    public String lookup(long index) {
+        if (index < 0 || index >= size()) {
+            return "<UNKNOWN>";
+        }
+        int original = original(index);
+        if (original < 0) {
+            return extra(index);
+        }
+        String value = decoded[original];
+        if (null == value) {
+            value = decode(original);
+            decoded[original] = value;
+        }
+        return value;
+    }
+
+    public boolean equalsAt(long index, String key) {
+        if (index < 0 || index >= size()) {
+            return false;
+        }
+        int original = original(index);
+        if (original < 0) {
+            return key.equals(extra(index));
+        }
+        return stringEquals(src, stringPosition(original), header.isUtf8(), key);
+    }
+
+    private int original(long index) {
+        if (insertAt < 0 || index < insertAt) {
+            return index < stringCount ? (int) index : -1;
+        }
+        if (index < insertAt + inserted.size()) {
+            return -1;
+        }
+        long shifted = index - inserted.size();
+        return shifted < stringCount ? (int) shifted : -1;
+    }
+
+    private String extra(long index) {
+        if (insertAt >= 0 && index >= insertAt && index < insertAt + inserted.size()) {
+            return inserted.get((int) index - insertAt);
+        }
+        return added.get((int) index - stringCount - inserted.size());
+    }
+
+    public static boolean equalsAt(ResSource src, long chunkStart, long index, String key) {
+        if (index < 0 || index >= src.getU32(chunkStart + STRING_COUNT_OFFSET)) {
+            return false;
+        }
+        return stringEquals(src, stringPosition(src, chunkStart, (int) index), isUtf8(src, chunkStart), key);
+    }
+
+    public static String lookup(ResSource src, long chunkStart, long index) {
+        if (index < 0 || index >= src.getU32(chunkStart + STRING_COUNT_OFFSET)) {
+            return null;
+        }
+        return decodeString(src, stringPosition(src, chunkStart, (int) index), isUtf8(src, chunkStart));
+    }
+
+    private static boolean isUtf8(ResSource src, long chunkStart) {
+        return 0 != (src.getU32(chunkStart + FLAGS_OFFSET) & ResStringPoolHeader.UTF8_FLAG);
+    }
+
+    private static long stringPosition(ResSource src, long chunkStart, int index) {
+        long offsetsStart = chunkStart + src.getU16(chunkStart + ResTarget.LEN_U16);
+        return chunkStart + src.getU32(chunkStart + STRINGS_START_OFFSET) + src.getU32(offsetsStart + index * ResTarget.LEN_U32);
+    }
+
+    private static boolean stringEquals(ResSource src, long position, boolean utf8, String key) {
+        if (utf8) {
+            position += utf8LengthSize(src, position);
+            int byteLength = utf8Length(src, position);
+            return utf8Equals(src, position + utf8LengthSize(src, position), byteLength, key);
+        }
+        long start = position;
+        int length = utf16Length(src, position);
+        position += utf16LengthSize(src, position);
+        for (int i = 0; i < length; i++) {
+            char c = (char) src.getU16(position + (long) i * ResTarget.LEN_U16);
+            if (Character.isSurrogate(c) && unpaired(src, position, length, i, c)) {
+                return decodeString(src, start, false).equals(key);
+            }
+            if (i >= key.length() || c != key.charAt(i)) {
+                return false;
+            }
+        }
+        return length == key.length();
+    }
+
+    private static boolean utf8Equals(ResSource src, long position, int byteLength, String key) {
+        long start = position;
+        long end = position + byteLength;
+        int i = 0;
+        while (position < end) {
+            int codePoint = utf8CodePointAt(src, position, end);
+            if (MALFORMED == codePoint) {
+                return src.getString(start, byteLength, StandardCharsets.UTF_8).equals(key);
+            }
+            position += utf8SequenceLength(codePoint);
+            if (Character.isSupplementaryCodePoint(codePoint)) {
+                if (i + 1 >= key.length()
+                        || key.charAt(i) != Character.highSurrogate(codePoint)
+                        || key.charAt(i + 1) != Character.lowSurrogate(codePoint)) {
+                    return false;
+                }
+                i += 2;
+            } else {
+                if (i >= key.length() || key.charAt(i) != codePoint) {
+                    return false;
+                }
+                i++;
+            }
+        }
+        return i == key.length();
+    }
+
+    /**
+     * Code point of the UTF-8 sequence at {@code position}, or {@link #MALFORMED} for anything the JDK
+     * decoder would replace: bad lead or continuation bytes, overlong forms, surrogates and sequences
+     * running past {@code end}.
+     */
+    private static int utf8CodePointAt(ResSource src, long position, long end) {
+        int codePoint = src.getU8(position);
+        if (codePoint < 0x80) {
+            return codePoint;
+        } else if (codePoint < 0xc0 || codePoint >= 0xf8) {
+            return MALFORMED;
+        }
+        int sequenceLength;
+        int min;
+        if (codePoint >= 0xf0) {
+            codePoint &= 0x07;
+            sequenceLength = 4;
+            min = 0x10000;
+        } else if (codePoint >= 0xe0) {
+            codePoint &= 0x0f;
+            sequenceLength = 3;
+            min = 0x800;
+        } else {
+            codePoint &= 0x1f;
+            sequenceLength = 2;
+            min = 0x80;
+        }
+        if (position + sequenceLength > end) {
+            return MALFORMED;
+        }
+        for (int k = 1; k < sequenceLength; k++) {
+            int continuation = src.getU8(position + k);
+            if (0x80 != (continuation & 0xc0)) {
+                return MALFORMED;
+            }
+            codePoint = (codePoint << 6) | (continuation & 0x3f);
+        }
+        if (codePoint < min || codePoint > Character.MAX_CODE_POINT
+                || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            return MALFORMED;
+        }
+        return codePoint;
+    }
+
+    private static int utf8SequenceLength(int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        } else if (codePoint < 0x800) {
+            return 2;
+        }
+        return codePoint < 0x10000 ? 3 : 4;
+    }
+
+    /**
+     * Whether the surrogate {@code c} at unit {@code i} lacks its other half, which the JDK decoder replaces.
+     */
+    private static boolean unpaired(ResSource src, long position, int length, int i, char c) {
+        if (Character.isHighSurrogate(c)) {
+            return i + 1 >= length
+                    || !Character.isLowSurrogate((char) src.getU16(position + (long) (i + 1) * ResTarget.LEN_U16));
+        }
+        return 0 == i || !Character.isHighSurrogate((char) src.getU16(position + (long) (i - 1) * ResTarget.LEN_U16));
+    }
+
+    public int indexOf(String value) {
+        return indexOf(value, 0);
+    }
+
+    /**
+     * Lowest index not below {@code from} that holds {@code value}, or -1.
+     */
+    public int indexOf(String value, int from) {
+        updateHashIndex();
+        int hash = value.hashCode();
+        int mask = hashSlots.length - 1;
+        for (int slot = mix(hash) & mask; 0 != hashSlots[slot]; slot = (slot + 1) & mask) {
+            int index = hashSlots[slot] - 1;
+            if (hashCodes[slot] == hash && index >= from && equalsAt(index, value)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    public int add(String value) {
+        int index = indexOf(value, stringCount + inserted.size());
+        if (index < 0) {
+            added.add(value);
+            index = size() - 1;
+            hash(index, value.hashCode());
+        }
+        return index;
+    }
+
+    /**
+     * Replaces a string appended by {@link #add(String)}, e.g. a versionName that is changed again before
+     * the next write, instead of appending another one.
+     */
+    public void setAdded(int index, String value) {
+        int position = index - stringCount - inserted.size();
+        if (position < 0 || position >= added.size()) {
+            throw new IllegalArgumentException("String " + index + " has not been added");
+        }
+        added.set(position, value);
+        hashSlots = null;
+    }
+
+    private void updateHashIndex() {
+        if (null != hashSlots && hashed == size()) {
+            return;
+        }
+        int capacity = Integer.highestOneBit(Math.max(16, 2 * size() - 1)) << 1;
+        hashSlots = new int[capacity];
+        hashCodes = new int[capacity];
+        hashed = 0;
+        for (int i = 0; i < size(); i++) {
+            int original = original(i);
+            hash(i, original >= 0 ? hashCode(original) : extra(i).hashCode());
+        }
+    }
+
+    private void hash(int index, int hash) {
+        if (null == hashSlots || index != hashed) {
+            hashSlots = null;
+            return;
+        }
+        if (2 * (hashed + 1) > hashSlots.length) {
+            hashSlots = null;
+            updateHashIndex();
+            return;
+        }
+        int mask = hashSlots.length - 1;
+        int slot = mix(hash) & mask;
+        while (0 != hashSlots[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        hashSlots[slot] = index + 1;
+        hashCodes[slot] = hash;
+        hashed++;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private int hashCode(int original) {
+        if (null != decoded[original]) {
+            return decoded[original].hashCode();
+        }
+        long position = stringPosition(original);
+        int hash = 0;
+        if (header.isUtf8()) {
+            position += utf8LengthSize(src, position);
+            int byteLength = utf8Length(src, position);
+            position += utf8LengthSize(src, position);
+            long end = position + byteLength;
+            while (position < end) {
+                int codePoint = utf8CodePointAt(src, position, end);
+                if (MALFORMED == codePoint) {
+                    return decode(original).hashCode();
+                }
+                position += utf8SequenceLength(codePoint);
+                if (Character.isSupplementaryCodePoint(codePoint)) {
+                    hash = 31 * hash + Character.highSurrogate(codePoint);
+                    hash = 31 * hash + Character.lowSurrogate(codePoint);
+                } else {
+                    hash = 31 * hash + codePoint;
+                }
+            }
+            return hash;
+        }
+        int length = utf16Length(src, position);
+        position += utf16LengthSize(src, position);
+        for (int i = 0; i < length; i++) {
+            char c = (char) src.getU16(position + (long) i * ResTarget.LEN_U16);
+            if (Character.isSurrogate(c) && unpaired(src, position, length, i, c)) {
+                return decode(original).hashCode();
+            }
+            hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    /**
+     * Inserts a string at the given index, shifting all following indices by one. Used to grow the
+     * prefix of attribute names that the resource map refers to, so all inserts have to be adjacent.
+     * Inserted in front of styled strings, the new string gets an empty style so the styles stay with
+     * their strings, and span names are shifted like all other indices.
+     */
+    public int insert(int index, String value) {
+        if (insertAt < 0 && index <= stringCount) {
+            insertAt = index;
+        } else if (index != insertAt + inserted.size()) {
+            throw new IllegalStateException("Strings can only be inserted at index " + (insertAt + inserted.size()));
+        }
+        inserted.add(value);
+        hashSlots = null;
+        return index;
+    }
+
+    private long stringPosition(int index) {
+        return stringsStart + src.getU32(offsetsStart + index * ResTarget.LEN_U32);
+    }
+
+    private static int utf16Length(ResSource src, long position) {
+        int length = src.getU16(position);
+        if (length > 0x7fff) {
+            length = ((length & 0x7fff) << 16) | src.getU16(position + ResTarget.LEN_U16);
+        }
+        return length;
+    }
+
+    private static int utf16LengthSize(ResSource src, long position) {
+        return src.getU16(position) > 0x7fff ? 2 * ResTarget.LEN_U16 : ResTarget.LEN_U16;
+    }
+
+    private static int utf8Length(ResSource src, long position) {
+        int length = src.getU8(position);
+        if (length > 0x7f) {
+            length = ((length & 0x7f) << 8) | src.getU8(position + ResTarget.LEN_U8);
+        }
+        return length;
+    }
+
+    private static int utf8LengthSize(ResSource src, long position) {
+        return src.getU8(position) > 0x7f ? 2 * ResTarget.LEN_U8 : ResTarget.LEN_U8;
+    }
+
+    /**
+     * Bytes taken by the string at {@code position}, including its length prefixes and terminator.
+     */
+    static long storedLength(ResSource src, long position, boolean utf8) {
+        if (utf8) {
+            long bytes = position + utf8LengthSize(src, position);
+            return bytes - position + utf8LengthSize(src, bytes) + utf8Length(src, bytes) + ResTarget.LEN_U8;
+        }
+        return utf16LengthSize(src, position) + (utf16Length(src, position) + 1L) * ResTarget.LEN_U16;
+    }
+
+    private String decode(int index) {
+        return decodeString(src, stringPosition(index), header.isUtf8());
+    }
+
+    private static String decodeString(ResSource src, long position, boolean utf8) {
+        if (utf8) {
+            position += utf8LengthSize(src, position);
+            int byteLength = utf8Length(src, position);
+            return src.getString(position + utf8LengthSize(src, position), byteLength, StandardCharsets.UTF_8);
+        }
+        int length = utf16Length(src, position);
+        return src.getString(position + utf16LengthSize(src, position), length * ResTarget.LEN_U16, StandardCharsets.UTF_16LE);
+    }
+
+    private long stringsDataLength() {
+        if (0 == stringCount) {
+            return 0;
+        }
+        ResChunkHeader chunk = header.getHeader();
+        long end = header.getStyleCount() > 0 ?
+                chunk.getChunkOriginalStart() + header.getStylesStart() :
+                chunk.getChunkOriginalStart() + chunk.getSize();
+        return end - stringsStart;
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public static int encodedLength(String value, boolean utf8) {
+        if (utf8) {
+            int byteLength = utf8Length(value);
+            if (value.length() > MAX_UTF8_LENGTH || byteLength > MAX_UTF8_LENGTH) {
+                throw new IllegalStateException("String of " + byteLength + " bytes is too long for a UTF-8 string pool");
+            }
+            return (value.length() > 0x7f ? 2 : 1) + (byteLength > 0x7f ? 2 : 1) + byteLength + ResTarget.LEN_U8;
+        }
+        return (value.length() > 0x7fff ? 2 : 1) * ResTarget.LEN_U16 + (value.length() + 1) * ResTarget.LEN_U16;
+    }
+
+    private static void writeUtf8Length(ResTarget tgt, int length, boolean wide) {
+        if (wide || length > 0x7f) {
+            tgt.writeU8(0x80 | (length >> 8));
+            tgt.writeU8(length & 0xff);
+        } else {
+            tgt.writeU8(length);
+        }
+    }
+
+    private static void writeUtf16Length(ResTarget tgt, int length, boolean wide) {
+        if (wide || length > 0x7fff) {
+            tgt.writeU16(0x8000 | (length >> 16));
+            tgt.writeU16(length & 0xffff);
+        } else {
+            tgt.writeU16(length);
+        }
+    }
+
+    private static void writeUtf8(ResTarget tgt, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                tgt.writeU8(c);
+            } else if (c < 0x800) {
+                tgt.writeU8(0xc0 | (c >> 6));
+                tgt.writeU8(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                tgt.writeU8(0xf0 | (codePoint >> 18));
+                tgt.writeU8(0x80 | ((codePoint >> 12) & 0x3f));
+                tgt.writeU8(0x80 | ((codePoint >> 6) & 0x3f));
+                tgt.writeU8(0x80 | (codePoint & 0x3f));
+            } else {
+                tgt.writeU8(0xe0 | (c >> 12));
+                tgt.writeU8(0x80 | ((c >> 6) & 0x3f));
+                tgt.writeU8(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private static void writeString(ResTarget tgt, String value, boolean utf8) {
+        if (utf8) {
+            writeUtf8Length(tgt, value.length(), false);
+            writeUtf8Length(tgt, utf8Length(value), false);
+            writeUtf8(tgt, value);
+            tgt.writeU8(0);
+        } else {
+            writeUtf16Length(tgt, value.length(), false);
+            for (int i = 0; i < value.length(); i++) {
+                tgt.writeU16(value.charAt(i));
+            }
+            tgt.writeU16(0);
+        }
+    }
+
+    public void writeTo(ResTarget tgt) {
+        int newStringCount = size();
+        int styleCount = (int) header.getStyleCount();
+        int insertedStyles = insertAt >= 0 && insertAt < styleCount ? inserted.size() : 0;
+        int newStyleCount = styleCount + insertedStyles;
+        int headerSize = header.getHeader().getHeaderSize();
+        int newStringsStart = headerSize + newStringCount * ResTarget.LEN_U32 + newStyleCount * ResTarget.LEN_U32;
+        boolean reencode = isReencoded();
+
+        String[] reencoded = null;
+        int originalLength;
+        if (reencode) {
+            reencoded = new String[stringCount];
+            originalLength = 0;
+            for (int i = 0; i < stringCount; i++) {
+                reencoded[i] = null != decoded[i] ? decoded[i] : decode(i);
+                originalLength += encodedLength(reencoded[i], utf8);
+            }
+        } else {
+            originalLength = (int) stringsDataLength();
+        }
+        int stringsLength = originalLength;
+        for (String st : inserted) {
+            stringsLength += encodedLength(st, utf8);
+        }
+        for (String st : added) {
+            stringsLength += encodedLength(st, utf8);
+        }
+        while ((reencode || !inserted.isEmpty() || !added.isEmpty()) && 0 != stringsLength % 4) {
+            stringsLength++;
+        }
+
+        ResChunkHeader chunk = header.getHeader();
+        long stylesDataStart = chunk.getChunkOriginalStart() + header.getStylesStart();
+        int stylesLength = styleCount > 0 ? (int) (chunk.getChunkOriginalStart() + chunk.getSize() - stylesDataStart) : 0;
+        int newStylesStart = newStringsStart + stringsLength;
+        int length = newStylesStart + stylesLength + (insertedStyles > 0 ? ResTarget.LEN_U32 : 0);
+
+        if (!reencode && inserted.isEmpty() && added.isEmpty() && 0 == length % 4 && length == chunk.getSize()
+                && 28 == headerSize
+                && newStringsStart == header.getStringsStart()
+                && (styleCount > 0 ? newStylesStart : 0) == header.getStylesStart()) {
+            src.copyTo(chunk.getChunkOriginalStart(), length, tgt);
+            return;
+        }
+        header.writeTo(
+                tgt,
+                newStringCount,
+                newStyleCount,
+                utf8,
+                newStringsStart,
+                styleCount > 0 ? newStylesStart : 0,
+                length - headerSize);
+
+        int pos = originalLength;
+        if (reencode) {
+            long[] offsets = new long[stringCount];
+            int offset = 0;
+            for (int i = 0; i < stringCount; i++) {
+                offsets[i] = offset;
+                offset += encodedLength(reencoded[i], utf8);
+            }
+            for (int i = 0; i < newStringCount; i++) {
+                int original = original(i);
+                if (original >= 0) {
+                    tgt.writeU32(offsets[original]);
+                } else if (insertAt >= 0 && i >= insertAt && i < insertAt + inserted.size()) {
+                    tgt.writeU32(pos);
+                    pos += encodedLength(inserted.get(i - insertAt), utf8);
+                }
+            }
+        } else {
+            int before = insertAt < 0 ? stringCount : insertAt;
+            src.copyTo(offsetsStart, (long) before * ResTarget.LEN_U32, tgt);
+            for (String st : inserted) {
+                tgt.writeU32(pos);
+                pos += encodedLength(st, utf8);
+            }
+            src.copyTo(offsetsStart + (long) before * ResTarget.LEN_U32, (long) (stringCount - before) * ResTarget.LEN_U32, tgt);
+        }
+        for (String st : added) {
+            tgt.writeU32(pos);
+            pos += encodedLength(st, utf8);
+        }
+        long styleOffsetsStart = offsetsStart + (long) stringCount * ResTarget.LEN_U32;
+        if (insertedStyles > 0) {
+            src.copyTo(styleOffsetsStart, (long) insertAt * ResTarget.LEN_U32, tgt);
+            for (int i = 0; i < insertedStyles; i++) {
+                tgt.writeU32(stylesLength);
+            }
+            src.copyTo(styleOffsetsStart + (long) insertAt * ResTarget.LEN_U32, (long) (styleCount - insertAt) * ResTarget.LEN_U32, tgt);
+        } else {
+            src.copyTo(styleOffsetsStart, styleCount * (long) ResTarget.LEN_U32, tgt);
+        }
+
+        long stringsDataStart = tgt.position();
+        if (reencode) {
+            for (String st : reencoded) {
+                writeString(tgt, st, utf8);
+            }
+        } else {
+            src.copyTo(stringsStart, originalLength, tgt);
+        }
+        for (String st : inserted) {
+            writeString(tgt, st, utf8);
+        }
+        for (String st : added) {
+            writeString(tgt, st, utf8);
+        }
+        while (tgt.position() < stringsDataStart + stringsLength) {
+            tgt.writeU8(0);
+        }
+        long newStylesDataStart = tgt.position();
+        src.copyTo(stylesDataStart, stylesLength, tgt);
+        if (!inserted.isEmpty()) {
+            shiftSpanNames(tgt, styleOffsetsStart, styleCount, stylesDataStart, stylesLength, newStylesDataStart);
+        }
+        if (insertedStyles > 0) {
+            tgt.writeU32(SPAN_END);
+        }
+        while (tgt.position() % 4 != 0) {
+            tgt.writeU8(0);
+        }
+    }
+
+    /**
+     * Rewrites the span names of the copied styles that point at or behind the inserted strings. The names are
+     * read from the source, so styles sharing their spans are not shifted twice.
+     */
+    private void shiftSpanNames(ResTarget tgt, long styleOffsetsStart, int styleCount, long stylesDataStart, int stylesLength,
+                                long newStylesDataStart) {
+        long end = tgt.position();
+        for (int i = 0; i < styleCount; i++) {
+            long offset = src.getU32(styleOffsetsStart + (long) i * ResTarget.LEN_U32);
+            for (long span = stylesDataStart + offset; span + SPAN_SIZE <= stylesDataStart + stylesLength; span += SPAN_SIZE) {
+                long name = src.getU32(span);
+                if (SPAN_END == name) {
+                    break;
+                }
+                if (name >= insertAt) {
+                    tgt.position(newStylesDataStart + span - stylesDataStart);
+                    tgt.writeU32(name + inserted.size());
+                }
+            }
+        }
+        tgt.position(end);
+    }
+
+    /**
+     * Encoded form of {@code value} as stored in a pool, with length prefix and terminator.
+     */
+    public static byte[] encode(String value, boolean utf8) {
+        ResHeapTarget tgt = new ResHeapTarget(encodedLength(value, utf8));
+        writeString(tgt, value, utf8);
+        return tgt.toByteArray();
+    }
+
+    /**
+     * Writes a new pool chunk without styles holding {@code strings} in the given order.
+     */
+    public static void write(ResTarget tgt, List<String> strings, boolean utf8) {
+        int headerSize = 7 * ResTarget.LEN_U32;
+        int stringsStart = headerSize + strings.size() * ResTarget.LEN_U32;
+        int stringsLength = 0;
+        for (String st : strings) {
+            stringsLength += encodedLength(st, utf8);
+        }
+        stringsLength = (stringsLength + 3) & ~3;
+
+        tgt.writeU16(0x0001);
+        tgt.writeU16(headerSize);
+        tgt.writeU32(stringsStart + stringsLength);
+        tgt.writeU32(strings.size());
+        tgt.writeU32(0);
+        tgt.writeU32(utf8 ? ResStringPoolHeader.UTF8_FLAG : 0);
+        tgt.writeU32(stringsStart);
+        tgt.writeU32(0);
+        int pos = 0;
+        for (String st : strings) {
+            tgt.writeU32(pos);
+            pos += encodedLength(st, utf8);
+        }
+        for (String st : strings) {
+            writeString(tgt, st, utf8);
+        }
+        for (; pos < stringsLength; pos++) {
+            tgt.writeU8(0);
+        }
+    }
+
+    public void reference(long index) {
+        if (index >= 0 && index < references.length) {
+            references[(int) index]++;
+        }
+    }
+
+    public boolean canPatch(long index, String value, int ownReferences) {
+        if (isReencoded() || !inserted.isEmpty() || index < 0 || index >= stringCount || references[(int) index] != ownReferences) {
+            return false;
+        }
+        long position = stringPosition((int) index);
+        if (header.isUtf8()) {
+            int charLengthSize = utf8LengthSize(src, position);
+            return value.length() <= (1 == charLengthSize ? 0x7f : MAX_UTF8_LENGTH)
+                    && utf8Length(value) <= slotCapacity((int) index);
+        }
+        return value.length() <= slotCapacity((int) index);
+    }
+
+    /**
+     * Remembers the size of the slot of the string at {@code index} before the source itself is patched. The
+     * source may be a mapping of the patched file, and a shorter string leaves a shorter length there, which
+     * would otherwise shrink the slot for later patches.
+     */
+    public void retainSlot(long index) {
+        if (!slotCapacities.containsKey((int) index)) {
+            slotCapacities.put((int) index, slotCapacity((int) index));
+        }
+    }
+
+    /**
+     * Length of the string slot, in bytes for UTF-8 and chars for UTF-16.
+     */
+    private int slotCapacity(int index) {
+        Integer capacity = slotCapacities.get(index);
+        if (null != capacity) {
+            return capacity;
+        }
+        long position = stringPosition(index);
+        return header.isUtf8() ? utf8Length(src, position + utf8LengthSize(src, position)) : utf16Length(src, position);
+    }
+
+    public void patchString(ResPatch patch, long index, String value) {
+        long position = stringPosition((int) index);
+        int slotLength;
+        ResHeapTarget slot;
+        if (header.isUtf8()) {
+            int charLengthSize = utf8LengthSize(src, position);
+            int byteLengthSize = utf8LengthSize(src, position + charLengthSize);
+            slotLength = charLengthSize + byteLengthSize + slotCapacity((int) index) + ResTarget.LEN_U8;
+            slot = new ResHeapTarget(slotLength);
+            writeUtf8Length(slot, value.length(), 2 == charLengthSize);
+            writeUtf8Length(slot, utf8Length(value), 2 == byteLengthSize);
+            writeUtf8(slot, value);
+        } else {
+            int lengthSize = utf16LengthSize(src, position);
+            slotLength = lengthSize + (slotCapacity((int) index) + 1) * ResTarget.LEN_U16;
+            slot = new ResHeapTarget(slotLength);
+            writeUtf16Length(slot, value.length(), 2 * ResTarget.LEN_U16 == lengthSize);
+            for (int i = 0; i < value.length(); i++) {
+                slot.writeU16(value.charAt(i));
+            }
+        }
+        slot.close();
+        patch.allocate(position, slotLength).put(slot.toByteArray());
+    }
+
+    public void patched(long index, String value) {
+        decoded[(int) index] = value;
+    }
+
+    @Override
+    public String toString() {
+        return "ResStringPool{" +
+                "header=" + header +
+                ", added=" + added +
+                '}';
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+public class ResStringPoolHeader {
+    public static final int UTF8_FLAG = 0x100;
+
+    private final ResChunkHeader header;
+    private final long stringCount; // u32
+    private final long styleCount; // u32
+    private final long flags; // u32
+    private final long stringsStart; // u32
+    private final long stylesStart; // u32
+
+    public ResStringPoolHeader(ResChunkHeader header, ResSource src) {
+        this.header = header;
+        this.stringCount = src.readU32();
+        this.styleCount = src.readU32();
+        this.flags = src.readU32();
+        this.stringsStart = src.readU32();
+        this.stylesStart = src.readU32();
+    }
+
+    public ResChunkHeader getHeader() {
+        return header;
+    }
+
+    public long getStringCount() {
+        return stringCount;
+    }
+
+    public long getStyleCount() {
+        return styleCount;
+    }
+
+    public long getFlags() {
+        return flags;
+    }
+
+    public long getStringsStart() {
+        return stringsStart;
+    }
+
+    public long getStylesStart() {
+        return stylesStart;
+    }
+
+    public boolean isUtf8() {
+        return 0 != (flags & UTF8_FLAG);
+    }
+
+    @Override
+    public String toString() {
+        return "ResStringPoolHeader{" +
+                "header=" + header +
+                ", stringCount=" + stringCount +
+                ", styleCount=" + styleCount +
+                ", flags=" + flags +
+                ", stringsStart=" + stringsStart +
+                ", stylesStart=" + stylesStart +
+                '}';
+    }
+
+    public void writeTo(ResTarget tgt, int newStringCount, int newStyleCount, boolean utf8, int newStringsStart, int stylesStart, int length) {
+        header.writeTo(tgt, length + 5 * tgt.LEN_U32);
+        tgt.writeU32(newStringCount);
+        tgt.writeU32(newStyleCount);
+        tgt.writeU32(utf8 ? flags | UTF8_FLAG : flags & ~UTF8_FLAG);
+        tgt.writeU32(newStringsStart);
+        tgt.writeU32(stylesStart);
+    }
+}
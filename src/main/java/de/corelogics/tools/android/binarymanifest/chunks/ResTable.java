@@ -0,0 +1,366 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lazy reader for a compiled resource table ({@code resources.arsc}). The constructor only walks chunk
+ * headers to index the packages and the type chunks of every type; entries, configurations and strings are
+ * read from the source at absolute positions when they are looked up, and strings are decoded one at a time
+ * without building the string pools. A lookup therefore touches the pages of the candidate type chunks' offset
+ * tables and entries and of the strings it returns, not the whole table, which can stay mapped.
+ * <p>
+ * A table is immutable once built and may be used from any number of threads.
+ */
+public class ResTable {
+    public static final int RES_TABLE_TYPE = 0x0002;
+    public static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+    public static final int RES_TABLE_TYPE_TYPE = 0x0201;
+    public static final int RES_TABLE_TYPE_SPEC_TYPE = 0x0202;
+
+    private static final int PACKAGE_NAME_OFFSET = 12;
+    private static final int PACKAGE_NAME_LENGTH = 128;
+    private static final int TYPE_STRINGS_OFFSET = 268;
+    private static final int KEY_STRINGS_OFFSET = 276;
+    private static final int TYPE_FLAGS_OFFSET = 9;
+    private static final int TYPE_ENTRY_COUNT_OFFSET = 12;
+    private static final int TYPE_ENTRIES_START_OFFSET = 16;
+    private static final int TYPE_CONFIG_OFFSET = 20;
+    private static final int FLAG_SPARSE = 0x01;
+    private static final int FLAG_OFFSET16 = 0x02;
+    private static final int ENTRY_FLAG_COMPLEX = 0x0001;
+    private static final int ENTRY_FLAG_COMPACT = 0x0008;
+    private static final long NO_ENTRY = 0xffffffffL;
+    private static final int MAX_REFERENCE_DEPTH = 16;
+
+    private final ResSource src;
+    private final long stringPool;
+    private final Package[] packages = new Package[256];
+
+    public ResTable(File source) throws IOException {
+        this(new ResSource(source));
+    }
+
+    public ResTable(ByteBuffer source) {
+        this(new ResSource(source));
+    }
+
+    public ResTable(byte[] source) {
+        this(new ResSource(source));
+    }
+
+    public ResTable(ResSource src) {
+        if (src.capacity() < 2 * ResTarget.LEN_U32 + ResTarget.LEN_U32 || RES_TABLE_TYPE != src.getU16(0)) {
+            throw new IllegalArgumentException("Not a resource table");
+        }
+        this.src = src;
+        long end = Math.min(src.getU32(ResTarget.LEN_U32), src.capacity());
+        long stringPool = -1;
+        long position = src.getU16(ResTarget.LEN_U16);
+        while (position + 2 * ResTarget.LEN_U32 <= end) {
+            int type = src.getU16(position);
+            long size = src.getU32(position + ResTarget.LEN_U32);
+            if (size < 2 * ResTarget.LEN_U32 || position + size > end) {
+                throw new IllegalArgumentException("Corrupt chunk at " + position);
+            }
+            if (0x0001 == type && stringPool < 0) {
+                stringPool = position;
+            } else if (RES_TABLE_PACKAGE_TYPE == type) {
+                Package pkg = new Package(position, size);
+                packages[pkg.id] = pkg;
+            }
+            position += size;
+        }
+        this.stringPool = stringPool;
+    }
+
+    /**
+     * Ids of the packages in the table, usually just {@code 0x7f}.
+     */
+    public int[] getPackageIds() {
+        return Arrays.stream(packages).filter(pkg -> null != pkg).mapToInt(pkg -> pkg.id).toArray();
+    }
+
+    public String getPackageName(int packageId) {
+        Package pkg = packages[packageId & 0xff];
+        return null == pkg ? null : pkg.name;
+    }
+
+    /**
+     * The value of {@code resourceId} best matching {@code config}, {@code null} if there is none.
+     */
+    public Value getValue(int resourceId, ResTableConfig config) {
+        Package pkg = packages[resourceId >>> 24];
+        int typeId = (resourceId >>> 16) & 0xff;
+        if (null == pkg || typeId >= pkg.types.length || null == pkg.types[typeId]) {
+            return null;
+        }
+        int entryIndex = resourceId & 0xffff;
+        long best = -1;
+        ResTableConfig bestConfig = null;
+        for (long chunk : pkg.types[typeId]) {
+            long entry = findEntry(chunk, entryIndex);
+            if (entry < 0) {
+                continue;
+            }
+            ResTableConfig candidate = ResTableConfig.read(src, chunk + TYPE_CONFIG_OFFSET);
+            if (candidate.matches(config) && (null == bestConfig || candidate.isBetterThan(bestConfig, config))) {
+                best = entry;
+                bestConfig = candidate;
+            }
+        }
+        return best < 0 ? null : readValue(resourceId, best, bestConfig);
+    }
+
+    /**
+     * The value of {@code resourceId} for {@code config} with references followed.
+     */
+    public Value resolve(int resourceId, ResTableConfig config) {
+        Value value = getValue(resourceId, config);
+        for (int depth = 0; null != value && value.isReference(); depth++) {
+            if (depth == MAX_REFERENCE_DEPTH) {
+                throw new IllegalStateException(String.format("Reference loop at 0x%08x", resourceId));
+            }
+            value = 0 == value.getData() ? null : getValue(value.getData(), config);
+        }
+        return value;
+    }
+
+    /**
+     * The string {@code resourceId} resolves to for {@code config}, {@code null} if it is undefined.
+     */
+    public String getString(int resourceId, ResTableConfig config) {
+        Value value = resolve(resourceId, config);
+        if (null == value) {
+            return null;
+        }
+        if (ResXmlTree.TYPE_STRING != value.getType()) {
+            throw new IllegalStateException(String.format("0x%08x is not a string but of type %d", resourceId, value.getType()));
+        }
+        return value.getString();
+    }
+
+    /**
+     * The name of {@code resourceId} as in {@code com.example:string/app_name}, {@code null} if it is undefined.
+     */
+    public String getName(int resourceId) {
+        Package pkg = packages[resourceId >>> 24];
+        int typeId = (resourceId >>> 16) & 0xff;
+        if (null == pkg || typeId >= pkg.types.length || null == pkg.types[typeId]) {
+            return null;
+        }
+        for (long chunk : pkg.types[typeId]) {
+            long entry = findEntry(chunk, resourceId & 0xffff);
+            if (entry >= 0) {
+                return pkg.name + ":" + ResStringPool.lookup(src, pkg.typeStrings, typeId - 1) + "/" + ResStringPool.lookup(src, pkg.keyStrings, key(entry));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * All configurations {@code resourceId} has a value for.
+     */
+    public List<ResTableConfig> getConfigs(int resourceId) {
+        List<ResTableConfig> configs = new ArrayList<>();
+        Package pkg = packages[resourceId >>> 24];
+        int typeId = (resourceId >>> 16) & 0xff;
+        if (null != pkg && typeId < pkg.types.length && null != pkg.types[typeId]) {
+            for (long chunk : pkg.types[typeId]) {
+                if (findEntry(chunk, resourceId & 0xffff) >= 0) {
+                    configs.add(ResTableConfig.read(src, chunk + TYPE_CONFIG_OFFSET));
+                }
+            }
+        }
+        return configs;
+    }
+
+    private long findEntry(long chunk, int index) {
+        int flags = src.getU8(chunk + TYPE_FLAGS_OFFSET);
+        long entryCount = src.getU32(chunk + TYPE_ENTRY_COUNT_OFFSET);
+        long offsets = chunk + src.getU16(chunk + ResTarget.LEN_U16);
+        long entries = chunk + src.getU32(chunk + TYPE_ENTRIES_START_OFFSET);
+        long offset;
+        if (0 != (flags & FLAG_SPARSE)) {
+            long low = 0;
+            long high = entryCount - 1;
+            offset = NO_ENTRY;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                int entryIndex = src.getU16(offsets + middle * ResTarget.LEN_U32);
+                if (entryIndex < index) {
+                    low = middle + 1;
+                } else if (entryIndex > index) {
+                    high = middle - 1;
+                } else {
+                    offset = (long) src.getU16(offsets + middle * ResTarget.LEN_U32 + ResTarget.LEN_U16) * ResTarget.LEN_U32;
+                    break;
+                }
+            }
+        } else if (index >= entryCount) {
+            return -1;
+        } else if (0 != (flags & FLAG_OFFSET16)) {
+            int shortOffset = src.getU16(offsets + (long) index * ResTarget.LEN_U16);
+            offset = 0xffff == shortOffset ? NO_ENTRY : (long) shortOffset * ResTarget.LEN_U32;
+        } else {
+            offset = src.getU32(offsets + (long) index * ResTarget.LEN_U32);
+        }
+        return NO_ENTRY == offset ? -1 : entries + offset;
+    }
+
+    private int key(long entry) {
+        int flags = src.getU16(entry + ResTarget.LEN_U16);
+        return 0 != (flags & ENTRY_FLAG_COMPACT) ? src.getU16(entry) : (int) src.getU32(entry + ResTarget.LEN_U32);
+    }
+
+    private Value readValue(int resourceId, long entry, ResTableConfig config) {
+        int flags = src.getU16(entry + ResTarget.LEN_U16);
+        if (0 != (flags & ENTRY_FLAG_COMPACT)) {
+            return new Value(resourceId, flags >>> 8, (int) src.getU32(entry + ResTarget.LEN_U32), config);
+        }
+        if (0 != (flags & ENTRY_FLAG_COMPLEX)) {
+            return new Value(resourceId, ResXmlTree.TYPE_NULL, 0, config);
+        }
+        long value = entry + src.getU16(entry);
+        return new Value(resourceId, src.getU8(value + ResTarget.LEN_U16 + ResTarget.LEN_U8), (int) src.getU32(value + ResTarget.LEN_U32), config);
+    }
+
+    /**
+     * A typed value of a table entry. Entries of styles, arrays and plurals have complex values that are
+     * reported as {@link ResXmlTree#TYPE_NULL}.
+     */
+    public class Value {
+        private final int resourceId;
+        private final int type;
+        private final int data;
+        private final ResTableConfig config;
+
+        private Value(int resourceId, int type, int data, ResTableConfig config) {
+            this.resourceId = resourceId;
+            this.type = type;
+            this.data = data;
+            this.config = config;
+        }
+
+        public int getResourceId() {
+            return resourceId;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getData() {
+            return data;
+        }
+
+        /**
+         * The configuration of the type chunk the value was taken from.
+         */
+        public ResTableConfig getConfig() {
+            return config;
+        }
+
+        public boolean isReference() {
+            return ResXmlTree.TYPE_REFERENCE == type || ResXmlTree.TYPE_DYNAMIC_REFERENCE == type;
+        }
+
+        /**
+         * The string of a {@link ResXmlTree#TYPE_STRING} value, decoded from the global string pool.
+         */
+        public String getString() {
+            return ResXmlTree.TYPE_STRING == type && stringPool >= 0 ? ResStringPool.lookup(src, stringPool, data & 0xffffffffL) : null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("0x%08x[%s] type=0x%02x data=0x%08x", resourceId, config, type, data);
+        }
+    }
+
+    private class Package {
+        private final int id;
+        private final String name;
+        private final long typeStrings;
+        private final long keyStrings;
+        private long[][] types = new long[0][];
+
+        private Package(long position, long size) {
+            this.id = (int) src.getU32(position + 2 * ResTarget.LEN_U32) & 0xff;
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < PACKAGE_NAME_LENGTH; i++) {
+                int c = src.getU16(position + PACKAGE_NAME_OFFSET + (long) i * ResTarget.LEN_U16);
+                if (0 == c) {
+                    break;
+                }
+                name.append((char) c);
+            }
+            this.name = name.toString();
+            this.typeStrings = position + src.getU32(position + TYPE_STRINGS_OFFSET);
+            this.keyStrings = position + src.getU32(position + KEY_STRINGS_OFFSET);
+
+            int[] counts = new int[256];
+            int[] filled = new int[256];
+            long end = position + size;
+            long chunk = position + src.getU16(position + ResTarget.LEN_U16);
+            for (int pass = 0; pass < 2; pass++) {
+                for (long child = chunk; child + 2 * ResTarget.LEN_U32 <= end; ) {
+                    long childSize = src.getU32(child + ResTarget.LEN_U32);
+                    if (childSize < 2 * ResTarget.LEN_U32 || child + childSize > end) {
+                        throw new IllegalArgumentException("Corrupt chunk at " + child);
+                    }
+                    if (RES_TABLE_TYPE_TYPE == src.getU16(child)) {
+                        int typeId = src.getU8(child + 2 * ResTarget.LEN_U32);
+                        if (0 == pass) {
+                            counts[typeId]++;
+                        } else {
+                            types[typeId][filled[typeId]++] = child;
+                        }
+                    }
+                    child += childSize;
+                }
+                if (0 == pass) {
+                    int typeCount = 0;
+                    for (int typeId = 0; typeId < counts.length; typeId++) {
+                        typeCount = 0 == counts[typeId] ? typeCount : typeId + 1;
+                    }
+                    types = new long[typeCount][];
+                    for (int typeId = 0; typeId < typeCount; typeId++) {
+                        types[typeId] = 0 == counts[typeId] ? null : new long[counts[typeId]];
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+/**
+ * The configuration qualifiers of a {@code resources.arsc} type chunk, or the device configuration to
+ * select values for. Matching and ranking follow {@code ResTable_config} for the qualifiers read here:
+ * a set qualifier of a candidate has to equal the requested one, or for screen sizes and the SDK version
+ * not exceed it, and the more specific candidate wins in the order mcc, mnc, locale, screen sizes,
+ * orientation, UI mode, density, touchscreen, keyboard, navigation and SDK version.
+ * <p>
+ * An unset requested SDK version accepts every version, an unset requested density is taken as mdpi.
+ */
+public class ResTableConfig {
+    public static final ResTableConfig DEFAULT = new ResTableConfig(null, 0, 0);
+
+    public static final int DENSITY_DEFAULT = 0;
+    public static final int DENSITY_MEDIUM = 160;
+    public static final int DENSITY_ANY = 0xfffe;
+    public static final int DENSITY_NONE = 0xffff;
+
+    private static final int UI_MODE_TYPE_MASK = 0x0f;
+    private static final int UI_MODE_NIGHT_MASK = 0x30;
+
+    private final int mcc;
+    private final int mnc;
+    private final String language;
+    private final String country;
+    private final int orientation;
+    private final int touchscreen;
+    private final int density;
+    private final int keyboard;
+    private final int navigation;
+    private final int sdkVersion;
+    private final int uiMode;
+    private final int smallestScreenWidthDp;
+    private final int screenWidthDp;
+    private final int screenHeightDp;
+
+    /**
+     * A requested configuration. {@code locale} is a language with an optional region, as in {@code de},
+     * {@code de-DE} or {@code de-rDE}, or {@code null}.
+     */
+    public ResTableConfig(String locale, int density, int sdkVersion) {
+        this(0, 0, language(locale), country(locale), 0, 0, density, 0, 0, sdkVersion, 0, 0, 0, 0);
+    }
+
+    public ResTableConfig(int mcc, int mnc, String language, String country, int orientation, int touchscreen, int density,
+                          int keyboard, int navigation, int sdkVersion, int uiMode, int smallestScreenWidthDp,
+                          int screenWidthDp, int screenHeightDp) {
+        this.mcc = mcc;
+        this.mnc = mnc;
+        this.language = null == language ? "" : language;
+        this.country = null == country ? "" : country;
+        this.orientation = orientation;
+        this.touchscreen = touchscreen;
+        this.density = density;
+        this.keyboard = keyboard;
+        this.navigation = navigation;
+        this.sdkVersion = sdkVersion;
+        this.uiMode = uiMode;
+        this.smallestScreenWidthDp = smallestScreenWidthDp;
+        this.screenWidthDp = screenWidthDp;
+        this.screenHeightDp = screenHeightDp;
+    }
+
+    /**
+     * Reads the {@code ResTable_config} at {@code position}; fields beyond its size field are unset.
+     */
+    static ResTableConfig read(ResSource src, long position) {
+        long size = src.getU32(position);
+        return new ResTableConfig(
+                u16(src, position, size, 4),
+                u16(src, position, size, 6),
+                unpack(src, position, size, 8, 'a'),
+                unpack(src, position, size, 10, '0'),
+                u8(src, position, size, 12),
+                u8(src, position, size, 13),
+                u16(src, position, size, 14),
+                u8(src, position, size, 16),
+                u8(src, position, size, 17),
+                u16(src, position, size, 24),
+                u8(src, position, size, 29),
+                u16(src, position, size, 30),
+                u16(src, position, size, 32),
+                u16(src, position, size, 34));
+    }
+
+    private static int u8(ResSource src, long position, long size, int offset) {
+        return offset + ResTarget.LEN_U8 <= size ? src.getU8(position + offset) : 0;
+    }
+
+    private static int u16(ResSource src, long position, long size, int offset) {
+        return offset + ResTarget.LEN_U16 <= size ? src.getU16(position + offset) : 0;
+    }
+
+    private static String unpack(ResSource src, long position, long size, int offset, char base) {
+        int first = u8(src, position, size, offset);
+        int second = u8(src, position, size, offset + 1);
+        if (0 == first) {
+            return "";
+        }
+        if (0 == (first & 0x80)) {
+            return new String(new char[]{(char) first, (char) second});
+        }
+        return new String(new char[]{
+                (char) (base + (second & 0x1f)),
+                (char) (base + (((second & 0xe0) >> 5) | ((first & 0x03) << 3))),
+                (char) (base + ((first & 0x7c) >> 2))});
+    }
+
+    private static String language(String locale) {
+        if (null == locale || locale.isEmpty()) {
+            return "";
+        }
+        return locale.split("[-_]")[0].toLowerCase();
+    }
+
+    private static String country(String locale) {
+        if (null == locale) {
+            return "";
+        }
+        String[] parts = locale.split("[-_]");
+        if (parts.length < 2) {
+            return "";
+        }
+        String region = parts[1].length() == 3 && 'r' == parts[1].charAt(0) ? parts[1].substring(1) : parts[1];
+        return region.toUpperCase();
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    public String getCountry() {
+        return country;
+    }
+
+    public int getDensity() {
+        return density;
+    }
+
+    public int getSdkVersion() {
+        return sdkVersion;
+    }
+
+    public boolean isDefault() {
+        return 0 == mcc && 0 == mnc && language.isEmpty() && country.isEmpty() && 0 == orientation && 0 == touchscreen
+                && 0 == density && 0 == keyboard && 0 == navigation && 0 == sdkVersion && 0 == uiMode
+                && 0 == smallestScreenWidthDp && 0 == screenWidthDp && 0 == screenHeightDp;
+    }
+
+    /**
+     * Whether values of this configuration apply to the {@code requested} one.
+     */
+    public boolean matches(ResTableConfig requested) {
+        return equalIfSet(mcc, requested.mcc)
+                && equalIfSet(mnc, requested.mnc)
+                && (language.isEmpty() || language.equals(requested.language))
+                && (country.isEmpty() || country.equals(requested.country))
+                && atMostIfSet(smallestScreenWidthDp, requested.smallestScreenWidthDp)
+                && atMostIfSet(screenWidthDp, requested.screenWidthDp)
+                && atMostIfSet(screenHeightDp, requested.screenHeightDp)
+                && equalIfSet(orientation, requested.orientation)
+                && equalIfSet(uiMode & UI_MODE_TYPE_MASK, requested.uiMode & UI_MODE_TYPE_MASK)
+                && equalIfSet(uiMode & UI_MODE_NIGHT_MASK, requested.uiMode & UI_MODE_NIGHT_MASK)
+                && equalIfSet(touchscreen, requested.touchscreen)
+                && equalIfSet(keyboard, requested.keyboard)
+                && equalIfSet(navigation, requested.navigation)
+                && (0 == requested.sdkVersion || sdkVersion <= requested.sdkVersion);
+    }
+
+    private static boolean equalIfSet(int value, int requested) {
+        return 0 == value || value == requested;
+    }
+
+    private static boolean atMostIfSet(int value, int requested) {
+        return 0 == value || value <= requested;
+    }
+
+    /**
+     * Whether this configuration is a better match for {@code requested} than {@code other}, both matching it.
+     */
+    public boolean isBetterThan(ResTableConfig other, ResTableConfig requested) {
+        int[][] qualifiers = {
+                {mcc, other.mcc},
+                {mnc, other.mnc},
+                {language.isEmpty() ? 0 : 1, other.language.isEmpty() ? 0 : 1},
+                {country.isEmpty() ? 0 : 1, other.country.isEmpty() ? 0 : 1},
+                {smallestScreenWidthDp, other.smallestScreenWidthDp},
+                {screenWidthDp, other.screenWidthDp},
+                {screenHeightDp, other.screenHeightDp},
+                {orientation, other.orientation},
+                {uiMode & UI_MODE_TYPE_MASK, other.uiMode & UI_MODE_TYPE_MASK},
+                {uiMode & UI_MODE_NIGHT_MASK, other.uiMode & UI_MODE_NIGHT_MASK},
+        };
+        for (int[] qualifier : qualifiers) {
+            if (qualifier[0] != qualifier[1]) {
+                return qualifier[0] > qualifier[1];
+            }
+        }
+        if (density != other.density) {
+            return isBetterDensity(density, other.density, 0 == requested.density ? DENSITY_MEDIUM : requested.density);
+        }
+        int[][] rest = {
+                {touchscreen, other.touchscreen},
+                {keyboard, other.keyboard},
+                {navigation, other.navigation},
+                {sdkVersion, other.sdkVersion},
+        };
+        for (int[] qualifier : rest) {
+            if (qualifier[0] != qualifier[1]) {
+                return qualifier[0] > qualifier[1];
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBetterDensity(int density, int other, int requested) {
+        if (DENSITY_ANY == density || DENSITY_ANY == other) {
+            return DENSITY_ANY == density;
+        }
+        int value = DENSITY_DEFAULT == density ? DENSITY_MEDIUM : density;
+        int otherValue = DENSITY_DEFAULT == other ? DENSITY_MEDIUM : other;
+        if (value == otherValue) {
+            return DENSITY_DEFAULT != density;
+        }
+        if (value >= requested && otherValue >= requested) {
+            return value < otherValue;
+        }
+        if (value < requested && otherValue < requested) {
+            return value > otherValue;
+        }
+        return value >= requested;
+    }
+
+    /**
+     * The qualifiers as in a resource directory name, e.g. {@code de-rDE-xhdpi-v21}, or {@code default}.
+     */
+    @Override
+    public String toString() {
+        StringBuilder qualifiers = new StringBuilder();
+        if (0 != mcc) {
+            qualifiers.append("-mcc").append(mcc);
+        }
+        if (0 != mnc) {
+            qualifiers.append("-mnc").append(mnc);
+        }
+        if (!language.isEmpty()) {
+            qualifiers.append('-').append(language);
+        }
+        if (!country.isEmpty()) {
+            qualifiers.append("-r").append(country);
+        }
+        if (0 != smallestScreenWidthDp) {
+            qualifiers.append("-sw").append(smallestScreenWidthDp).append("dp");
+        }
+        if (0 != screenWidthDp) {
+            qualifiers.append("-w").append(screenWidthDp).append("dp");
+        }
+        if (0 != screenHeightDp) {
+            qualifiers.append("-h").append(screenHeightDp).append("dp");
+        }
+        if (0 != orientation) {
+            qualifiers.append(1 == orientation ? "-port" : 2 == orientation ? "-land" : "-orientation" + orientation);
+        }
+        if (0 != (uiMode & UI_MODE_NIGHT_MASK)) {
+            qualifiers.append(0x20 == (uiMode & UI_MODE_NIGHT_MASK) ? "-night" : "-notnight");
+        }
+        if (0 != density) {
+            qualifiers.append('-').append(densityName(density));
+        }
+        if (0 != sdkVersion) {
+            qualifiers.append("-v").append(sdkVersion);
+        }
+        return 0 == qualifiers.length() ? "default" : qualifiers.substring(1);
+    }
+
+    private static String densityName(int density) {
+        switch (density) {
+            case 120:
+                return "ldpi";
+            case 160:
+                return "mdpi";
+            case 213:
+                return "tvdpi";
+            case 240:
+                return "hdpi";
+            case 320:
+                return "xhdpi";
+            case 480:
+                return "xxhdpi";
+            case 640:
+                return "xxxhdpi";
+            case DENSITY_ANY:
+                return "anydpi";
+            case DENSITY_NONE:
+                return "nodpi";
+            default:
+                return density + "dpi";
+        }
+    }
+}
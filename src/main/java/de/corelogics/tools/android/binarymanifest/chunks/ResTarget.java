@@ -28,6 +28,7 @@
 package de.corelogics.tools.android.binarymanifest.chunks;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Created by bfey on 01.03.15.
@@ -50,4 +51,6 @@ public interface ResTarget {
     void writeU8(int val);
 
     void write(byte[] data);
+
+    void write(ByteBuffer data);
 }
@@ -0,0 +1,451 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Collects the output like {@link ResHeapTarget} and verifies it afterwards in one walk over the chunk
+ * headers of the written bytes: chunk sizes, 4-byte alignment, string pool offsets and string references
+ * are checked without reading anything back. {@link #compare(ResSource)} additionally finds the differing
+ * regions against an expected source with {@link ByteBuffer#mismatch} and locates each of them by chunk,
+ * element path and attribute.
+ */
+public class ResVerifyTarget extends ResBufferTarget {
+    private static final int MAX_MISMATCHES = 64;
+    private static final int MERGE_GAP = ResTarget.LEN_U32;
+    private static final int EXCERPT_LENGTH = 16;
+
+    private static final int CHUNK_HEADER_SIZE = 2 * ResTarget.LEN_U32;
+    private static final int STRING_POOL_HEADER_SIZE = 28;
+    private static final int NODE_HEADER_SIZE = 16;
+    private static final int ATTRIBUTE_SIZE = 20;
+
+    public ResVerifyTarget() {
+        this(4096);
+    }
+
+    public ResVerifyTarget(int initialSize) {
+        super(initialSize);
+    }
+
+    public byte[] toByteArray() {
+        byte[] data = new byte[length()];
+        content().get(data);
+        return data;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Structural problems of the written output, empty if there are none.
+     */
+    public List<ResMismatch> verify() {
+        return new Walker(content(), new ArrayList<>(), new ArrayList<>()).walk();
+    }
+
+    /**
+     * Structural problems of the written output and every region that differs from {@code expected}, at most
+     * {@value #MAX_MISMATCHES} of each, ordered by position.
+     */
+    public List<ResMismatch> compare(ResSource expected) {
+        ByteBuffer actual = content();
+        ByteBuffer reference = expected.buffer.duplicate();
+        reference.clear();
+        int common = Math.min(actual.limit(), reference.limit());
+        List<long[]> regions = new ArrayList<>();
+        int from = 0;
+        while (from < common && regions.size() < MAX_MISMATCHES) {
+            int offset = actual.duplicate().limit(common).position(from)
+                    .mismatch(reference.duplicate().limit(common).position(from));
+            if (offset < 0) {
+                break;
+            }
+            int start = from + offset;
+            int end = start + 1;
+            for (int i = end; i < common && i < end + MERGE_GAP; i++) {
+                if (actual.get(i) != reference.get(i)) {
+                    end = i + 1;
+                }
+            }
+            regions.add(new long[]{start, end - start});
+            from = end;
+        }
+        if (actual.limit() != reference.limit() && regions.size() < MAX_MISMATCHES) {
+            regions.add(new long[]{common, Math.abs(actual.limit() - reference.limit())});
+        }
+        List<String> details = new ArrayList<>(regions.size());
+        for (long[] region : regions) {
+            details.add(region[0] == common && actual.limit() != reference.limit()
+                    ? "expected " + reference.limit() + " bytes, written " + actual.limit()
+                    : "expected " + excerpt(reference, region) + ", written " + excerpt(actual, region));
+        }
+        return new Walker(actual, regions, details).walk();
+    }
+
+    private static String excerpt(ByteBuffer buffer, long[] region) {
+        StringBuilder excerpt = new StringBuilder();
+        int end = (int) Math.min(region[0] + Math.min(region[1], EXCERPT_LENGTH), buffer.limit());
+        for (int i = (int) region[0]; i < end; i++) {
+            excerpt.append(excerpt.length() == 0 ? "" : " ").append(String.format("%02x", buffer.get(i) & 0xff));
+        }
+        return excerpt.append(region[1] > EXCERPT_LENGTH ? " ..." : "").toString();
+    }
+
+    private static class Walker {
+        private final ResSource src;
+        private final long length;
+        private final List<long[]> regions;
+        private final List<String> details;
+        private int region;
+        private final List<ResMismatch> problems = new ArrayList<>();
+        private int problemCount;
+
+        private long stringPool = -1;
+        private long stringCount;
+        private long resourceMap = -1;
+        private long resourceIdCount;
+        private int[] elements = new int[16];
+        private int depth;
+
+        private Walker(ByteBuffer output, List<long[]> regions, List<String> details) {
+            this.src = new ResSource(output);
+            this.length = output.limit();
+            this.regions = regions;
+            this.details = details;
+        }
+
+        private List<ResMismatch> walk() {
+            if (length < CHUNK_HEADER_SIZE || 0x0003 != src.getU16(0)) {
+                problem(0, Math.min(length, CHUNK_HEADER_SIZE), ResXmlTree.NONE, 0, "file", "not a binary XML file");
+            } else if (src.getU32(ResTarget.LEN_U32) != length) {
+                problem(ResTarget.LEN_U32, ResTarget.LEN_U32, 0x0003, 0, "file header",
+                        "size field " + src.getU32(ResTarget.LEN_U32) + ", written " + length + " bytes");
+            }
+            walkChunks(0, length, ResXmlTree.NONE, 0);
+            if (depth > 0) {
+                problem(length, 0, ResXmlTree.NONE, 0, path(), depth + " elements are not closed");
+            }
+            locate(Long.MAX_VALUE, ResXmlTree.NONE, 0, 0);
+            problems.sort(Comparator.comparingLong(ResMismatch::getPosition));
+            return problems;
+        }
+
+        private void walkChunks(long from, long end, int parentType, long parent) {
+            long position = from;
+            while (position < end) {
+                if (position + CHUNK_HEADER_SIZE > end) {
+                    problem(position, end - position, parentType, parent, "chunk header", "truncated by " + (position + CHUNK_HEADER_SIZE - end) + " bytes");
+                    return;
+                }
+                int type = src.getU16(position);
+                int headerSize = src.getU16(position + ResTarget.LEN_U16);
+                long size = src.getU32(position + ResTarget.LEN_U32);
+                if (0 != position % ResTarget.LEN_U32) {
+                    problem(position, CHUNK_HEADER_SIZE, type, position, "chunk header", "chunk does not start 4-byte aligned");
+                }
+                if (0 != size % ResTarget.LEN_U32) {
+                    problem(position + ResTarget.LEN_U32, ResTarget.LEN_U32, type, position, "chunk header", "size " + size + " is not 4-byte aligned");
+                }
+                if (headerSize < CHUNK_HEADER_SIZE || headerSize > size || position + size > end) {
+                    problem(position, CHUNK_HEADER_SIZE, type, position, "chunk header",
+                            "header size " + headerSize + " and size " + size + " do not fit into " + (end - position) + " bytes");
+                    locate(end, type, position, CHUNK_HEADER_SIZE);
+                    return;
+                }
+                if (ResXmlTree.RES_XML_END_ELEMENT == type) {
+                    locate(position + size, type, position, headerSize);
+                }
+                switch (type) {
+                    case 0x0003:
+                        locate(position + headerSize, type, position, headerSize);
+                        walkChunks(position + headerSize, position + size, type, position);
+                        break;
+                    case 0x0001:
+                        checkStringPool(position, headerSize, size);
+                        break;
+                    case ResXmlTree.RES_XML_RESOURCE_MAP:
+                        resourceMap = position + headerSize;
+                        resourceIdCount = (size - headerSize) / ResTarget.LEN_U32;
+                        if (0 != (size - headerSize) % ResTarget.LEN_U32) {
+                            problem(position, size, type, position, "resource map", "size is not a multiple of 4");
+                        }
+                        break;
+                    case ResXmlTree.RES_XML_START_NAMESPACE:
+                    case ResXmlTree.RES_XML_END_NAMESPACE:
+                    case ResXmlTree.RES_XML_START_ELEMENT:
+                    case ResXmlTree.RES_XML_END_ELEMENT:
+                    case ResXmlTree.RES_XML_CDATA:
+                        checkNode(type, position, headerSize, size);
+                        break;
+                    default:
+                        break;
+                }
+                if (ResXmlTree.RES_XML_END_ELEMENT != type) {
+                    locate(position + size, type, position, headerSize);
+                }
+                position += size;
+            }
+        }
+
+        private void checkStringPool(long position, int headerSize, long size) {
+            if (headerSize < STRING_POOL_HEADER_SIZE) {
+                problem(position, headerSize, 0x0001, position, "string pool header", "header size " + headerSize + " is below " + STRING_POOL_HEADER_SIZE);
+                return;
+            }
+            stringPool = position;
+            stringCount = src.getU32(position + 2 * ResTarget.LEN_U32);
+            long styleCount = src.getU32(position + 3 * ResTarget.LEN_U32);
+            boolean utf8 = 0 != (src.getU32(position + 4 * ResTarget.LEN_U32) & ResStringPoolHeader.UTF8_FLAG);
+            long stringsStart = src.getU32(position + 5 * ResTarget.LEN_U32);
+            long stylesStart = src.getU32(position + 6 * ResTarget.LEN_U32);
+            long offsetsEnd = headerSize + (stringCount + styleCount) * ResTarget.LEN_U32;
+            if (offsetsEnd > size) {
+                problem(position, headerSize, 0x0001, position, "string pool header",
+                        stringCount + " strings and " + styleCount + " styles do not fit into " + size + " bytes");
+                stringCount = 0;
+                return;
+            }
+            long stringsEnd = 0 == stylesStart ? size : stylesStart;
+            if (stringCount > 0 && (stringsStart < offsetsEnd || stringsStart > stringsEnd || stringsEnd > size
+                    || 0 != stringsStart % ResTarget.LEN_U32)) {
+                problem(position + 5 * ResTarget.LEN_U32, 2 * ResTarget.LEN_U32, 0x0001, position, "string pool header",
+                        "strings start " + stringsStart + " and styles start " + stylesStart + " are out of bounds");
+                stringCount = 0;
+                return;
+            }
+            long offsets = position + headerSize;
+            for (long i = 0; i < stringCount; i++) {
+                long offset = src.getU32(offsets + i * ResTarget.LEN_U32);
+                long start = position + stringsStart + offset;
+                long limit = position + stringsEnd;
+                if (start + ResTarget.LEN_U16 > limit || start + ResTarget.LEN_U32 > length
+                        || start + ResStringPool.storedLength(src, start, utf8) > limit) {
+                    problem(offsets + i * ResTarget.LEN_U32, ResTarget.LEN_U32, 0x0001, position, "string pool offset of string #" + i,
+                            "string at " + offset + " does not fit into the " + (stringsEnd - stringsStart) + " string bytes");
+                }
+            }
+        }
+
+        private void checkNode(int type, long position, int headerSize, long size) {
+            long body = position + headerSize;
+            long end = position + size;
+            if (headerSize < NODE_HEADER_SIZE) {
+                problem(position, headerSize, type, position, "node header", "header size " + headerSize + " is below " + NODE_HEADER_SIZE);
+                return;
+            }
+            switch (type) {
+                case ResXmlTree.RES_XML_START_NAMESPACE:
+                case ResXmlTree.RES_XML_END_NAMESPACE:
+                    if (fits(type, position, body, 2 * ResTarget.LEN_U32, end)) {
+                        checkString(type, position, body, true);
+                        checkString(type, position, body + ResTarget.LEN_U32, false);
+                    }
+                    break;
+                case ResXmlTree.RES_XML_START_ELEMENT:
+                    if (!fits(type, position, body, 5 * ResTarget.LEN_U32, end)) {
+                        break;
+                    }
+                    checkString(type, position, body, true);
+                    checkString(type, position, body + ResTarget.LEN_U32, false);
+                    push((int) src.getU32(body + ResTarget.LEN_U32));
+                    long attributes = body + src.getU16(body + 2 * ResTarget.LEN_U32);
+                    int attributeSize = src.getU16(body + 2 * ResTarget.LEN_U32 + ResTarget.LEN_U16);
+                    int attributeCount = src.getU16(body + 3 * ResTarget.LEN_U32);
+                    if (attributeCount > 0 && attributeSize < ATTRIBUTE_SIZE) {
+                        problem(body + 2 * ResTarget.LEN_U32, ResTarget.LEN_U32, type, position, path(), "attribute size " + attributeSize + " is below " + ATTRIBUTE_SIZE);
+                        break;
+                    }
+                    if (!fits(type, position, attributes, (long) attributeCount * attributeSize, end)) {
+                        break;
+                    }
+                    for (int i = 0; i < attributeCount; i++) {
+                        long attribute = attributes + (long) i * attributeSize;
+                        checkString(type, position, attribute, true);
+                        checkString(type, position, attribute + ResTarget.LEN_U32, false);
+                        checkString(type, position, attribute + 2 * ResTarget.LEN_U32, true);
+                        if (ResXmlTree.TYPE_STRING == src.getU8(attribute + 3 * ResTarget.LEN_U32 + ResTarget.LEN_U16 + ResTarget.LEN_U8)) {
+                            checkString(type, position, attribute + 4 * ResTarget.LEN_U32, false);
+                        }
+                    }
+                    break;
+                case ResXmlTree.RES_XML_END_ELEMENT:
+                    if (fits(type, position, body, 2 * ResTarget.LEN_U32, end)) {
+                        checkString(type, position, body + ResTarget.LEN_U32, false);
+                        int name = (int) src.getU32(body + ResTarget.LEN_U32);
+                        if (0 == depth) {
+                            problem(position, size, type, position, "</" + lookup(name) + ">", "end element without start element");
+                        } else if (name != elements[depth - 1]) {
+                            problem(body + ResTarget.LEN_U32, ResTarget.LEN_U32, type, position, "</" + lookup(name) + ">", "closes <" + path() + ">");
+                        }
+                    }
+                    depth = Math.max(0, depth - 1);
+                    break;
+                case ResXmlTree.RES_XML_CDATA:
+                    if (fits(type, position, body, 3 * ResTarget.LEN_U32, end)) {
+                        checkString(type, position, body, false);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private boolean fits(int type, long chunk, long position, long length, long end) {
+            if (position + length <= end) {
+                return true;
+            }
+            problem(chunk, end - chunk, type, chunk, "node", (position + length - end) + " bytes beyond the end of the chunk");
+            return false;
+        }
+
+        private void checkString(int type, long chunk, long position, boolean optional) {
+            long index = src.getU32(position);
+            if ((optional && 0xffffffffL == index) || index < stringCount) {
+                return;
+            }
+            problem(position, ResTarget.LEN_U32, type, chunk, describe(type, chunk, position), "string index " + index + " is not below the pool size " + stringCount);
+        }
+
+        private void push(int name) {
+            if (depth == elements.length) {
+                elements = Arrays.copyOf(elements, 2 * depth);
+            }
+            elements[depth++] = name;
+        }
+
+        private void locate(long limit, int type, long chunk, int headerSize) {
+            while (region < regions.size() && regions.get(region)[0] < limit) {
+                long[] mismatch = regions.get(region);
+                String location = ResXmlTree.NONE == type ? "after the last chunk" : describe(type, chunk, mismatch[0]);
+                problems.add(new ResMismatch(mismatch[0], mismatch[1], type, chunk, location, details.get(region)));
+                region++;
+            }
+        }
+
+        private String describe(int type, long chunk, long position) {
+            int headerSize = src.getU16(chunk + ResTarget.LEN_U16);
+            long body = chunk + headerSize;
+            switch (type) {
+                case 0x0003:
+                    return "file header";
+                case 0x0001:
+                    return describeString(chunk, headerSize, position);
+                case ResXmlTree.RES_XML_RESOURCE_MAP:
+                    return position < body ? "resource map header" : "resource map entry #" + (position - body) / ResTarget.LEN_U32;
+                case ResXmlTree.RES_XML_START_NAMESPACE:
+                case ResXmlTree.RES_XML_END_NAMESPACE:
+                    return "namespace " + lookup((int) src.getU32(body)) + "=" + lookup((int) src.getU32(body + ResTarget.LEN_U32));
+                case ResXmlTree.RES_XML_START_ELEMENT:
+                    long attributes = body + src.getU16(body + 2 * ResTarget.LEN_U32);
+                    int attributeSize = Math.max(ATTRIBUTE_SIZE, src.getU16(body + 2 * ResTarget.LEN_U32 + ResTarget.LEN_U16));
+                    if (position < attributes) {
+                        return "<" + path() + "> element header";
+                    }
+                    long attribute = attributes + (position - attributes) / attributeSize * attributeSize;
+                    return "<" + path() + "> @" + attributeName(attribute) + " " + attributeField((int) (position - attribute));
+                case ResXmlTree.RES_XML_END_ELEMENT:
+                    return "</" + path() + ">";
+                case ResXmlTree.RES_XML_CDATA:
+                    return "text in <" + path() + ">";
+                default:
+                    return String.format("chunk 0x%04x", type);
+            }
+        }
+
+        private String describeString(long chunk, int headerSize, long position) {
+            if (position < chunk + headerSize || stringPool != chunk) {
+                return "string pool header";
+            }
+            long offsets = chunk + headerSize;
+            if (position < offsets + stringCount * ResTarget.LEN_U32) {
+                return "string pool offset of string #" + (position - offsets) / ResTarget.LEN_U32;
+            }
+            boolean utf8 = 0 != (src.getU32(chunk + 4 * ResTarget.LEN_U32) & ResStringPoolHeader.UTF8_FLAG);
+            long stringsStart = chunk + src.getU32(chunk + 5 * ResTarget.LEN_U32);
+            for (int i = 0; i < stringCount; i++) {
+                long start = stringsStart + src.getU32(offsets + (long) i * ResTarget.LEN_U32);
+                if (position >= start && position < start + ResStringPool.storedLength(src, start, utf8)) {
+                    return "string #" + i + " '" + lookup(i) + "'";
+                }
+            }
+            return "string pool data";
+        }
+
+        private String attributeName(long attribute) {
+            int name = (int) src.getU32(attribute + ResTarget.LEN_U32);
+            String value = lookup(name);
+            if (resourceMap >= 0 && name >= 0 && name < resourceIdCount) {
+                value += String.format(" (0x%08x)", src.getU32(resourceMap + (long) name * ResTarget.LEN_U32));
+            }
+            return value;
+        }
+
+        private static String attributeField(int offset) {
+            switch (offset / ResTarget.LEN_U32) {
+                case 0:
+                    return "namespace";
+                case 1:
+                    return "name";
+                case 2:
+                    return "raw value";
+                case 3:
+                    return "value type";
+                case 4:
+                    return "value data";
+                default:
+                    return "extension";
+            }
+        }
+
+        private String path() {
+            StringBuilder path = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                path.append(0 == i ? "" : "/").append(lookup(elements[i]));
+            }
+            return path.toString();
+        }
+
+        private String lookup(int index) {
+            String value = stringPool < 0 || index < 0 || index >= stringCount ? null : ResStringPool.lookup(src, stringPool, index);
+            return null == value ? "#" + (index & 0xffffffffL) : value;
+        }
+
+        private void problem(long position, long length, int type, long chunk, String location, String detail) {
+            if (problemCount++ < MAX_MISMATCHES) {
+                problems.add(new ResMismatch(position, length, type, chunk, location, detail));
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+import java.util.Arrays;
+
+/**
+ * Pull parser over a binary XML document in the style of {@code org.xmlpull.v1.XmlPullParser}. It reads
+ * chunk headers and fields at absolute offsets of the source and builds no tree; names, namespaces and
+ * values are returned as string pool indices and raw typed values, which can be resolved on demand with
+ * {@link #getString} or compared without decoding with {@link #equalsString}. Apart from growing the
+ * namespace stack, {@link #next()} allocates nothing.
+ */
+public class ResXmlPullParser {
+    public static final int START_DOCUMENT = 0;
+    public static final int END_DOCUMENT = 1;
+    public static final int START_TAG = 2;
+    public static final int END_TAG = 3;
+    public static final int TEXT = 4;
+
+    public static final int NONE = -1;
+
+    private static final int ATTRIBUTE_START_OFFSET = 2 * ResTarget.LEN_U32;
+
+    private final ResSource src;
+    private final long end;
+    private long position;
+    private long next;
+    private long stringPool = -1;
+    private long resourceMap = -1;
+    private int resourceIdCount;
+
+    private int eventType = START_DOCUMENT;
+    private int depth;
+    private long body;
+    private long attributes;
+    private int attributeSize;
+    private int attributeCount;
+
+    private int[] namespaces = new int[8];
+    private int namespaceCount;
+    private int[] namespaceCounts = new int[8];
+
+    public ResXmlPullParser(ResSource src) {
+        if (0x0003 != src.getU16(0)) {
+            throw new IllegalArgumentException("Not a binary XML file");
+        }
+        this.src = src;
+        this.end = Math.min(src.getU32(ResTarget.LEN_U32), src.capacity());
+        this.next = src.getU16(ResTarget.LEN_U16);
+    }
+
+    public int next() {
+        if (END_TAG == eventType) {
+            depth--;
+        }
+        while (next + 2 * ResTarget.LEN_U32 <= end) {
+            position = next;
+            int type = src.getU16(position);
+            int headerSize = src.getU16(position + ResTarget.LEN_U16);
+            long size = src.getU32(position + ResTarget.LEN_U32);
+            if (size < 2 * ResTarget.LEN_U32 || position + size > end) {
+                break;
+            }
+            next = position + size;
+            body = position + headerSize;
+            switch (type) {
+                case 0x0001:
+                    stringPool = position;
+                    break;
+                case ResXmlTree.RES_XML_RESOURCE_MAP:
+                    resourceMap = body;
+                    resourceIdCount = (int) ((size - headerSize) / ResTarget.LEN_U32);
+                    break;
+                case ResXmlTree.RES_XML_START_NAMESPACE:
+                    pushNamespace((int) src.getU32(body), (int) src.getU32(body + ResTarget.LEN_U32));
+                    break;
+                case ResXmlTree.RES_XML_END_NAMESPACE:
+                    namespaceCount = Math.max(0, namespaceCount - 1);
+                    break;
+                case ResXmlTree.RES_XML_START_ELEMENT:
+                    depth++;
+                    if (depth >= namespaceCounts.length) {
+                        namespaceCounts = Arrays.copyOf(namespaceCounts, 2 * namespaceCounts.length);
+                    }
+                    namespaceCounts[depth] = namespaceCount;
+                    attributes = body + src.getU16(body + ATTRIBUTE_START_OFFSET);
+                    attributeSize = src.getU16(body + ATTRIBUTE_START_OFFSET + ResTarget.LEN_U16);
+                    attributeCount = src.getU16(body + ATTRIBUTE_START_OFFSET + 2 * ResTarget.LEN_U16);
+                    return eventType = START_TAG;
+                case ResXmlTree.RES_XML_END_ELEMENT:
+                    attributeCount = 0;
+                    return eventType = END_TAG;
+                case ResXmlTree.RES_XML_CDATA:
+                    attributeCount = 0;
+                    return eventType = TEXT;
+                default:
+                    break;
+            }
+        }
+        attributeCount = 0;
+        depth = 0;
+        return eventType = END_DOCUMENT;
+    }
+
+    private void pushNamespace(int prefix, int uri) {
+        if (2 * namespaceCount + 2 > namespaces.length) {
+            namespaces = Arrays.copyOf(namespaces, 2 * namespaces.length);
+        }
+        namespaces[2 * namespaceCount] = prefix;
+        namespaces[2 * namespaceCount + 1] = uri;
+        namespaceCount++;
+    }
+
+    public int getEventType() {
+        return eventType;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getChunkPosition() {
+        return position;
+    }
+
+    public int getLineNumber() {
+        return START_DOCUMENT == eventType || END_DOCUMENT == eventType ? -1 : (int) src.getU32(position + 2 * ResTarget.LEN_U32);
+    }
+
+    public int getComment() {
+        return START_DOCUMENT == eventType || END_DOCUMENT == eventType ? NONE : (int) src.getU32(position + 3 * ResTarget.LEN_U32);
+    }
+
+    public int getNamespace() {
+        return START_TAG == eventType || END_TAG == eventType ? (int) src.getU32(body) : NONE;
+    }
+
+    public int getName() {
+        return START_TAG == eventType || END_TAG == eventType ? (int) src.getU32(body + ResTarget.LEN_U32) : NONE;
+    }
+
+    public int getText() {
+        return TEXT == eventType ? (int) src.getU32(body) : NONE;
+    }
+
+    public int getTextValueType() {
+        return TEXT == eventType ? src.getU8(body + ResTarget.LEN_U32 + ResTarget.LEN_U16 + ResTarget.LEN_U8) : 0;
+    }
+
+    public int getTextValueData() {
+        return TEXT == eventType ? (int) src.getU32(body + 2 * ResTarget.LEN_U32) : 0;
+    }
+
+    /**
+     * Number of namespaces declared up to and including the element at {@code depth}.
+     */
+    public int getNamespaceCount(int depth) {
+        return depth <= this.depth && depth < namespaceCounts.length ? namespaceCounts[depth] : namespaceCount;
+    }
+
+    public int getNamespacePrefix(int pos) {
+        return namespaces[2 * pos];
+    }
+
+    public int getNamespaceUri(int pos) {
+        return namespaces[2 * pos + 1];
+    }
+
+    public int getAttributeCount() {
+        return START_TAG == eventType ? attributeCount : -1;
+    }
+
+    public int getAttributeNamespace(int index) {
+        return (int) src.getU32(attribute(index));
+    }
+
+    public int getAttributeName(int index) {
+        return (int) src.getU32(attribute(index) + ResTarget.LEN_U32);
+    }
+
+    public int getAttributeRawValue(int index) {
+        return (int) src.getU32(attribute(index) + 2 * ResTarget.LEN_U32);
+    }
+
+    public int getAttributeValueType(int index) {
+        return src.getU8(attribute(index) + 3 * ResTarget.LEN_U32 + ResTarget.LEN_U16 + ResTarget.LEN_U8);
+    }
+
+    public int getAttributeValueData(int index) {
+        return (int) src.getU32(attribute(index) + 4 * ResTarget.LEN_U32);
+    }
+
+    /**
+     * Absolute position of the attribute record in the source.
+     */
+    public long getAttributePosition(int index) {
+        return attribute(index);
+    }
+
+    public int getAttributeResourceId(int index) {
+        return getResourceId(getAttributeName(index));
+    }
+
+    public int getResourceId(int nameIndex) {
+        return nameIndex >= 0 && nameIndex < resourceIdCount ? (int) src.getU32(resourceMap + (long) nameIndex * ResTarget.LEN_U32) : 0;
+    }
+
+    private long attribute(int index) {
+        if (index < 0 || index >= attributeCount) {
+            throw new IndexOutOfBoundsException("Attribute " + index + " of " + attributeCount);
+        }
+        return attributes + (long) index * attributeSize;
+    }
+
+    public long getStringPoolPosition() {
+        return stringPool;
+    }
+
+    public int getStringCount() {
+        return stringPool < 0 ? 0 : (int) src.getU32(stringPool + 2 * ResTarget.LEN_U32);
+    }
+
+    public String getString(int index) {
+        return NONE == index || stringPool < 0 ? null : ResStringPool.lookup(src, stringPool, index & 0xffffffffL);
+    }
+
+    public boolean equalsString(int index, String value) {
+        return NONE != index && stringPool >= 0 && ResStringPool.equalsAt(src, stringPool, index & 0xffffffffL, value);
+    }
+}
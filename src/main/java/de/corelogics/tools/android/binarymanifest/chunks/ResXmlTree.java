@@ -0,0 +1,933 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.chunks;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * XML tree of a binary manifest, stored as packed int tables instead of one object per chunk and
+ * attribute. Nodes are kept in document order, one row per chunk, elements form a parent / first child /
+ * next sibling tree and attributes are rows of namespace, name, raw value, value type and value data.
+ * String pool indices are stored as ints, {@link #NONE} meaning no string.
+ * <p>
+ * Chunks of an unknown type or with a layout the writer would not reproduce are kept as opaque nodes
+ * and copied from the source as they are. Nodes read from the source stay clean until they are edited;
+ * runs of clean nodes that are adjacent in the source are written with one bulk copy, and only the other
+ * nodes are serialized field by field.
+ * <p>
+ * Attributes and elements can be added and removed. Element indices stay stable, removed elements are
+ * only unlinked from the tree, and the node table is brought back into document order on the next
+ * access to it.
+ */
+public class ResXmlTree {
+    public static final int NONE = -1;
+
+    public static final int RES_XML_START_NAMESPACE = 0x0100;
+    public static final int RES_XML_END_NAMESPACE = 0x0101;
+    public static final int RES_XML_START_ELEMENT = 0x0102;
+    public static final int RES_XML_END_ELEMENT = 0x0103;
+    public static final int RES_XML_CDATA = 0x0104;
+    public static final int RES_XML_RESOURCE_MAP = 0x0180;
+
+    public static final int TYPE_NULL = 0x00;
+    public static final int TYPE_REFERENCE = 0x01;
+    public static final int TYPE_ATTRIBUTE = 0x02;
+    public static final int TYPE_STRING = 0x03;
+    public static final int TYPE_FLOAT = 0x04;
+    public static final int TYPE_DIMENSION = 0x05;
+    public static final int TYPE_FRACTION = 0x06;
+    public static final int TYPE_DYNAMIC_REFERENCE = 0x07;
+    public static final int TYPE_DYNAMIC_ATTRIBUTE = 0x08;
+    public static final int TYPE_FIRST_INT = 0x10;
+    public static final int TYPE_INT_DEC = 0x10;
+    public static final int TYPE_INT_HEX = 0x11;
+    public static final int TYPE_INT_BOOLEAN = 0x12;
+    public static final int TYPE_INT_COLOR_ARGB8 = 0x1c;
+    public static final int TYPE_INT_COLOR_RGB8 = 0x1d;
+    public static final int TYPE_INT_COLOR_ARGB4 = 0x1e;
+    public static final int TYPE_INT_COLOR_RGB4 = 0x1f;
+    public static final int TYPE_LAST_INT = 0x1f;
+
+    private static final int NODE_HEADER_SIZE = 16;
+    private static final int ATTRIBUTE_SIZE = 20;
+    private static final int OPAQUE = 0x10000;
+    private static final int CLEAN = 0x20000;
+    private static final int REMOVED = 0x10000;
+    private static final int ADDED = 0x20000;
+
+    private static final int NODE_TYPE = 0;
+    private static final int NODE_OFFSET = 1;
+    private static final int NODE_SIZE = 2;
+    private static final int NODE_LINE = 3;
+    private static final int NODE_COMMENT = 4;
+    private static final int NODE_A = 5;
+    private static final int NODE_B = 6;
+    private static final int NODE_C = 7;
+    private static final int NODE_STRIDE = 8;
+
+    private static final int ELEMENT_START = 0;
+    private static final int ELEMENT_END = 1;
+    private static final int ELEMENT_PARENT = 2;
+    private static final int ELEMENT_FIRST_CHILD = 3;
+    private static final int ELEMENT_NEXT_SIBLING = 4;
+    private static final int ELEMENT_FIRST_ATTRIBUTE = 5;
+    private static final int ELEMENT_ATTRIBUTE_COUNT = 6;
+    private static final int ELEMENT_ID_CLASS = 7;
+    private static final int ELEMENT_STYLE = 8;
+    private static final int ELEMENT_LAYOUT = 9;
+    private static final int ELEMENT_STRIDE = 10;
+
+    private static final int ATTRIBUTE_NAMESPACE = 0;
+    private static final int ATTRIBUTE_NAME = 1;
+    private static final int ATTRIBUTE_RAW = 2;
+    private static final int ATTRIBUTE_VALUE = 3;
+    private static final int ATTRIBUTE_DATA = 4;
+    private static final int ATTRIBUTE_STRIDE = 5;
+
+    private final ResSource src;
+    private final ResStringPool stringPool;
+    private int[] nodes;
+    private int nodeCount;
+    private int[] elements;
+    private int elementCount;
+    private int[] attributes;
+    private int attributeCount;
+    private int[] resourceIds = new int[0];
+    private boolean hasResourceMap;
+    private boolean nodesChanged;
+    private final BitSet changedAttributes;
+    private int[] lastChild;
+    private int[] openElements = new int[16];
+    private int depth;
+
+    public ResXmlTree(ResSource src, ResStringPool stringPool) {
+        this.src = src;
+        this.stringPool = stringPool;
+        int expectedNodes = Math.max(16, src.capacity() / 48);
+        this.nodes = new int[expectedNodes * NODE_STRIDE];
+        this.elements = new int[expectedNodes / 2 * ELEMENT_STRIDE];
+        this.lastChild = new int[expectedNodes / 2];
+        this.attributes = new int[expectedNodes * ATTRIBUTE_STRIDE];
+        this.changedAttributes = new BitSet();
+    }
+
+    /**
+     * Independent copy of the tables of {@code other}, trimmed to their used length, on top of a copy of its
+     * string pool.
+     */
+    public ResXmlTree(ResXmlTree other, ResStringPool stringPool) {
+        this.src = other.src;
+        this.stringPool = stringPool;
+        this.nodes = Arrays.copyOf(other.nodes, Math.max(1, other.nodeCount) * NODE_STRIDE);
+        this.nodeCount = other.nodeCount;
+        this.elements = Arrays.copyOf(other.elements, Math.max(1, other.elementCount) * ELEMENT_STRIDE);
+        this.elementCount = other.elementCount;
+        this.attributes = Arrays.copyOf(other.attributes, Math.max(1, other.attributeCount) * ATTRIBUTE_STRIDE);
+        this.attributeCount = other.attributeCount;
+        this.resourceIds = other.resourceIds.clone();
+        this.hasResourceMap = other.hasResourceMap;
+        this.nodesChanged = other.nodesChanged;
+        this.changedAttributes = (BitSet) other.changedAttributes.clone();
+        this.lastChild = Arrays.copyOf(other.lastChild, Math.max(1, other.elementCount));
+        this.openElements = other.openElements.clone();
+        this.depth = other.depth;
+    }
+
+    /**
+     * Heap taken by the tables, without the source.
+     */
+    public long getTableBytes() {
+        return (long) ResTarget.LEN_U32 * (nodes.length + elements.length + attributes.length + resourceIds.length + lastChild.length);
+    }
+
+    public void read(ResChunkHeader header) {
+        long offset = header.getChunkOriginalStart();
+        int type = header.getType();
+        int node = addNode(type, offset, header.getSize());
+        boolean nodeHeader = type >= RES_XML_START_NAMESPACE && type <= RES_XML_CDATA && header.getHeaderSize() >= NODE_HEADER_SIZE;
+        if (nodeHeader) {
+            nodes[node * NODE_STRIDE + NODE_LINE] = (int) src.getU32(offset + 2 * ResTarget.LEN_U32);
+            nodes[node * NODE_STRIDE + NODE_COMMENT] = index(offset + 3 * ResTarget.LEN_U32);
+        }
+        long body = offset + header.getHeaderSize();
+        boolean standard = nodeHeader && NODE_HEADER_SIZE == header.getHeaderSize();
+        if (!nodeHeader && RES_XML_RESOURCE_MAP == type && 0 == resourceIds.length) {
+            resourceIds = new int[(int) (header.getSize() - header.getHeaderSize()) / ResTarget.LEN_U32];
+            for (int i = 0; i < resourceIds.length; i++) {
+                resourceIds[i] = (int) src.getU32(body + i * ResTarget.LEN_U32);
+            }
+            standard = 8 == header.getHeaderSize() && header.getSize() == 8 + resourceIds.length * ResTarget.LEN_U32;
+            hasResourceMap = true;
+        } else if (!nodeHeader) {
+            standard = false;
+        } else if (RES_XML_START_NAMESPACE == type || RES_XML_END_NAMESPACE == type) {
+            setNode(node, index(body), index(body + ResTarget.LEN_U32), 0);
+            standard &= 24 == header.getSize();
+        } else if (RES_XML_START_ELEMENT == type) {
+            standard &= readStartElement(node, body, header.getSize() - header.getHeaderSize());
+        } else if (RES_XML_END_ELEMENT == type) {
+            int element = depth > 0 ? openElements[--depth] : NONE;
+            setNode(node, index(body), index(body + ResTarget.LEN_U32), element);
+            if (NONE != element) {
+                elements[element * ELEMENT_STRIDE + ELEMENT_END] = node;
+            }
+            standard &= 24 == header.getSize();
+        } else {
+            setNode(node, index(body), valueType(body + ResTarget.LEN_U32), (int) src.getU32(body + 2 * ResTarget.LEN_U32));
+            if (TYPE_STRING == getValueType(nodes[node * NODE_STRIDE + NODE_B])) {
+                reference(nodes[node * NODE_STRIDE + NODE_C]);
+            }
+            standard &= 28 == header.getSize();
+        }
+        if (!standard) {
+            nodes[node * NODE_STRIDE + NODE_TYPE] |= OPAQUE;
+        }
+        nodes[node * NODE_STRIDE + NODE_TYPE] |= CLEAN;
+    }
+
+    private boolean readStartElement(int node, long body, long bodySize) {
+        int attributeStart = src.getU16(body + 2 * ResTarget.LEN_U32);
+        int attributeSize = src.getU16(body + 2 * ResTarget.LEN_U32 + ResTarget.LEN_U16);
+        int count = src.getU16(body + 2 * ResTarget.LEN_U32 + 2 * ResTarget.LEN_U16);
+
+        int element = addElement(node);
+        setNode(node, index(body), index(body + ResTarget.LEN_U32), element);
+        int row = element * ELEMENT_STRIDE;
+        elements[row + ELEMENT_ID_CLASS] = src.getU16(body + 2 * ResTarget.LEN_U32 + 3 * ResTarget.LEN_U16)
+                | src.getU16(body + 2 * ResTarget.LEN_U32 + 4 * ResTarget.LEN_U16) << 16;
+        elements[row + ELEMENT_STYLE] = src.getU16(body + 2 * ResTarget.LEN_U32 + 5 * ResTarget.LEN_U16);
+        elements[row + ELEMENT_LAYOUT] = attributeStart | attributeSize << 16;
+        elements[row + ELEMENT_FIRST_ATTRIBUTE] = attributeCount;
+        elements[row + ELEMENT_ATTRIBUTE_COUNT] = count;
+        for (int i = 0; i < count; i++) {
+            long position = body + attributeStart + (long) i * attributeSize;
+            int attribute = addAttribute();
+            int a = attribute * ATTRIBUTE_STRIDE;
+            attributes[a + ATTRIBUTE_NAMESPACE] = index(position);
+            attributes[a + ATTRIBUTE_NAME] = index(position + ResTarget.LEN_U32);
+            attributes[a + ATTRIBUTE_RAW] = index(position + 2 * ResTarget.LEN_U32);
+            attributes[a + ATTRIBUTE_VALUE] = valueType(position + 3 * ResTarget.LEN_U32);
+            attributes[a + ATTRIBUTE_DATA] = (int) src.getU32(position + 4 * ResTarget.LEN_U32);
+            if (TYPE_STRING == getValueType(attributes[a + ATTRIBUTE_VALUE])) {
+                reference(attributes[a + ATTRIBUTE_DATA]);
+            }
+        }
+
+        int parent = depth > 0 ? openElements[depth - 1] : NONE;
+        elements[row + ELEMENT_PARENT] = parent;
+        if (NONE != parent) {
+            int previous = lastChild[parent];
+            if (NONE == previous) {
+                elements[parent * ELEMENT_STRIDE + ELEMENT_FIRST_CHILD] = element;
+            } else {
+                elements[previous * ELEMENT_STRIDE + ELEMENT_NEXT_SIBLING] = element;
+            }
+            lastChild[parent] = element;
+        }
+        if (depth == openElements.length) {
+            openElements = Arrays.copyOf(openElements, 2 * depth);
+        }
+        openElements[depth++] = element;
+
+        return ATTRIBUTE_SIZE == attributeStart && ATTRIBUTE_SIZE == attributeSize
+                && bodySize == ATTRIBUTE_SIZE + (long) count * ATTRIBUTE_SIZE;
+    }
+
+    private int index(long position) {
+        int index = (int) src.getU32(position);
+        reference(index);
+        return index;
+    }
+
+    private void reference(int index) {
+        if (null != stringPool && NONE != index) {
+            stringPool.reference(index & 0xffffffffL);
+        }
+    }
+
+    private int valueType(long position) {
+        return src.getU16(position) | src.getU8(position + ResTarget.LEN_U16) << 16 | src.getU8(position + ResTarget.LEN_U16 + ResTarget.LEN_U8) << 24;
+    }
+
+    private static int getValueType(int packed) {
+        return packed >>> 24;
+    }
+
+    private int addNode(int type, long offset, long size) {
+        if ((nodeCount + 1) * NODE_STRIDE > nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+        }
+        int node = nodeCount++;
+        int row = node * NODE_STRIDE;
+        nodes[row + NODE_TYPE] = type;
+        nodes[row + NODE_OFFSET] = (int) offset;
+        nodes[row + NODE_SIZE] = (int) size;
+        nodes[row + NODE_COMMENT] = NONE;
+        nodes[row + NODE_A] = NONE;
+        nodes[row + NODE_B] = NONE;
+        nodes[row + NODE_C] = NONE;
+        return node;
+    }
+
+    private void setNode(int node, int a, int b, int c) {
+        int row = node * NODE_STRIDE;
+        nodes[row + NODE_A] = a;
+        nodes[row + NODE_B] = b;
+        nodes[row + NODE_C] = c;
+    }
+
+    private int addElement(int node) {
+        if ((elementCount + 1) * ELEMENT_STRIDE > elements.length) {
+            elements = Arrays.copyOf(elements, 2 * elements.length);
+            lastChild = Arrays.copyOf(lastChild, 2 * lastChild.length);
+        }
+        int element = elementCount++;
+        int row = element * ELEMENT_STRIDE;
+        Arrays.fill(elements, row, row + ELEMENT_STRIDE, NONE);
+        elements[row + ELEMENT_START] = node;
+        lastChild[element] = NONE;
+        return element;
+    }
+
+    private int addAttribute() {
+        if ((attributeCount + 1) * ATTRIBUTE_STRIDE > attributes.length) {
+            attributes = Arrays.copyOf(attributes, 2 * attributes.length);
+        }
+        return attributeCount++;
+    }
+
+    public int getNodeCount() {
+        updateNodes();
+        return nodeCount;
+    }
+
+    public int getNodeType(int node) {
+        return nodes[node * NODE_STRIDE + NODE_TYPE] & 0xffff;
+    }
+
+    public int getNodeLine(int node) {
+        return nodes[node * NODE_STRIDE + NODE_LINE];
+    }
+
+    public int getNodeComment(int node) {
+        return nodes[node * NODE_STRIDE + NODE_COMMENT];
+    }
+
+    public int getNamespacePrefix(int node) {
+        return nodes[node * NODE_STRIDE + NODE_A];
+    }
+
+    public int getNamespaceUri(int node) {
+        return nodes[node * NODE_STRIDE + NODE_B];
+    }
+
+    public int getNodeElement(int node) {
+        return nodes[node * NODE_STRIDE + NODE_C];
+    }
+
+    public int getCdataText(int node) {
+        return nodes[node * NODE_STRIDE + NODE_A];
+    }
+
+    public int getCdataValueType(int node) {
+        return getValueType(nodes[node * NODE_STRIDE + NODE_B]);
+    }
+
+    public int getCdataValueData(int node) {
+        return nodes[node * NODE_STRIDE + NODE_C];
+    }
+
+    public int[] getResourceIds() {
+        return resourceIds.clone();
+    }
+
+    public int getResourceId(int nameIndex) {
+        return nameIndex >= 0 && nameIndex < resourceIds.length ? resourceIds[nameIndex] : 0;
+    }
+
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    public int getRootElement() {
+        return elementCount > 0 ? 0 : NONE;
+    }
+
+    public int getElementNamespace(int element) {
+        return nodes[elements[element * ELEMENT_STRIDE + ELEMENT_START] * NODE_STRIDE + NODE_A];
+    }
+
+    public int getElementName(int element) {
+        return nodes[elements[element * ELEMENT_STRIDE + ELEMENT_START] * NODE_STRIDE + NODE_B];
+    }
+
+    public int getElementStartNode(int element) {
+        updateNodes();
+        return elements[element * ELEMENT_STRIDE + ELEMENT_START];
+    }
+
+    public int getElementEndNode(int element) {
+        updateNodes();
+        return elements[element * ELEMENT_STRIDE + ELEMENT_END];
+    }
+
+    public boolean isRemoved(int element) {
+        for (int e = element; NONE != e; e = elements[e * ELEMENT_STRIDE + ELEMENT_PARENT]) {
+            if (0 != (elements[e * ELEMENT_STRIDE + ELEMENT_STYLE] & REMOVED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getParent(int element) {
+        return elements[element * ELEMENT_STRIDE + ELEMENT_PARENT];
+    }
+
+    public int getFirstChild(int element) {
+        return elements[element * ELEMENT_STRIDE + ELEMENT_FIRST_CHILD];
+    }
+
+    public int getNextSibling(int element) {
+        return elements[element * ELEMENT_STRIDE + ELEMENT_NEXT_SIBLING];
+    }
+
+    public int getIdAttributeIndex(int element) {
+        return elements[element * ELEMENT_STRIDE + ELEMENT_ID_CLASS] & 0xffff;
+    }
+
+    public int getClassAttributeIndex(int element) {
+        return elements[element * ELEMENT_STRIDE + ELEMENT_ID_CLASS] >>> 16;
+    }
+
+    public int getStyleAttributeIndex(int element) {
+        return elements[element * ELEMENT_STRIDE + ELEMENT_STYLE] & 0xffff;
+    }
+
+    public int getAttributeCount(int element) {
+        return elements[element * ELEMENT_STRIDE + ELEMENT_ATTRIBUTE_COUNT];
+    }
+
+    public int getAttribute(int element, int i) {
+        return elements[element * ELEMENT_STRIDE + ELEMENT_FIRST_ATTRIBUTE] + i;
+    }
+
+    public int findAttribute(int element, int resourceId) {
+        int first = elements[element * ELEMENT_STRIDE + ELEMENT_FIRST_ATTRIBUTE];
+        int count = elements[element * ELEMENT_STRIDE + ELEMENT_ATTRIBUTE_COUNT];
+        for (int attribute = first; attribute < first + count; attribute++) {
+            if (0 != resourceId && getResourceId(attributes[attribute * ATTRIBUTE_STRIDE + ATTRIBUTE_NAME]) == resourceId) {
+                return attribute;
+            }
+        }
+        return NONE;
+    }
+
+    public int findAttribute(int element, int namespace, String name) {
+        int first = elements[element * ELEMENT_STRIDE + ELEMENT_FIRST_ATTRIBUTE];
+        int count = elements[element * ELEMENT_STRIDE + ELEMENT_ATTRIBUTE_COUNT];
+        for (int attribute = first; attribute < first + count; attribute++) {
+            int a = attribute * ATTRIBUTE_STRIDE;
+            if (attributes[a + ATTRIBUTE_NAMESPACE] == namespace && stringPool.equalsAt(attributes[a + ATTRIBUTE_NAME] & 0xffffffffL, name)) {
+                return attribute;
+            }
+        }
+        return NONE;
+    }
+
+    public int getAttributeNamespace(int attribute) {
+        return attributes[attribute * ATTRIBUTE_STRIDE + ATTRIBUTE_NAMESPACE];
+    }
+
+    public int getAttributeName(int attribute) {
+        return attributes[attribute * ATTRIBUTE_STRIDE + ATTRIBUTE_NAME];
+    }
+
+    public int getAttributeResourceId(int attribute) {
+        return getResourceId(attributes[attribute * ATTRIBUTE_STRIDE + ATTRIBUTE_NAME]);
+    }
+
+    public int getAttributeRawValue(int attribute) {
+        return attributes[attribute * ATTRIBUTE_STRIDE + ATTRIBUTE_RAW];
+    }
+
+    public int getAttributeValueType(int attribute) {
+        return getValueType(attributes[attribute * ATTRIBUTE_STRIDE + ATTRIBUTE_VALUE]);
+    }
+
+    public int getAttributeValueData(int attribute) {
+        return attributes[attribute * ATTRIBUTE_STRIDE + ATTRIBUTE_DATA];
+    }
+
+    public long getAttributeSourcePosition(int attribute, int element) {
+        int node = elements[element * ELEMENT_STRIDE + ELEMENT_START];
+        int layout = elements[element * ELEMENT_STRIDE + ELEMENT_LAYOUT];
+        int offset = nodes[node * NODE_STRIDE + NODE_OFFSET];
+        int headerSize = src.getU16(offset + ResTarget.LEN_U16);
+        int i = attribute - elements[element * ELEMENT_STRIDE + ELEMENT_FIRST_ATTRIBUTE];
+        return (long) offset + headerSize + (layout & 0xffff) + (long) i * (layout >>> 16);
+    }
+
+    public void setAttributeValue(int attribute, int rawValue, int type, int data) {
+        int a = attribute * ATTRIBUTE_STRIDE;
+        int value = attributes[a + ATTRIBUTE_VALUE] & 0xffffff | type << 24;
+        if (attributes[a + ATTRIBUTE_RAW] != rawValue || attributes[a + ATTRIBUTE_VALUE] != value || attributes[a + ATTRIBUTE_DATA] != data) {
+            changedAttributes.set(attribute);
+        }
+        attributes[a + ATTRIBUTE_RAW] = rawValue;
+        attributes[a + ATTRIBUTE_VALUE] = value;
+        attributes[a + ATTRIBUTE_DATA] = data;
+    }
+
+    public int getResourceIdCount() {
+        return resourceIds.length;
+    }
+
+    /**
+     * Appends a resource ID to the resource map, creating the map if there is none. The caller has to
+     * insert the attribute name at the returned string pool index, see {@link #shiftStringIndices}.
+     */
+    public int addResourceId(int resourceId) {
+        resourceIds = Arrays.copyOf(resourceIds, resourceIds.length + 1);
+        resourceIds[resourceIds.length - 1] = resourceId;
+        for (int node = 0; node < nodeCount; node++) {
+            if (RES_XML_RESOURCE_MAP == (nodes[node * NODE_STRIDE + NODE_TYPE] & 0xffff)) {
+                nodes[node * NODE_STRIDE + NODE_TYPE] = RES_XML_RESOURCE_MAP;
+            }
+        }
+        return resourceIds.length - 1;
+    }
+
+    /**
+     * Moves all string pool indices from {@code from} on by {@code count}, after strings have been
+     * inserted into the pool.
+     */
+    public void shiftStringIndices(int from, int count) {
+        for (int row = 0; row < nodeCount * NODE_STRIDE; row += NODE_STRIDE) {
+            int type = nodes[row + NODE_TYPE];
+            boolean shifted = shift(nodes, row + NODE_COMMENT, from, count);
+            if (RES_XML_CDATA == (type & 0xffff)) {
+                shifted |= shift(nodes, row + NODE_A, from, count);
+                if (TYPE_STRING == getValueType(nodes[row + NODE_B])) {
+                    shifted |= shift(nodes, row + NODE_C, from, count);
+                }
+            } else if ((type & 0xffff) >= RES_XML_START_NAMESPACE && (type & 0xffff) <= RES_XML_END_ELEMENT) {
+                shifted |= shift(nodes, row + NODE_A, from, count);
+                shifted |= shift(nodes, row + NODE_B, from, count);
+            }
+            if (shifted) {
+                nodes[row + NODE_TYPE] &= ~CLEAN;
+            }
+        }
+        for (int a = 0; a < attributeCount * ATTRIBUTE_STRIDE; a += ATTRIBUTE_STRIDE) {
+            boolean shifted = shift(attributes, a + ATTRIBUTE_NAMESPACE, from, count);
+            shifted |= shift(attributes, a + ATTRIBUTE_NAME, from, count);
+            shifted |= shift(attributes, a + ATTRIBUTE_RAW, from, count);
+            if (TYPE_STRING == getValueType(attributes[a + ATTRIBUTE_VALUE])) {
+                shifted |= shift(attributes, a + ATTRIBUTE_DATA, from, count);
+            }
+            if (shifted) {
+                changedAttributes.set(a / ATTRIBUTE_STRIDE);
+            }
+        }
+    }
+
+    private static boolean shift(int[] table, int i, int from, int count) {
+        int index = table[i];
+        if (NONE == index || (index & 0xffffffffL) < from) {
+            return false;
+        }
+        table[i] = index + count;
+        return true;
+    }
+
+    /**
+     * Adds an attribute to an element, in front of the first attribute with a higher resource ID as the
+     * platform expects, or at the end if the name has no resource ID.
+     */
+    public int addAttribute(int element, int namespace, int name, int rawValue, int type, int data) {
+        int row = element * ELEMENT_STRIDE;
+        int first = elements[row + ELEMENT_FIRST_ATTRIBUTE];
+        int count = elements[row + ELEMENT_ATTRIBUTE_COUNT];
+        long resourceId = getResourceId(name) & 0xffffffffL;
+        int position = count;
+        if (0 != resourceId) {
+            position = 0;
+            while (position < count) {
+                long id = getAttributeResourceId(first + position) & 0xffffffffL;
+                if (0 == id || id > resourceId) {
+                    break;
+                }
+                position++;
+            }
+        }
+
+        int relocated = attributeCount;
+        while ((attributeCount + count + 1) * ATTRIBUTE_STRIDE > attributes.length) {
+            attributes = Arrays.copyOf(attributes, 2 * attributes.length);
+        }
+        System.arraycopy(attributes, first * ATTRIBUTE_STRIDE, attributes, relocated * ATTRIBUTE_STRIDE, position * ATTRIBUTE_STRIDE);
+        System.arraycopy(attributes, (first + position) * ATTRIBUTE_STRIDE, attributes, (relocated + position + 1) * ATTRIBUTE_STRIDE, (count - position) * ATTRIBUTE_STRIDE);
+        attributeCount += count + 1;
+        int attribute = relocated + position;
+        int a = attribute * ATTRIBUTE_STRIDE;
+        attributes[a + ATTRIBUTE_NAMESPACE] = namespace;
+        attributes[a + ATTRIBUTE_NAME] = name;
+        attributes[a + ATTRIBUTE_RAW] = rawValue;
+        attributes[a + ATTRIBUTE_VALUE] = 8 | type << 24;
+        attributes[a + ATTRIBUTE_DATA] = data;
+
+        elements[row + ELEMENT_FIRST_ATTRIBUTE] = relocated;
+        elements[row + ELEMENT_ATTRIBUTE_COUNT] = count + 1;
+        shiftSpecialAttributes(element, position + 1, 1);
+        return attribute;
+    }
+
+    public void removeAttribute(int element, int attribute) {
+        int row = element * ELEMENT_STRIDE;
+        int first = elements[row + ELEMENT_FIRST_ATTRIBUTE];
+        int count = elements[row + ELEMENT_ATTRIBUTE_COUNT];
+        int position = attribute - first;
+        if (position < 0 || position >= count) {
+            throw new IllegalArgumentException("Attribute " + attribute + " does not belong to element " + element);
+        }
+        System.arraycopy(attributes, (attribute + 1) * ATTRIBUTE_STRIDE, attributes, attribute * ATTRIBUTE_STRIDE, (count - position - 1) * ATTRIBUTE_STRIDE);
+        elements[row + ELEMENT_ATTRIBUTE_COUNT] = count - 1;
+        shiftSpecialAttributes(element, position + 1, -1);
+    }
+
+    private void shiftSpecialAttributes(int element, int from, int count) {
+        int row = element * ELEMENT_STRIDE;
+        int id = shiftSpecialAttribute(getIdAttributeIndex(element), from, count);
+        int cls = shiftSpecialAttribute(getClassAttributeIndex(element), from, count);
+        int style = shiftSpecialAttribute(getStyleAttributeIndex(element), from, count);
+        elements[row + ELEMENT_ID_CLASS] = id | cls << 16;
+        elements[row + ELEMENT_STYLE] = elements[row + ELEMENT_STYLE] & ~0xffff | style;
+        int node = elements[row + ELEMENT_START];
+        nodes[node * NODE_STRIDE + NODE_TYPE] &= ~(OPAQUE | CLEAN);
+    }
+
+    private static int shiftSpecialAttribute(int index, int from, int count) {
+        if (0 == index || index < from) {
+            return index;
+        }
+        return count < 0 && index == from ? 0 : index + count;
+    }
+
+    /**
+     * Appends a new, empty element as the last child of {@code parent}.
+     */
+    public int addElement(int parent, int namespace, int name) {
+        if (NONE == parent) {
+            throw new IllegalArgumentException("A manifest has only one root element");
+        }
+        int line = nodes[elements[parent * ELEMENT_STRIDE + ELEMENT_START] * NODE_STRIDE + NODE_LINE];
+        int start = addNode(RES_XML_START_ELEMENT, NONE, 0);
+        int end = addNode(RES_XML_END_ELEMENT, NONE, 0);
+        int element = addElement(start);
+        int row = element * ELEMENT_STRIDE;
+        elements[row + ELEMENT_END] = end;
+        elements[row + ELEMENT_PARENT] = parent;
+        elements[row + ELEMENT_FIRST_ATTRIBUTE] = attributeCount;
+        elements[row + ELEMENT_ATTRIBUTE_COUNT] = 0;
+        elements[row + ELEMENT_ID_CLASS] = 0;
+        elements[row + ELEMENT_STYLE] = ADDED;
+        elements[row + ELEMENT_LAYOUT] = ATTRIBUTE_SIZE | ATTRIBUTE_SIZE << 16;
+        nodes[start * NODE_STRIDE + NODE_LINE] = line;
+        nodes[end * NODE_STRIDE + NODE_LINE] = line;
+        setNode(start, namespace, name, element);
+        setNode(end, namespace, name, element);
+
+        int previous = lastChild[parent];
+        if (NONE == previous) {
+            elements[parent * ELEMENT_STRIDE + ELEMENT_FIRST_CHILD] = element;
+        } else {
+            elements[previous * ELEMENT_STRIDE + ELEMENT_NEXT_SIBLING] = element;
+        }
+        lastChild[parent] = element;
+        nodesChanged = true;
+        return element;
+    }
+
+    public void removeElement(int element) {
+        int parent = elements[element * ELEMENT_STRIDE + ELEMENT_PARENT];
+        if (NONE == parent) {
+            throw new IllegalArgumentException("Cannot remove the root element");
+        }
+        int previous = NONE;
+        for (int child = getFirstChild(parent); child != element; child = getNextSibling(child)) {
+            if (NONE == child) {
+                return;
+            }
+            previous = child;
+        }
+        int next = elements[element * ELEMENT_STRIDE + ELEMENT_NEXT_SIBLING];
+        if (NONE == previous) {
+            elements[parent * ELEMENT_STRIDE + ELEMENT_FIRST_CHILD] = next;
+        } else {
+            elements[previous * ELEMENT_STRIDE + ELEMENT_NEXT_SIBLING] = next;
+        }
+        if (lastChild[parent] == element) {
+            lastChild[parent] = previous;
+        }
+        elements[element * ELEMENT_STRIDE + ELEMENT_STYLE] |= REMOVED;
+        nodesChanged = true;
+    }
+
+    private void updateNodes() {
+        if (!nodesChanged) {
+            return;
+        }
+        int[] ordered = new int[nodes.length];
+        int count = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            int row = node * NODE_STRIDE;
+            int type = nodes[row + NODE_TYPE] & 0xffff;
+            int element = nodes[row + NODE_C];
+            if (RES_XML_START_ELEMENT == type && NONE != element) {
+                if (0 != (elements[element * ELEMENT_STRIDE + ELEMENT_STYLE] & ADDED)) {
+                    continue;
+                }
+                if (0 != (elements[element * ELEMENT_STRIDE + ELEMENT_STYLE] & REMOVED)) {
+                    node = skipRemoved(element, node);
+                    continue;
+                }
+            } else if (RES_XML_END_ELEMENT == type && NONE != element) {
+                if (0 != (elements[element * ELEMENT_STRIDE + ELEMENT_STYLE] & ADDED)) {
+                    continue;
+                }
+                count = appendAddedChildren(ordered, count, element);
+            }
+            System.arraycopy(nodes, row, ordered, count * NODE_STRIDE, NODE_STRIDE);
+            count++;
+        }
+        nodes = ordered;
+        nodeCount = count;
+        for (int node = 0; node < nodeCount; node++) {
+            int row = node * NODE_STRIDE;
+            int type = nodes[row + NODE_TYPE] & 0xffff;
+            int element = nodes[row + NODE_C];
+            if (RES_XML_START_ELEMENT == type && NONE != element) {
+                elements[element * ELEMENT_STRIDE + ELEMENT_START] = node;
+                elements[element * ELEMENT_STRIDE + ELEMENT_STYLE] &= ~ADDED;
+            } else if (RES_XML_END_ELEMENT == type && NONE != element) {
+                elements[element * ELEMENT_STRIDE + ELEMENT_END] = node;
+            }
+        }
+        nodesChanged = false;
+    }
+
+    private int skipRemoved(int element, int node) {
+        int end = elements[element * ELEMENT_STRIDE + ELEMENT_END];
+        for (int skipped = node; skipped <= end && skipped < nodeCount; skipped++) {
+            int type = nodes[skipped * NODE_STRIDE + NODE_TYPE] & 0xffff;
+            int child = nodes[skipped * NODE_STRIDE + NODE_C];
+            if (RES_XML_START_ELEMENT == type && NONE != child) {
+                elements[child * ELEMENT_STRIDE + ELEMENT_START] = NONE;
+                elements[child * ELEMENT_STRIDE + ELEMENT_END] = NONE;
+            }
+        }
+        return NONE == end ? nodeCount : end;
+    }
+
+    private int appendAddedChildren(int[] ordered, int count, int parent) {
+        for (int child = getFirstChild(parent); NONE != child; child = getNextSibling(child)) {
+            int row = child * ELEMENT_STRIDE;
+            if (0 == (elements[row + ELEMENT_STYLE] & ADDED)) {
+                continue;
+            }
+            System.arraycopy(nodes, elements[row + ELEMENT_START] * NODE_STRIDE, ordered, count++ * NODE_STRIDE, NODE_STRIDE);
+            count = appendAddedChildren(ordered, count, child);
+            System.arraycopy(nodes, elements[row + ELEMENT_END] * NODE_STRIDE, ordered, count++ * NODE_STRIDE, NODE_STRIDE);
+        }
+        return count;
+    }
+
+    public void writeTo(ResTarget tgt) {
+        updateNodes();
+        if (!hasResourceMap && resourceIds.length > 0) {
+            writeHeader(tgt, RES_XML_RESOURCE_MAP, 8, 8 + resourceIds.length * ResTarget.LEN_U32);
+            for (int id : resourceIds) {
+                tgt.writeU32(id & 0xffffffffL);
+            }
+        }
+        long runStart = 0;
+        long runEnd = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            int row = node * NODE_STRIDE;
+            int type = nodes[row + NODE_TYPE];
+            if (isClean(node)) {
+                if (runEnd != nodes[row + NODE_OFFSET]) {
+                    src.copyTo(runStart, runEnd - runStart, tgt);
+                    runStart = nodes[row + NODE_OFFSET];
+                }
+                runEnd = nodes[row + NODE_OFFSET] + (long) nodes[row + NODE_SIZE];
+                continue;
+            }
+            src.copyTo(runStart, runEnd - runStart, tgt);
+            runStart = runEnd = 0;
+            type &= ~CLEAN;
+            if (0 != (type & OPAQUE)) {
+                writeOpaque(tgt, node);
+                continue;
+            }
+            switch (type) {
+                case RES_XML_RESOURCE_MAP:
+                    writeHeader(tgt, type, 8, 8 + resourceIds.length * ResTarget.LEN_U32);
+                    for (int id : resourceIds) {
+                        tgt.writeU32(id & 0xffffffffL);
+                    }
+                    break;
+                case RES_XML_START_ELEMENT:
+                    int element = nodes[row + NODE_C];
+                    int count = elements[element * ELEMENT_STRIDE + ELEMENT_ATTRIBUTE_COUNT];
+                    writeNodeHeader(tgt, node, NODE_HEADER_SIZE + ATTRIBUTE_SIZE + count * ATTRIBUTE_SIZE);
+                    writeU32(tgt, nodes[row + NODE_A]);
+                    writeU32(tgt, nodes[row + NODE_B]);
+                    tgt.writeU16(ATTRIBUTE_SIZE);
+                    tgt.writeU16(ATTRIBUTE_SIZE);
+                    tgt.writeU16(count);
+                    tgt.writeU16(getIdAttributeIndex(element));
+                    tgt.writeU16(getClassAttributeIndex(element));
+                    tgt.writeU16(getStyleAttributeIndex(element));
+                    writeAttributes(tgt, element);
+                    break;
+                case RES_XML_CDATA:
+                    writeNodeHeader(tgt, node, 28);
+                    writeU32(tgt, nodes[row + NODE_A]);
+                    writeValue(tgt, nodes[row + NODE_B], nodes[row + NODE_C]);
+                    break;
+                default:
+                    writeNodeHeader(tgt, node, 24);
+                    writeU32(tgt, nodes[row + NODE_A]);
+                    writeU32(tgt, nodes[row + NODE_B]);
+            }
+        }
+        src.copyTo(runStart, runEnd - runStart, tgt);
+    }
+
+    private boolean isClean(int node) {
+        int row = node * NODE_STRIDE;
+        if (0 == (nodes[row + NODE_TYPE] & CLEAN)) {
+            return false;
+        }
+        if (RES_XML_START_ELEMENT != (nodes[row + NODE_TYPE] & 0xffff) || NONE == nodes[row + NODE_C]) {
+            return true;
+        }
+        int element = nodes[row + NODE_C];
+        int first = elements[element * ELEMENT_STRIDE + ELEMENT_FIRST_ATTRIBUTE];
+        int changed = changedAttributes.nextSetBit(first);
+        return changed < 0 || changed >= first + elements[element * ELEMENT_STRIDE + ELEMENT_ATTRIBUTE_COUNT];
+    }
+
+    /**
+     * Copies a node with a non-standard layout as it is, then writes the string indices it is known to hold,
+     * which may have been shifted by {@link #shiftStringIndices}, over the copy.
+     */
+    private void writeOpaque(ResTarget tgt, int node) {
+        int row = node * NODE_STRIDE;
+        int type = nodes[row + NODE_TYPE] & 0xffff;
+        long offset = nodes[row + NODE_OFFSET];
+        long start = tgt.position();
+        src.copyTo(offset, nodes[row + NODE_SIZE], tgt);
+        int headerSize = src.getU16(offset + ResTarget.LEN_U16);
+        if (type < RES_XML_START_NAMESPACE || type > RES_XML_CDATA || headerSize < NODE_HEADER_SIZE) {
+            return;
+        }
+        long end = tgt.position();
+        tgt.position(start + 3 * ResTarget.LEN_U32);
+        writeU32(tgt, nodes[row + NODE_COMMENT]);
+        tgt.position(start + headerSize);
+        writeU32(tgt, nodes[row + NODE_A]);
+        if (RES_XML_CDATA == type) {
+            writeValue(tgt, nodes[row + NODE_B], nodes[row + NODE_C]);
+        } else {
+            writeU32(tgt, nodes[row + NODE_B]);
+        }
+        if (RES_XML_START_ELEMENT == type) {
+            int element = nodes[row + NODE_C];
+            int first = elements[element * ELEMENT_STRIDE + ELEMENT_FIRST_ATTRIBUTE];
+            for (int i = 0; i < elements[element * ELEMENT_STRIDE + ELEMENT_ATTRIBUTE_COUNT]; i++) {
+                tgt.position(start + getAttributeSourcePosition(first + i, element) - offset);
+                writeAttribute(tgt, first + i);
+            }
+        }
+        tgt.position(end);
+    }
+
+    private void writeHeader(ResTarget tgt, int type, int headerSize, long size) {
+        tgt.writeU16(type);
+        tgt.writeU16(headerSize);
+        tgt.writeU32(size);
+    }
+
+    private void writeNodeHeader(ResTarget tgt, int node, long size) {
+        int row = node * NODE_STRIDE;
+        writeHeader(tgt, nodes[row + NODE_TYPE] & 0xffff, NODE_HEADER_SIZE, size);
+        writeU32(tgt, nodes[row + NODE_LINE]);
+        writeU32(tgt, nodes[row + NODE_COMMENT]);
+    }
+
+    private void writeAttributes(ResTarget tgt, int element) {
+        int first = elements[element * ELEMENT_STRIDE + ELEMENT_FIRST_ATTRIBUTE];
+        int count = elements[element * ELEMENT_STRIDE + ELEMENT_ATTRIBUTE_COUNT];
+        for (int attribute = first; attribute < first + count; attribute++) {
+            writeAttribute(tgt, attribute);
+        }
+    }
+
+    private void writeAttribute(ResTarget tgt, int attribute) {
+        int a = attribute * ATTRIBUTE_STRIDE;
+        writeU32(tgt, attributes[a + ATTRIBUTE_NAMESPACE]);
+        writeU32(tgt, attributes[a + ATTRIBUTE_NAME]);
+        writeU32(tgt, attributes[a + ATTRIBUTE_RAW]);
+        writeValue(tgt, attributes[a + ATTRIBUTE_VALUE], attributes[a + ATTRIBUTE_DATA]);
+    }
+
+    private static void writeValue(ResTarget tgt, int packed, int data) {
+        tgt.writeU16(packed & 0xffff);
+        tgt.writeU8(packed >>> 16 & 0xff);
+        tgt.writeU8(packed >>> 24);
+        writeU32(tgt, data);
+    }
+
+    private static void writeU32(ResTarget tgt, int value) {
+        tgt.writeU32(value & 0xffffffffL);
+    }
+
+    @Override
+    public String toString() {
+        return "ResXmlTree{" +
+                "nodes=" + nodeCount +
+                ", elements=" + elementCount +
+                ", attributes=" + attributeCount +
+                ", resourceIds=" + resourceIds.length +
+                '}';
+    }
+}
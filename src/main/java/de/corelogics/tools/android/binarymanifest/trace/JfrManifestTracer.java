@@ -0,0 +1,127 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits Java Flight Recorder events for reads, writes and, if enabled in the recording settings, single chunks.
+ */
+public class JfrManifestTracer implements ManifestTracer {
+    @Override
+    public void chunkParsed(int type, long size, long nanos) {
+        ChunkParsed event = new ChunkParsed();
+        if (event.shouldCommit()) {
+            event.chunkType = type;
+            event.size = size;
+            event.parseTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void parsed(long bytes, int strings, int chunks, long nanos) {
+        ManifestParsed event = new ManifestParsed();
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.strings = strings;
+            event.chunks = chunks;
+            event.parseTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void written(long bytes, boolean patched, long nanos) {
+        ManifestWritten event = new ManifestWritten();
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.patched = patched;
+            event.writeTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Name("de.corelogics.binarymanifest.ChunkParsed")
+    @Label("Manifest Chunk Parsed")
+    @Category({"Android", "Binary Manifest"})
+    @Enabled(false)
+    static class ChunkParsed extends Event {
+        @Label("Chunk Type")
+        int chunkType;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Parse Time")
+        @Timespan
+        long parseTime;
+    }
+
+    @Name("de.corelogics.binarymanifest.ManifestParsed")
+    @Label("Manifest Parsed")
+    @Category({"Android", "Binary Manifest"})
+    static class ManifestParsed extends Event {
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Strings")
+        int strings;
+
+        @Label("Chunks")
+        int chunks;
+
+        @Label("Parse Time")
+        @Timespan
+        long parseTime;
+    }
+
+    @Name("de.corelogics.binarymanifest.ManifestWritten")
+    @Label("Manifest Written")
+    @Category({"Android", "Binary Manifest"})
+    static class ManifestWritten extends Event {
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Patched")
+        boolean patched;
+
+        @Label("Write Time")
+        @Timespan
+        long writeTime;
+    }
+}
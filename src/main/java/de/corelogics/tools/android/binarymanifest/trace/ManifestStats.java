@@ -0,0 +1,138 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.trace;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative counters over all traced reads and writes.
+ */
+public class ManifestStats implements ManifestTracer {
+    private final LongAdder filesParsed = new LongAdder();
+    private final LongAdder bytesParsed = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder strings = new LongAdder();
+    private final LongAccumulator largestStringPool = new LongAccumulator(Math::max, 0);
+    private final LongAdder chunks = new LongAdder();
+    private final Map<Integer, LongAdder> chunkHistogram = new ConcurrentHashMap<>();
+    private final LongAdder filesWritten = new LongAdder();
+    private final LongAdder filesPatched = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+
+    @Override
+    public void chunkParsed(int type, long size, long nanos) {
+        chunkHistogram.computeIfAbsent(type, t -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void parsed(long bytes, int strings, int chunks, long nanos) {
+        filesParsed.increment();
+        bytesParsed.add(bytes);
+        parseNanos.add(nanos);
+        this.strings.add(strings);
+        largestStringPool.accumulate(strings);
+        this.chunks.add(chunks);
+    }
+
+    @Override
+    public void written(long bytes, boolean patched, long nanos) {
+        filesWritten.increment();
+        if (patched) {
+            filesPatched.increment();
+        }
+        bytesWritten.add(bytes);
+        writeNanos.add(nanos);
+    }
+
+    public long getFilesParsed() {
+        return filesParsed.sum();
+    }
+
+    public long getBytesParsed() {
+        return bytesParsed.sum();
+    }
+
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    public long getStrings() {
+        return strings.sum();
+    }
+
+    public long getLargestStringPool() {
+        return largestStringPool.get();
+    }
+
+    public long getChunks() {
+        return chunks.sum();
+    }
+
+    public Map<Integer, Long> getChunkHistogram() {
+        Map<Integer, Long> histogram = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : chunkHistogram.entrySet()) {
+            histogram.put(entry.getKey(), entry.getValue().sum());
+        }
+        return histogram;
+    }
+
+    public long getFilesWritten() {
+        return filesWritten.sum();
+    }
+
+    public long getFilesPatched() {
+        return filesPatched.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getWriteNanos() {
+        return writeNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder histogram = new StringBuilder();
+        for (Map.Entry<Integer, Long> entry : getChunkHistogram().entrySet()) {
+            histogram.append(histogram.length() > 0 ? ", " : "")
+                    .append(String.format("0x%04x=%d", entry.getKey(), entry.getValue()));
+        }
+        return String.format("parsed: %d files, %d bytes, %.3f ms, %d strings (largest pool %d), %d chunks [%s]%n" +
+                        "written: %d files (%d patched), %d bytes, %.3f ms",
+                getFilesParsed(), getBytesParsed(), getParseNanos() / 1e6, getStrings(), getLargestStringPool(),
+                getChunks(), histogram,
+                getFilesWritten(), getFilesPatched(), getBytesWritten(), getWriteNanos() / 1e6);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package de.corelogics.tools.android.binarymanifest.trace;
+
+/**
+ * Holds the process wide tracer and optional per-thread tracers that take precedence over it. Without
+ * either, reads and writes skip all timing calls.
+ */
+public final class ManifestTracing {
+    private static final ThreadLocal<ManifestTracer> THREAD_TRACER = new ThreadLocal<>();
+    private static volatile ManifestTracer tracer;
+
+    private ManifestTracing() {
+    }
+
+    public static ManifestTracer getTracer() {
+        ManifestTracer current = THREAD_TRACER.get();
+        return null != current ? current : tracer;
+    }
+
+    public static void setTracer(ManifestTracer tracer) {
+        ManifestTracing.tracer = tracer;
+    }
+
+    /**
+     * Traces the calling thread only, e.g. the work of one request in a shared pool; {@code null} falls
+     * back to the process wide tracer.
+     */
+    public static void setThreadTracer(ManifestTracer tracer) {
+        if (null == tracer) {
+            THREAD_TRACER.remove();
+        } else {
+            THREAD_TRACER.set(tracer);
+        }
+    }
+
+    public static long start() {
+        return null == getTracer() ? 0 : System.nanoTime();
+    }
+
+    public static void written(long start, long bytes, boolean patched) {
+        ManifestTracer current = getTracer();
+        if (null != current && 0 != start) {
+            current.written(bytes, patched, System.nanoTime() - start);
+        }
+    }
+}
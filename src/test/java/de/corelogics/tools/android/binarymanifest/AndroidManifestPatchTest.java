@@ -0,0 +1,118 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package de.corelogics.tools.android.binarymanifest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AndroidManifestPatchTest {
+    private static final String MANIFEST = "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"\n" +
+            "    package=\"com.example.app\" android:versionCode=\"12\" android:versionName=\"1.2.0-beta\">\n" +
+            "    <uses-sdk android:minSdkVersion=\"21\"/>\n" +
+            "    <application android:label=\"Example\"/>\n" +
+            "</manifest>";
+
+    @TempDir
+    Path dir;
+
+    private File compile(boolean utf8) throws IOException {
+        ManifestCompiler compiler = new ManifestCompiler();
+        compiler.setUtf8(utf8);
+        File file = dir.resolve("AndroidManifest.xml").toFile();
+        Files.write(file.toPath(), compiler.compile(MANIFEST));
+        return file;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void patchAndWriteProduceTheSameManifest(boolean utf8) throws IOException {
+        File source = compile(utf8);
+        File patched = dir.resolve("patched.xml").toFile();
+        File written = dir.resolve("written.xml").toFile();
+
+        AndroidManifest manifest = new AndroidManifest(source);
+        manifest.setVersionCode(13);
+        manifest.setVersionName("1.2.1");
+        assertTrue(manifest.isPatchable());
+        manifest.patch(patched);
+        manifest.write(written);
+
+        for (File file : new File[]{patched, written}) {
+            AndroidManifest reread = new AndroidManifest(Files.readAllBytes(file.toPath()));
+            assertEquals(13, reread.getVersionCode());
+            assertEquals("1.2.1", reread.getVersionName());
+            assertTrue(reread.verify().isEmpty());
+        }
+        assertEquals(Files.size(source.toPath()), Files.size(patched.toPath()));
+    }
+
+    @Test
+    void unchangedManifestIsWrittenAsItWasRead() throws IOException {
+        File source = compile(false);
+        byte[] bytes = Files.readAllBytes(source.toPath());
+        assertArrayEquals(bytes, new AndroidManifest(bytes).toByteArray());
+        new AndroidManifest(source).validate(source);
+    }
+
+    @Test
+    void longerVersionNameIsNotPatchable() throws IOException {
+        AndroidManifest manifest = new AndroidManifest(compile(false));
+        manifest.setVersionName("1.2.0-beta-and-much-longer");
+        assertFalse(manifest.isPatchable());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void patchInPlaceKeepsTheOriginalSlot(boolean utf8) throws IOException {
+        File source = compile(utf8);
+        AndroidManifest manifest = new AndroidManifest(source);
+        manifest.setVersionName("1");
+        manifest.patchInPlace();
+        assertEquals("1", new AndroidManifest(Files.readAllBytes(source.toPath())).getVersionName());
+
+        manifest.setVersionName("1.2.0-rc1");
+        assertTrue(manifest.isPatchable());
+        manifest.patchInPlace();
+        AndroidManifest reread = new AndroidManifest(Files.readAllBytes(source.toPath()));
+        assertEquals("1.2.0-rc1", reread.getVersionName());
+        assertTrue(reread.verify().isEmpty());
+    }
+}
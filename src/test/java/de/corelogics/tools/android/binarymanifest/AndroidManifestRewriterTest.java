@@ -0,0 +1,127 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package de.corelogics.tools.android.binarymanifest;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class AndroidManifestRewriterTest {
+    static final int FILES = 300;
+
+    @TempDir
+    Path dir;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final PrintStream out = new PrintStream(output, true);
+
+    static void writeManifests(Path dir, int count) throws IOException {
+        ManifestCompiler compiler = new ManifestCompiler();
+        for (int i = 0; i < count; i++) {
+            Path module = Files.createDirectories(dir.resolve("module" + i));
+            Files.write(module.resolve("AndroidManifest.xml"), compiler.compile(
+                    "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"" +
+                            " package=\"com.example.m" + i + "\" android:versionCode=\"" + i + "\" android:versionName=\"1.0\"/>"));
+        }
+    }
+
+    static long openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        assumeTrue(os instanceof UnixOperatingSystemMXBean, "needs a Unix JVM to count file descriptors");
+        return ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+    }
+
+    private int run(String... args) throws IOException, InterruptedException {
+        return AndroidManifestRewriter.run(args, dir, out, out, null, null, null);
+    }
+
+    @Test
+    void rewritesAllManifestsInADirectory() throws IOException, InterruptedException {
+        writeManifests(dir, 20);
+        assertEquals(0, run("--version-code", "code * 10 + 3", "--version-name", "2.0", "."));
+        for (int i = 0; i < 20; i++) {
+            AndroidManifest manifest = new AndroidManifest(Files.readAllBytes(dir.resolve("module" + i).resolve("AndroidManifest.xml")));
+            assertEquals(i * 10 + 3, manifest.getVersionCode());
+            assertEquals("2.0", manifest.getVersionName());
+        }
+    }
+
+    @Test
+    void batchesDoNotLeakFileDescriptors() throws IOException, InterruptedException {
+        writeManifests(dir, FILES);
+        assertEquals(0, run("--version-code", "code + 1", "."));
+        long before = openFileDescriptors();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, run("--version-code", "code + 1", "."));
+        }
+        long leaked = openFileDescriptors() - before;
+        assertTrue(leaked < FILES / 10, leaked + " file descriptors left open after rewriting " + 3 * FILES + " files");
+    }
+
+    @Test
+    void inFlightLimitBelowOneIsRejected() throws IOException, InterruptedException {
+        writeManifests(dir, 1);
+        assertEquals(2, run("--max-in-flight-mb", "0", "."));
+        assertTrue(new String(output.toByteArray(), StandardCharsets.UTF_8).startsWith("Usage:"));
+    }
+
+    @Test
+    void subtractingFormulaIsCheckedAgainstEachFile() throws IOException, InterruptedException {
+        writeManifests(dir, 54);
+        assertEquals(1, run("--version-code", "code - 10", "module53", "module5"));
+        assertEquals(43, new AndroidManifest(dir.resolve("module53/AndroidManifest.xml").toFile()).getVersionCode());
+        assertEquals(5, new AndroidManifest(dir.resolve("module5/AndroidManifest.xml").toFile()).getVersionCode());
+    }
+
+    @Test
+    void malformedFormulaIsRejected() throws IOException, InterruptedException {
+        writeManifests(dir, 1);
+        assertEquals(2, run("--version-code", "code +", "."));
+        assertTrue(new String(output.toByteArray(), StandardCharsets.UTF_8).startsWith("Usage:"));
+    }
+
+    @Test
+    void divisionByZeroFailsPerFile() throws IOException, InterruptedException {
+        writeManifests(dir, 1);
+        assertEquals(1, run("--version-code", "code / 0", "."));
+    }
+}
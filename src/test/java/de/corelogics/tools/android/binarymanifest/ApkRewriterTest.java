@@ -0,0 +1,175 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package de.corelogics.tools.android.binarymanifest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ApkRewriterTest {
+    private static final String NATIVE_LIBRARY = "lib/arm64-v8a/libexample.so";
+    private static final String ASSET = "assets/data.bin";
+
+    @TempDir
+    Path dir;
+
+    private final byte[] manifest = new ManifestCompiler().compile(
+            "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"" +
+                    " package=\"com.example.app\" android:versionCode=\"1\" android:versionName=\"1\"/>");
+    private final byte[] library = content(5000);
+    private final byte[] asset = content(999);
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    /**
+     * An APK as zipalign -p leaves it: the manifest and a 4-byte aligned asset stored, the native library page
+     * aligned, each with its alignment in a 0xd935 extra field.
+     */
+    private File alignedApk() throws IOException {
+        File apk = dir.resolve("app.apk").toFile();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(apk))) {
+            long offset = 0;
+            offset = put(zip, offset, ApkRewriter.MANIFEST_ENTRY, manifest, 4);
+            offset = put(zip, offset, NATIVE_LIBRARY, library, 4096);
+            put(zip, offset, ASSET, asset, 4);
+        }
+        return apk;
+    }
+
+    private static long put(ZipOutputStream zip, long offset, String name, byte[] data, int alignment) throws IOException {
+        int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+        long dataOffset = offset + 30 + nameLength + 6;
+        int padding = (int) ((alignment - dataOffset % alignment) % alignment);
+        ByteBuffer extra = ByteBuffer.allocate(6 + padding).order(ByteOrder.LITTLE_ENDIAN);
+        extra.putShort((short) 0xd935).putShort((short) (2 + padding)).putShort((short) alignment);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        entry.setExtra(extra.array());
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+        return dataOffset + padding + data.length;
+    }
+
+    /**
+     * Offset of the data of entry {@code name}, found by walking the local headers.
+     */
+    private static long dataOffset(File apk, String name) throws IOException {
+        byte[] bytes = Files.readAllBytes(apk.toPath());
+        ByteBuffer data = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int position = 0;
+        while (0x04034b50 == data.getInt(position)) {
+            int nameLength = data.getShort(position + 26) & 0xffff;
+            int extraLength = data.getShort(position + 28) & 0xffff;
+            int start = position + 30 + nameLength + extraLength;
+            if (name.equals(new String(bytes, position + 30, nameLength, StandardCharsets.UTF_8))) {
+                return start;
+            }
+            position = start + data.getInt(position + 18);
+        }
+        throw new IOException("No entry " + name);
+    }
+
+    private static byte[] read(File apk, String name) throws IOException {
+        try (ZipFile zip = new ZipFile(apk); InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    void rewriteKeepsTheAlignmentOfEachEntry() throws IOException {
+        File source = alignedApk();
+        assertEquals(0, dataOffset(source, NATIVE_LIBRARY) % 4096);
+
+        File target = dir.resolve("rewritten.apk").toFile();
+        new ApkRewriter(m -> m.setVersionName("1.0.0-grown-by-a-few-bytes")).rewrite(source, target);
+
+        assertEquals(0, dataOffset(target, NATIVE_LIBRARY) % 4096);
+        assertEquals(0, dataOffset(target, ASSET) % 4);
+        assertArrayEquals(library, read(target, NATIVE_LIBRARY));
+        assertArrayEquals(asset, read(target, ASSET));
+        AndroidManifest rewritten = new AndroidManifest(ApkRewriter.readManifest(target));
+        assertEquals("1.0.0-grown-by-a-few-bytes", rewritten.getVersionName());
+        assertEquals(1, rewritten.getVersionCode());
+    }
+
+    @Test
+    void storedEntriesWithoutAlignmentFieldAreAlignedToFourBytes() throws IOException {
+        File source = dir.resolve("plain.apk").toFile();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(source))) {
+            zip.putNextEntry(new ZipEntry(ApkRewriter.MANIFEST_ENTRY));
+            zip.write(manifest);
+            zip.closeEntry();
+            CRC32 crc = new CRC32();
+            crc.update(asset);
+            ZipEntry entry = new ZipEntry(ASSET);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(asset.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(asset);
+            zip.closeEntry();
+        }
+
+        File target = dir.resolve("rewritten.apk").toFile();
+        new ApkRewriter(m -> m.setVersionCode(2)).rewrite(source, target);
+
+        assertEquals(0, dataOffset(target, ASSET) % 4);
+        assertArrayEquals(asset, read(target, ASSET));
+        assertEquals(2, new AndroidManifest(ApkRewriter.readManifest(target)).getVersionCode());
+    }
+}
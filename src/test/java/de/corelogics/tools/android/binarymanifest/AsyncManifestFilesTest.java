@@ -0,0 +1,89 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package de.corelogics.tools.android.binarymanifest;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AsyncManifestFilesTest {
+    @TempDir
+    Path dir;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private File manifest() throws IOException {
+        File file = dir.resolve("AndroidManifest.xml").toFile();
+        Files.write(file.toPath(), new ManifestCompiler().compile(
+                "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"" +
+                        " package=\"com.example.app\" android:versionCode=\"1\" android:versionName=\"1.0\"/>"));
+        return file;
+    }
+
+    @Test
+    void rewritesInPlace() throws Exception {
+        File file = manifest();
+        AsyncManifestFiles.rewrite(file, file, m -> m.setVersionCode(7), executor).get();
+
+        assertEquals(7, AsyncManifestFiles.read(file, executor).get().getVersionCode());
+        assertFalse(dir.resolve("AndroidManifest.xml.tmp").toFile().exists());
+    }
+
+    @Test
+    void failedRewriteLeavesTheTargetAlone() throws Exception {
+        File file = manifest();
+        byte[] original = Files.readAllBytes(file.toPath());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> AsyncManifestFiles.rewrite(file, file, m -> {
+            throw new IllegalStateException("edit failed");
+        }, executor).get());
+
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertArrayEquals(original, Files.readAllBytes(file.toPath()));
+        assertFalse(dir.resolve("AndroidManifest.xml.tmp").toFile().exists());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package de.corelogics.tools.android.binarymanifest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ManifestCompilerTest {
+    private static final String MANIFEST = "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"\n" +
+            "    xmlns:tools=\"http://schemas.android.com/tools\"\n" +
+            "    package=\"com.example.app\" android:versionCode=\"3\" android:versionName=\"3.0\"\n" +
+            "    android:installLocation=\"auto\">\n" +
+            "    <!-- comments are dropped -->\n" +
+            "    <uses-sdk android:minSdkVersion=\"21\" android:targetSdkVersion=\"34\"/>\n" +
+            "    <uses-permission android:name=\"android.permission.INTERNET\" tools:node=\"replace\"/>\n" +
+            "    <application android:label=\"@0x7f010000\" android:theme=\"@0x01030224\" android:allowBackup=\"false\">\n" +
+            "        <activity android:name=\".Main\" android:exported=\"true\"\n" +
+            "            android:screenOrientation=\"portrait\" android:configChanges=\"orientation|keyboardHidden\">\n" +
+            "            <intent-filter>\n" +
+            "                <action android:name=\"android.intent.action.MAIN\"/>\n" +
+            "                <category android:name=\"android.intent.category.LAUNCHER\"/>\n" +
+            "            </intent-filter>\n" +
+            "        </activity>\n" +
+            "        <meta-data android:name=\"hex\" android:value=\"0x10\"/>\n" +
+            "        <meta-data android:name=\"float\" android:value=\"1.5\"/>\n" +
+            "        <meta-data android:name=\"dimension\" android:value=\"16dp\"/>\n" +
+            "        <meta-data android:name=\"color\" android:value=\"#ff00ff00\"/>\n" +
+            "        <meta-data android:name=\"text\" android:value=\"Grüße &amp; 🚀\"/>\n" +
+            "        <extension xmlns=\"http://example.com/x\" android:name=\"default\" mode=\"plain\">\n" +
+            "            <item/>\n" +
+            "        </extension>\n" +
+            "    </application>\n" +
+            "</manifest>";
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void decompiledManifestCompilesToTheSameManifest(boolean utf8) {
+        ManifestCompiler compiler = new ManifestCompiler();
+        compiler.setUtf8(utf8);
+        byte[] compiled = compiler.compile(MANIFEST);
+        String decompiled = ManifestDecompiler.decompile(compiled);
+        byte[] recompiled = compiler.compile(decompiled);
+
+        assertEquals(decompiled, ManifestDecompiler.decompile(recompiled));
+        assertArrayEquals(recompiled, compiler.compile(ManifestDecompiler.decompile(recompiled)));
+        assertTrue(new AndroidManifest(recompiled).verify().isEmpty());
+    }
+
+    @Test
+    void compiledManifestKeepsValuesAndDropsTools() {
+        byte[] compiled = new ManifestCompiler().compile(MANIFEST);
+        AndroidManifest manifest = new AndroidManifest(compiled);
+        assertEquals(3, manifest.getVersionCode());
+        assertEquals("3.0", manifest.getVersionName());
+
+        String decompiled = ManifestDecompiler.decompile(compiled);
+        assertFalse(decompiled.contains("tools"));
+        assertTrue(decompiled.contains("android:installLocation=\"auto\""));
+        assertTrue(decompiled.contains("android:theme=\"@0x01030224\""));
+        assertTrue(decompiled.contains("android:value=\"16dp\""));
+        assertTrue(decompiled.contains("android:value=\"Grüße &amp; 🚀\""));
+        assertTrue(decompiled.contains("<extension xmlns=\"http://example.com/x\""));
+        assertTrue(decompiled.contains("<item/>"));
+    }
+
+    @Test
+    void generatedManifestSurvivesTheRoundTrip() throws IOException {
+        byte[] generated;
+        try (InputStream in = ManifestCompilerTest.class.getResourceAsStream("/fixtures/styled.xml")) {
+            generated = in.readAllBytes();
+        }
+        String decompiled = ManifestDecompiler.decompile(generated);
+        assertEquals(decompiled, ManifestDecompiler.decompile(new ManifestCompiler().compile(decompiled)));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package de.corelogics.tools.android.binarymanifest;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ManifestDaemonTest {
+    @TempDir
+    Path dir;
+
+    private ManifestDaemon daemon;
+
+    @BeforeEach
+    void start() throws IOException {
+        daemon = new ManifestDaemon(0, 2, 4, 16L << 20);
+        daemon.start();
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        daemon.stop();
+    }
+
+    private String post(String command, String... args) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + daemon.getPort() + "/" + command).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty(ManifestDaemon.TOKEN_HEADER, daemon.getToken());
+        connection.setRequestProperty(ManifestDaemon.DIRECTORY_HEADER, dir.toString());
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write((String.join("\n", args) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void readsManifests() throws IOException {
+        AndroidManifestRewriterTest.writeManifests(dir, 2);
+        String output = post("read", "module0/AndroidManifest.xml", "module1/AndroidManifest.xml");
+        assertTrue(output.contains("package com.example.m1, versionCode 1, versionName '1.0'"), output);
+        assertTrue(output.endsWith("exit 0\n"), output);
+    }
+
+    @Test
+    void repeatedRequestsDoNotLeakFileDescriptors() throws IOException {
+        int files = 50;
+        AndroidManifestRewriterTest.writeManifests(dir, files);
+        String[] args = new String[files];
+        for (int i = 0; i < files; i++) {
+            args[i] = "module" + i + "/AndroidManifest.xml";
+        }
+        assertTrue(post("read", args).endsWith("exit 0\n"));
+        assertTrue(post("rewrite", "--version-code", "code + 1", ".").endsWith("exit 0\n"));
+
+        long before = AndroidManifestRewriterTest.openFileDescriptors();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(post("read", args).endsWith("exit 0\n"));
+            assertTrue(post("rewrite", "--version-code", "code + 1", ".").endsWith("exit 0\n"));
+        }
+        long leaked = AndroidManifestRewriterTest.openFileDescriptors() - before;
+        assertTrue(leaked < files, leaked + " file descriptors left open after 40 requests over " + files + " files");
+    }
+
+    @Test
+    void concurrentStatsRequestsCountTheirOwnFiles() throws Exception {
+        AndroidManifestRewriterTest.writeManifests(dir.resolve("large"), 40);
+        AndroidManifestRewriterTest.writeManifests(dir.resolve("small"), 5);
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> large = new ArrayList<>();
+            List<Future<String>> small = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                large.add(clients.submit(() -> post("rewrite", "--stats", "--version-code", "code + 1", "large")));
+                small.add(clients.submit(() -> post("rewrite", "--stats", "--version-code", "code + 1", "small")));
+            }
+            for (Future<String> output : large) {
+                assertTrue(output.get().contains("written: 40 files"), output.get());
+            }
+            for (Future<String> output : small) {
+                assertTrue(output.get().contains("written: 5 files"), output.get());
+            }
+        } finally {
+            clients.shutdown();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package de.corelogics.tools.android.binarymanifest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ManifestEditsTest {
+    private static final String ANDROID = "xmlns:android=\"http://schemas.android.com/apk/res/android\"";
+
+    private static byte[] compile(String xml) {
+        return new ManifestCompiler().compile(xml);
+    }
+
+    private static byte[] edit(byte[] source, ManifestEdits edits) {
+        AndroidManifest manifest = new AndroidManifest(source);
+        manifest.apply(edits);
+        assertTrue(manifest.verify().isEmpty());
+        return manifest.toByteArray();
+    }
+
+    @Test
+    void editsMatchTheCompiledResult() {
+        byte[] source = compile("<manifest " + ANDROID + " package=\"com.example.app\" android:versionCode=\"1\">\n" +
+                "    <application android:label=\"Example\">\n" +
+                "        <meta-data android:name=\"channel\" android:value=\"beta\"/>\n" +
+                "        <meta-data android:name=\"obsolete\" android:value=\"x\"/>\n" +
+                "    </application>\n" +
+                "</manifest>");
+        byte[] edited = edit(source, new ManifestEdits()
+                .set("manifest", "android:installLocation", AttributeValue.integer(1))
+                .set("manifest/application", "android:debuggable", AttributeValue.bool(true))
+                .set("manifest/application/meta-data[@android:name='channel']", "android:value", AttributeValue.string("stable"))
+                .removeElement("manifest/application/meta-data[@android:name='obsolete']")
+                .addElement("manifest", "uses-permission", "android:name", AttributeValue.string("android.permission.INTERNET")));
+
+        String expected = ManifestDecompiler.decompile(compile("<manifest " + ANDROID + " package=\"com.example.app\"" +
+                " android:versionCode=\"1\" android:installLocation=\"1\">\n" +
+                "    <application android:label=\"Example\" android:debuggable=\"true\">\n" +
+                "        <meta-data android:name=\"channel\" android:value=\"stable\"/>\n" +
+                "    </application>\n" +
+                "    <uses-permission android:name=\"android.permission.INTERNET\"/>\n" +
+                "</manifest>"));
+        assertEquals(expected, ManifestDecompiler.decompile(edited));
+        assertTrue(new AndroidManifest(edited).verify().isEmpty());
+    }
+
+    @Test
+    void insertKeepsStylesWithTheirStrings() throws IOException {
+        byte[] source;
+        try (InputStream in = ManifestEditsTest.class.getResourceAsStream("/fixtures/styled.xml")) {
+            source = in.readAllBytes();
+        }
+        byte[] edited = edit(source, new ManifestEdits()
+                .set("manifest", "android:installLocation", AttributeValue.integer(1)));
+
+        Map<String, String> before = styles(source);
+        Map<String, String> after = styles(edited);
+        assertEquals(before.size() + 1, after.size());
+        assertEquals("", after.get("installLocation"));
+        for (Map.Entry<String, String> style : before.entrySet()) {
+            assertEquals(style.getValue(), after.get(style.getKey()), style.getKey());
+        }
+        assertTrue(new AndroidManifest(edited).verify().isEmpty());
+    }
+
+    @Test
+    void insertShiftsStringsOfOpaqueNodes() {
+        byte[] source = padFirstEndElement(compile("<manifest " + ANDROID + " package=\"com.example.app\" android:versionCode=\"1\">\n" +
+                "    <application android:label=\"Example\"/>\n" +
+                "</manifest>"));
+        byte[] edited = edit(source, new ManifestEdits()
+                .set("manifest", "android:installLocation", AttributeValue.integer(1)));
+
+        assertEquals(List.of("<manifest", "<application", "</application", "</manifest"), elementNames(edited));
+    }
+
+    /**
+     * Style spans by the string they belong to, as {@code tag:first-last;} with the tag resolved.
+     */
+    private static Map<String, String> styles(byte[] manifest) {
+        ByteBuffer data = ByteBuffer.wrap(manifest).order(ByteOrder.LITTLE_ENDIAN);
+        int pool = data.getShort(2);
+        String[] strings = strings(data, pool);
+        int styleCount = data.getInt(pool + 12);
+        int offsets = pool + data.getShort(pool + 2) + strings.length * 4;
+        int stylesStart = pool + data.getInt(pool + 24);
+        Map<String, String> styles = new LinkedHashMap<>();
+        for (int i = 0; i < styleCount; i++) {
+            StringBuilder spans = new StringBuilder();
+            for (int span = stylesStart + data.getInt(offsets + 4 * i); -1 != data.getInt(span); span += 12) {
+                spans.append(strings[data.getInt(span)]).append(':')
+                        .append(data.getInt(span + 4)).append('-').append(data.getInt(span + 8)).append(';');
+            }
+            styles.put(strings[i], spans.toString());
+        }
+        return styles;
+    }
+
+    private static String[] strings(ByteBuffer data, int pool) {
+        boolean utf8 = 0 != (data.getInt(pool + 16) & 0x100);
+        int offsets = pool + data.getShort(pool + 2);
+        int stringsStart = pool + data.getInt(pool + 20);
+        String[] strings = new String[data.getInt(pool + 8)];
+        for (int i = 0; i < strings.length; i++) {
+            int position = stringsStart + data.getInt(offsets + 4 * i);
+            if (utf8) {
+                position += (data.get(position) & 0x80) != 0 ? 2 : 1;
+                int length = data.get(position) & 0xff;
+                if (length > 0x7f) {
+                    length = (length & 0x7f) << 8 | data.get(position + 1) & 0xff;
+                    position++;
+                }
+                strings[i] = new String(data.array(), position + 1, length, StandardCharsets.UTF_8);
+            } else {
+                int length = data.getShort(position) & 0xffff;
+                if (length > 0x7fff) {
+                    length = (length & 0x7fff) << 16 | data.getShort(position + 2) & 0xffff;
+                    position += 2;
+                }
+                strings[i] = new String(data.array(), position + 2, 2 * length, StandardCharsets.UTF_16LE);
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Grows the first end element node by four bytes, so the writer has to treat it as opaque.
+     */
+    private static byte[] padFirstEndElement(byte[] manifest) {
+        ByteBuffer data = ByteBuffer.wrap(manifest).order(ByteOrder.LITTLE_ENDIAN);
+        for (int position = data.getShort(2); position < manifest.length; position += data.getInt(position + 4)) {
+            if (0x0103 == data.getShort(position)) {
+                int end = position + data.getInt(position + 4);
+                byte[] padded = new byte[manifest.length + 4];
+                System.arraycopy(manifest, 0, padded, 0, end);
+                System.arraycopy(manifest, end, padded, end + 4, manifest.length - end);
+                ByteBuffer paddedData = ByteBuffer.wrap(padded).order(ByteOrder.LITTLE_ENDIAN);
+                paddedData.putInt(position + 4, data.getInt(position + 4) + 4);
+                paddedData.putInt(4, padded.length);
+                return padded;
+            }
+        }
+        throw new IllegalArgumentException("No end element");
+    }
+
+    private static List<String> elementNames(byte[] manifest) {
+        ByteBuffer data = ByteBuffer.wrap(manifest).order(ByteOrder.LITTLE_ENDIAN);
+        String[] strings = strings(data, data.getShort(2));
+        List<String> names = new ArrayList<>();
+        for (int position = data.getShort(2); position < manifest.length; position += data.getInt(position + 4)) {
+            int type = data.getShort(position);
+            if (0x0102 == type || 0x0103 == type) {
+                names.add((0x0102 == type ? "<" : "</") + strings[data.getInt(position + data.getShort(position + 2) + 4)]);
+            }
+        }
+        return names;
+    }
+}
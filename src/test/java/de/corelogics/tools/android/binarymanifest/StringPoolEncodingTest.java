@@ -0,0 +1,127 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package de.corelogics.tools.android.binarymanifest;
+
+import de.corelogics.tools.android.binarymanifest.chunks.ResChunkHeader;
+import de.corelogics.tools.android.binarymanifest.chunks.ResSource;
+import de.corelogics.tools.android.binarymanifest.chunks.ResStringPool;
+import de.corelogics.tools.android.binarymanifest.chunks.ResStringPoolHeader;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StringPoolEncodingTest {
+    private static final String LONG_LABEL = longLabel();
+    private static final String MANIFEST = "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"\n" +
+            "    package=\"com.example.app\" android:versionCode=\"1\" android:versionName=\"1.0 äöü € 🚀\">\n" +
+            "    <application android:label=\"" + LONG_LABEL + "\">\n" +
+            "        <activity android:name=\".Straße\" android:label=\"日本語\"/>\n" +
+            "    </application>\n" +
+            "</manifest>";
+
+    private static String longLabel() {
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'é');
+        return new String(chars);
+    }
+
+    private static byte[] compile(boolean utf8) {
+        ManifestCompiler compiler = new ManifestCompiler();
+        compiler.setUtf8(utf8);
+        return compiler.compile(MANIFEST);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void reencodedPoolHoldsTheSameStrings(boolean utf8) {
+        AndroidManifest manifest = new AndroidManifest(compile(utf8));
+        assertEquals(utf8, manifest.isUtf8StringPool());
+        manifest.setUtf8StringPool(!utf8);
+        assertFalse(manifest.isPatchable());
+        byte[] reencoded = manifest.toByteArray();
+
+        AndroidManifest reread = new AndroidManifest(reencoded);
+        assertEquals(!utf8, reread.isUtf8StringPool());
+        assertEquals("1.0 äöü € 🚀", reread.getVersionName());
+        assertTrue(reread.verify().isEmpty());
+        assertEquals(ManifestDecompiler.decompile(compile(utf8)), ManifestDecompiler.decompile(reencoded));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void reencodingTwiceRestoresTheOriginal(boolean utf8) {
+        byte[] original = compile(utf8);
+        AndroidManifest manifest = new AndroidManifest(original);
+        manifest.setUtf8StringPool(!utf8);
+        AndroidManifest reencoded = new AndroidManifest(manifest.toByteArray());
+        reencoded.setUtf8StringPool(utf8);
+        assertArrayEquals(original, reencoded.toByteArray());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void malformedStringsAreFoundByTheirDecodedValue(boolean utf8) {
+        byte[] euro = "€".getBytes(utf8 ? StandardCharsets.UTF_8 : StandardCharsets.UTF_16LE);
+        byte[][] replacements = utf8
+                ? new byte[][]{{(byte) 0xff, 'A', 'A'}, {(byte) 0xc0, (byte) 0xaf, 'A'}, {(byte) 0xed, (byte) 0xa0, (byte) 0x80}, {(byte) 0xe2, (byte) 0x82, 'A'}, {(byte) 0xf8, (byte) 0x90, (byte) 0x80}}
+                : new byte[][]{{0x00, (byte) 0xd8}, {0x00, (byte) 0xdc}};
+        for (byte[] replacement : replacements) {
+            byte[] data = compile(utf8);
+            int at = indexOf(data, euro);
+            System.arraycopy(replacement, 0, data, at, replacement.length);
+            ResSource src = new ResSource(data);
+            src.position(8);
+            ResStringPool pool = new ResStringPool(new ResStringPoolHeader(new ResChunkHeader(src), src), src);
+            int index = 0;
+            while (!pool.lookup(index).startsWith("1.0 ")) {
+                index++;
+            }
+            String value = pool.lookup(index);
+            assertTrue(value.contains("\ufffd"), value);
+            assertEquals(index, pool.indexOf(value));
+            assertTrue(ResStringPool.equalsAt(src, 8, index, value));
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+                return i;
+            }
+        }
+        throw new AssertionError("not found");
+    }
+}